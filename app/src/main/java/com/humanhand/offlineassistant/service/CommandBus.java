@@ -0,0 +1,287 @@
+package com.humanhand.offlineassistant.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.CommandMacro;
+import com.humanhand.offlineassistant.voice.CommandParser;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Typed, in-process hand-off from the voice service to the accessibility
+ * service. Both live in one process, so commands skip the broadcast queue in
+ * system_server. Producers never block; one consumer drains on its own handler.
+ *
+ * Work goes stale quickly: a new command supersedes everything queued or
+ * running, a window change cancels commands aimed at on-screen nodes, and any
+ * command still waiting after {@link #DEADLINE_MS} is dropped. Running commands
+ * are cancelled cooperatively through {@link #isCancelled()}. A macro stays the
+ * running command until its last step settles; each step gets its own deadline
+ * and window-change check through {@link #beginStep}.
+ */
+public final class CommandBus {
+    private static final String TAG = "CommandBus";
+    private static final int CAPACITY = 8;
+    private static final long DEADLINE_MS = 2000;
+    private static final int SUPERSEDED = 1;
+    private static final int WINDOW_CHANGED = 2;
+    private static final CommandBus INSTANCE = new CommandBus();
+
+    interface Consumer {
+        /** Runs the command on the consumer's handler thread and reports success. */
+        boolean execute(CommandParser.Command command);
+
+        /** Starts a macro on the consumer's handler thread; completes when its last step settles. */
+        CompletableFuture<Boolean> run(CommandMacro macro);
+    }
+
+    private static final class Envelope {
+        final CommandParser.Command command;
+        final CommandMacro macro;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        final long enqueuedAt = SystemClock.elapsedRealtimeNanos();
+        final long deadline = enqueuedAt + DEADLINE_MS * 1_000_000L;
+        // 0 while live, else SUPERSEDED or WINDOW_CHANGED; the first reason sticks.
+        volatile int cancelReason;
+        // Macro step the consumer is executing, or null between steps.
+        volatile CommandParser.Command step;
+        volatile long stepDeadline;
+        volatile boolean stepWindowChanged;
+
+        Envelope(CommandParser.Command command, CommandMacro macro) {
+            this.command = command;
+            this.macro = macro;
+        }
+
+        // A macro changes screens by design; only its steps can be screen-bound.
+        boolean screenBound() {
+            return macro == null && CommandBus.screenBound(command);
+        }
+
+        void cancel(int reason) {
+            if (cancelReason == 0) cancelReason = reason;
+        }
+
+        String describe() {
+            return macro != null ? "macro of " + macro.steps.size() : command.action.name();
+        }
+    }
+
+    // Commands that act on a node of the current screen are meaningless on another one.
+    private static boolean screenBound(CommandParser.Command command) {
+        switch (command.action) {
+            case CLICK:
+            case TYPE:
+            case CALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Envelope> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drain = this::drain;
+    private volatile Consumer consumer;
+    private volatile Handler consumerHandler;
+    private volatile Envelope current;
+
+    private long delivered;
+    private long queueNanos;
+    private long executeNanos;
+    private int superseded;
+    private int expired;
+    private int windowCancelled;
+    private int maxDepth;
+
+    public static CommandBus getInstance() {
+        return INSTANCE;
+    }
+
+    void attach(Consumer consumer, Handler handler) {
+        this.consumerHandler = handler;
+        this.consumer = consumer;
+        if (!queue.isEmpty()) schedule();
+    }
+
+    void detach(Consumer consumer) {
+        if (this.consumer != consumer) return;
+        this.consumer = null;
+        this.consumerHandler = null;
+        Envelope envelope;
+        while ((envelope = queue.poll()) != null) {
+            size.decrementAndGet();
+            envelope.result.complete(false);
+        }
+    }
+
+    /**
+     * Queues a command for the attached consumer, superseding anything queued
+     * or running. Returns null when nobody is attached or the queue is full, so
+     * the caller can fall back to a broadcast.
+     */
+    CompletableFuture<Boolean> submit(CommandParser.Command command) {
+        return offer(new Envelope(command, null));
+    }
+
+    /** Like {@link #submit(CommandParser.Command)}; there is no broadcast fallback for macros. */
+    CompletableFuture<Boolean> submit(CommandMacro macro) {
+        return offer(new Envelope(null, macro));
+    }
+
+    /** Called on any thread when the active window changes. */
+    void onWindowChanged() {
+        for (Envelope queued : queue) {
+            if (queued.screenBound()) queued.cancel(WINDOW_CHANGED);
+        }
+        Envelope running = current;
+        if (running == null) return;
+        if (running.screenBound()) {
+            running.cancel(WINDOW_CHANGED);
+        } else {
+            CommandParser.Command step = running.step;
+            if (step != null && screenBound(step)) running.stepWindowChanged = true;
+        }
+    }
+
+    /**
+     * For the consumer thread: whether the command it is running has been
+     * superseded, invalidated by a window change or has run past its deadline.
+     * Long node walks should check this and give up early.
+     */
+    boolean isCancelled() {
+        Envelope running = current;
+        if (running == null) return false;
+        if (running.cancelReason != 0) return true;
+        if (running.macro == null) return SystemClock.elapsedRealtimeNanos() > running.deadline;
+        return running.step != null
+                && (running.stepWindowChanged || SystemClock.elapsedRealtimeNanos() > running.stepDeadline);
+    }
+
+    /**
+     * For the consumer thread: {@code step} of the running macro is starting, so
+     * {@link #isCancelled()} applies the single-command deadline and window
+     * check to it until {@link #endStep()}.
+     */
+    void beginStep(CommandParser.Command step) {
+        Envelope running = current;
+        if (running == null || running.macro == null) return;
+        running.stepWindowChanged = false;
+        running.stepDeadline = SystemClock.elapsedRealtimeNanos() + DEADLINE_MS * 1_000_000L;
+        running.step = step;
+    }
+
+    void endStep() {
+        Envelope running = current;
+        if (running != null && running.macro != null) running.step = null;
+    }
+
+    private CompletableFuture<Boolean> offer(Envelope envelope) {
+        if (consumer == null) return null;
+        int depth = size.incrementAndGet();
+        if (depth > CAPACITY) {
+            size.decrementAndGet();
+            Log.w(TAG, "Queue full, rejecting " + envelope.describe());
+            return null;
+        }
+        for (Envelope queued : queue) queued.cancel(SUPERSEDED);
+        Envelope running = current;
+        if (running != null) running.cancel(SUPERSEDED);
+        queue.offer(envelope);
+        // A detach between the check above and the offer has already drained the queue.
+        // It clears consumer before polling, so one of us sees the other.
+        if (consumer == null && queue.remove(envelope)) {
+            size.decrementAndGet();
+            envelope.result.complete(false);
+            return null;
+        }
+        synchronized (this) {
+            if (depth > maxDepth) maxDepth = depth;
+        }
+        schedule();
+        return envelope.result;
+    }
+
+    public synchronized String describeStats() {
+        return String.format(Locale.US, "%d delivered, %d superseded, %d cancelled by window change, "
+                        + "%d expired; depth now %d max %d; wait avg %.2f ms, execute avg %.2f ms",
+                delivered, superseded, windowCancelled, expired, size.get(), maxDepth,
+                delivered == 0 ? 0 : queueNanos / 1e6 / delivered,
+                delivered == 0 ? 0 : executeNanos / 1e6 / delivered);
+    }
+
+    private void schedule() {
+        Handler handler = consumerHandler;
+        if (handler != null && drainScheduled.compareAndSet(false, true)) {
+            handler.post(drain);
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        Envelope envelope;
+        while ((envelope = queue.poll()) != null) {
+            size.decrementAndGet();
+            long dequeuedAt = SystemClock.elapsedRealtimeNanos();
+            if (envelope.cancelReason != 0 || dequeuedAt > envelope.deadline) {
+                synchronized (this) {
+                    if (envelope.cancelReason == 0) {
+                        expired++;
+                    } else if (envelope.cancelReason == WINDOW_CHANGED) {
+                        windowCancelled++;
+                    } else {
+                        superseded++;
+                    }
+                }
+                Log.d(TAG, "Dropped stale " + envelope.describe());
+                envelope.result.complete(false);
+                continue;
+            }
+
+            Consumer target = consumer;
+            boolean success = false;
+            CompletableFuture<Boolean> pending = null;
+            current = envelope;
+            try {
+                if (target != null && envelope.macro != null) {
+                    pending = target.run(envelope.macro);
+                } else {
+                    success = target != null && target.execute(envelope.command);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Command failed: " + envelope.describe(), e);
+            } finally {
+                // A macro stays current until its last step settles, so a new command supersedes it.
+                if (pending == null || pending.isDone()) current = null;
+            }
+            long doneAt = SystemClock.elapsedRealtimeNanos();
+            PipelineTrace trace = PipelineTrace.getInstance();
+            trace.record(PipelineTrace.Stage.QUEUE, envelope.enqueuedAt, dequeuedAt);
+            trace.record(PipelineTrace.Stage.EXECUTE, dequeuedAt, doneAt);
+            synchronized (this) {
+                delivered++;
+                queueNanos += dequeuedAt - envelope.enqueuedAt;
+                executeNanos += doneAt - dequeuedAt;
+            }
+            Log.d(TAG, envelope.describe() + " queue hop " + (dequeuedAt - envelope.enqueuedAt) / 1000
+                    + " us, execute " + (doneAt - dequeuedAt) / 1000 + " us");
+            if (pending != null) {
+                Envelope macro = envelope;
+                pending.whenComplete((ok, error) -> {
+                    // The runner finishes on this thread, so nothing else swaps current meanwhile.
+                    if (current == macro) current = null;
+                    macro.result.complete(error == null && ok);
+                });
+            } else {
+                envelope.result.complete(success);
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.humanhand.offlineassistant.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.LabelMatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What was said where, and what it resolved to: (foreground package, spoken
+ * target, resolved label, outcome). Used to break ties between similar labels
+ * and launcher matches in favour of what the user picked before, and to
+ * prefetch the likeliest target when an app comes to the foreground.
+ *
+ * On disk this is an append-only log, read back through a memory-mapped
+ * buffer and compacted to one record per target once it grows. In memory each
+ * label keeps a score that gains 1 per success, loses some per failure and
+ * halves every {@link #HALF_LIFE_MS}; the cache holds at most
+ * {@link #MAX_KEYS} spoken targets, least recently used out first.
+ */
+public final class CommandHistory {
+    private static final String TAG = "CommandHistory";
+    private static final String FILE_NAME = "command_history.log";
+    private static final int MAGIC = 0x48484331; // "HHC1"
+    /** Package key for OPEN_APP, which does not depend on the foreground app. */
+    static final String LAUNCHER = "";
+
+    private static final int MAX_KEYS = 256;
+    private static final int MAX_LABELS = 4;
+    private static final long HALF_LIFE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final float FAILURE_COST = 0.5f;
+    // A label used often enough gains up to this much over the matcher score.
+    private static final float MAX_BOOST = 0.2f;
+    private static final long COMPACT_BYTES = 256 * 1024;
+
+    private static final byte SUCCESS = 1;
+    private static final byte FAILURE = 0;
+
+    private static CommandHistory instance;
+
+    private static final class Stat {
+        final String label;
+        float score;
+        long lastUsed;
+
+        Stat(String label) {
+            this.label = label;
+        }
+
+        float scoreAt(long now) {
+            return score * (float) Math.pow(0.5, (double) Math.max(0, now - lastUsed) / HALF_LIFE_MS);
+        }
+    }
+
+    private static final class Target {
+        final String packageName;
+        final String spoken;
+        final List<Stat> stats = new ArrayList<>(2);
+
+        Target(String packageName, String spoken) {
+            this.packageName = packageName;
+            this.spoken = spoken;
+        }
+    }
+
+    private final File file;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "CommandHistory"));
+    private final Map<String, Target> targets = new LinkedHashMap<String, Target>(MAX_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Target> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+    private FileOutputStream log;
+    private long logBytes;
+
+    private int recorded;
+    private int hits;
+    private long hitNanos;
+    private long missNanos;
+    private int reranked;
+    private int prefetched;
+
+    public static synchronized CommandHistory getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommandHistory(context.getApplicationContext());
+            instance.executor.execute(instance::load);
+        }
+        return instance;
+    }
+
+    private CommandHistory(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Best of {@code matches} once each is boosted by its history, ignoring any
+     * scoring under {@code minScore} before the boost; null if none qualifies.
+     */
+    <T> LabelMatcher.Match<T> pick(String packageName, String spoken, List<LabelMatcher.Match<T>> matches, float minScore) {
+        LabelMatcher.Match<T> best = null;
+        float bestScore = 0f;
+        for (LabelMatcher.Match<T> match : matches) {
+            if (match.score < minScore) continue;
+            float score = match.score + boost(packageName, spoken, match.label);
+            if (best == null || score > bestScore) {
+                best = match;
+                bestScore = score;
+            }
+        }
+        if (best != null && best != matches.get(0)) {
+            synchronized (this) {
+                reranked++;
+            }
+        }
+        return best;
+    }
+
+    /** Extra score for {@code label} as the answer to {@code spoken} in {@code packageName}, in [0, MAX_BOOST). */
+    synchronized float boost(String packageName, String spoken, String label) {
+        Target target = targets.get(key(packageName, spoken));
+        if (target == null) return 0f;
+        for (Stat stat : target.stats) {
+            if (stat.label.equals(label)) {
+                float score = stat.scoreAt(System.currentTimeMillis());
+                return score <= 0f ? 0f : MAX_BOOST * score / (score + 1f);
+            }
+        }
+        return 0f;
+    }
+
+    /** The spoken target most often used in {@code packageName}, or null. */
+    synchronized String predict(String packageName) {
+        if (packageName == null) return null;
+        long now = System.currentTimeMillis();
+        String best = null;
+        float bestScore = 0f;
+        // Iterating does not count as access, so the LRU order is unchanged.
+        for (Target target : targets.values()) {
+            if (!target.packageName.equals(packageName)) continue;
+            for (Stat stat : target.stats) {
+                float score = stat.scoreAt(now);
+                if (score > bestScore) {
+                    best = target.spoken;
+                    bestScore = score;
+                }
+            }
+        }
+        return best;
+    }
+
+    synchronized void notePrefetch() {
+        prefetched++;
+    }
+
+    /**
+     * Records one resolved command. {@code resolveNanos} is how long resolution
+     * took, split in the stats by whether history already knew the target.
+     */
+    void record(String packageName, String spoken, String label, boolean success, long resolveNanos) {
+        if (packageName == null || label == null) return;
+        long now = System.currentTimeMillis();
+        byte outcome = success ? SUCCESS : FAILURE;
+        // Applied on the executor, so a record made while loading lands after the replayed log.
+        executor.execute(() -> {
+            synchronized (this) {
+                recorded++;
+                if (targets.containsKey(key(packageName, spoken))) {
+                    hits++;
+                    hitNanos += resolveNanos;
+                } else {
+                    missNanos += resolveNanos;
+                }
+                apply(packageName, spoken, label, outcome, 1f, now);
+            }
+            append(packageName, spoken, label, outcome, 1f, now);
+        });
+    }
+
+    public synchronized String describeStats() {
+        int misses = recorded - hits;
+        return String.format(Locale.US, "%d targets; hit rate %.0f%% (%d/%d); "
+                        + "resolve avg %.1f ms with history, %.1f ms without; %d reranked, %d prefetched",
+                targets.size(), recorded == 0 ? 0 : 100.0 * hits / recorded, hits, recorded,
+                hits == 0 ? 0 : hitNanos / 1e6 / hits, misses == 0 ? 0 : missNanos / 1e6 / misses,
+                reranked, prefetched);
+    }
+
+    private void apply(String packageName, String spoken, String label, byte outcome, float weight, long time) {
+        String key = key(packageName, spoken);
+        Target target = targets.get(key);
+        if (target == null) {
+            target = new Target(packageName, spoken);
+            targets.put(key, target);
+        }
+        Stat stat = null;
+        for (Stat s : target.stats) {
+            if (s.label.equals(label)) stat = s;
+        }
+        if (stat == null) {
+            if (target.stats.size() == MAX_LABELS) target.stats.remove(weakest(target, time));
+            stat = new Stat(label);
+            target.stats.add(stat);
+        }
+        stat.score = Math.max(0f, stat.scoreAt(time) + (outcome == SUCCESS ? weight : -FAILURE_COST * weight));
+        stat.lastUsed = Math.max(stat.lastUsed, time);
+    }
+
+    private static int weakest(Target target, long now) {
+        int weakest = 0;
+        for (int i = 1; i < target.stats.size(); i++) {
+            if (target.stats.get(i).scoreAt(now) < target.stats.get(weakest).scoreAt(now)) weakest = i;
+        }
+        return weakest;
+    }
+
+    // Executor thread only.
+    private void load() {
+        boolean clean = false;
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int count = 0;
+                if (buffer.remaining() >= 4 && buffer.getInt() == MAGIC) {
+                    synchronized (this) {
+                        // A crash can leave a torn record at the end; everything before it is good.
+                        while (readRecord(buffer)) count++;
+                    }
+                }
+                logBytes = buffer.position();
+                clean = logBytes == channel.size();
+                Log.d(TAG, "Loaded " + count + " records, " + targets.size() + " targets");
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load history", e);
+            }
+        }
+        if (!clean || logBytes > COMPACT_BYTES) {
+            compact();
+            return;
+        }
+        try {
+            log = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open history", e);
+        }
+    }
+
+    private boolean readRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < 1 + 8 + 4) return false;
+        int start = buffer.position();
+        byte outcome = buffer.get();
+        long time = buffer.getLong();
+        float weight = buffer.getFloat();
+        String packageName = readString(buffer);
+        String spoken = packageName != null ? readString(buffer) : null;
+        String label = spoken != null ? readString(buffer) : null;
+        if (label == null) {
+            buffer.position(start);
+            return false;
+        }
+        apply(packageName, spoken, label, outcome, weight, time);
+        return true;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        if (buffer.remaining() < 2) return null;
+        int length = buffer.getShort() & 0xffff;
+        if (buffer.remaining() < length) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Executor thread only.
+    private void append(String packageName, String spoken, String label, byte outcome, float weight, long time) {
+        try {
+            if (log == null) return;
+            byte[] record = encode(packageName, spoken, label, outcome, weight, time);
+            log.write(record);
+            logBytes += record.length;
+            if (logBytes > COMPACT_BYTES) compact();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append history", e);
+        }
+    }
+
+    // Executor thread only: rewrites the log as one record per label, then keeps appending to it.
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            if (log != null) log.close();
+            log = null;
+            long bytes;
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+                bytes = 4;
+                for (byte[] record : snapshot()) {
+                    out.write(record);
+                    bytes += record.length;
+                }
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) throw new IOException("Rename failed");
+            logBytes = bytes;
+            log = new FileOutputStream(file, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact history", e);
+        }
+    }
+
+    private synchronized List<byte[]> snapshot() {
+        List<byte[]> records = new ArrayList<>();
+        // Eldest first, so replaying the log rebuilds the same LRU order.
+        for (Target target : targets.values()) {
+            for (Stat stat : target.stats) {
+                if (stat.score <= 0f) continue;
+                records.add(encode(target.packageName, target.spoken, stat.label, SUCCESS, stat.score, stat.lastUsed));
+            }
+        }
+        return records;
+    }
+
+    private static byte[] encode(String packageName, String spoken, String label, byte outcome, float weight, long time) {
+        byte[] p = bytes(packageName);
+        byte[] s = bytes(spoken);
+        byte[] l = bytes(label);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + 6 + p.length + s.length + l.length);
+        buffer.put(outcome).putLong(time).putFloat(weight);
+        buffer.putShort((short) p.length).put(p);
+        buffer.putShort((short) s.length).put(s);
+        buffer.putShort((short) l.length).put(l);
+        return buffer.array();
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        // Labels are short; anything past the length prefix's range is cut.
+        return bytes.length <= 0xffff ? bytes : Arrays.copyOf(bytes, 0xffff);
+    }
+
+    private static String key(String packageName, String spoken) {
+        return packageName + '\n' + ResolvedTarget.normalize(spoken);
+    }
+}
@@ -8,59 +8,171 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.media.ToneGenerator;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import com.humanhand.offlineassistant.R;
 import com.humanhand.offlineassistant.ui.FloatingMicOverlay;
+import com.humanhand.offlineassistant.voice.CommandMacro;
 import com.humanhand.offlineassistant.voice.CommandParser;
+import com.humanhand.offlineassistant.voice.ConfirmationPolicy;
+import com.humanhand.offlineassistant.voice.ConfirmationText;
+import com.humanhand.offlineassistant.voice.HypothesisReader;
+import com.humanhand.offlineassistant.voice.HypothesisRescorer;
 import com.humanhand.offlineassistant.voice.VoiceRecognitionManager;
+import com.humanhand.offlineassistant.voice.WakeWordSpotter;
 
-import org.json.JSONObject;
 import org.vosk.android.RecognitionListener;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 public class ForegroundVoiceService extends Service implements RecognitionListener, TextToSpeech.OnInitListener {
     private static final String TAG = "ForegroundVoiceService";
     private static final String CHANNEL_ID = "VoiceAssistantChannel";
+    private static final String PROMPT_UTTERANCE = "prompt";
+    private static final String SPEECH_UTTERANCE = "confirmation";
+    private static final String UNKNOWN_MACRO = "I don't know a macro called";
+    private static final String SAVED_MACRO = "Saved macro";
+    private static final String MISSED_MACRO_NAME = "Sorry, I did not catch the name.";
+    // What command grammar decoding yields for a word outside it.
+    private static final String UNKNOWN_WORD = "[unk]";
+    // Recorded once at startup; the confirmation prompt's pieces come from ConfirmationText.
+    private static final String[] FIXED_PROMPTS = {
+            "How can I help?", "Stopped listening.", "Action cancelled.", "Done.", "Sorry, that did not work.",
+            "Please enable the accessibility service first.", UNKNOWN_MACRO, SAVED_MACRO, MISSED_MACRO_NAME,
+    };
+    private static final String POLICY_PREFS = "confirmation_policy";
+    private static final int EARCON_MS = 120;
+    // After the wake phrase, how long silence keeps the full recognizer running.
+    private static final long WAKE_LISTEN_MS = 8000;
     private VoiceRecognitionManager voiceManager;
     private TextToSpeech tts;
+    private PromptCache prompts;
     private CommandParser.Command pendingCommand;
+    private CommandMacro pendingMacro;
+    // Most recent spoken sequence, the one "save macro <name>" stores.
+    private CommandMacro lastMacro;
+    // The next result is a macro name, decoded free-form because new names are outside the grammar.
+    private boolean awaitingMacroName;
+    private ConfirmationPolicy.Tier pendingTier;
+    private final ConfirmationPolicy policy = new ConfirmationPolicy();
+    // Main thread only: both recognizer callbacks arrive there.
+    private final HypothesisReader hypothesisReader = new HypothesisReader();
+    private final HypothesisRescorer rescorer =
+            new HypothesisRescorer(WakeWordSpotter.WAKE_PHRASE, ForegroundVoiceService::scoreTarget);
+    private ToneGenerator earcon;
     private FloatingMicOverlay micOverlay;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     private boolean isListening = false;
+    // Listening was started by the wake phrase, so it falls back to standby by itself.
+    private boolean wakeTriggered;
+    private final Runnable wakeTimeout = this::returnToStandby;
+    // What the recognizer is doing; warming and running commands show over it.
+    private FloatingMicOverlay.State listenState = FloatingMicOverlay.State.IDLE;
+    private int executing;
+
+    private final VoiceRecognitionManager.MeterListener meter = new VoiceRecognitionManager.MeterListener() {
+        @Override
+        public void onLevel(int level) {
+            if (micOverlay != null) micOverlay.setLevel(level);
+        }
+
+        @Override
+        public void onProcessing() {
+            if (listenState == FloatingMicOverlay.State.LISTENING) setListenState(FloatingMicOverlay.State.PROCESSING);
+        }
+    };
+
+    // Trace timestamps; the prompt ones are written from the TTS binder thread.
+    private final StringBuilder lastPartial = new StringBuilder();
+    private long lastPartialAt;
+    private long commandAt;
+    private volatile long promptRequestedAt;
+    private volatile long promptStartedAt;
+    private volatile long promptDoneAt;
+
+    private final UtteranceProgressListener promptProgress = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            if (!PROMPT_UTTERANCE.equals(utteranceId)) return;
+            promptStartedAt = PipelineTrace.now();
+            PipelineTrace.getInstance().record(PipelineTrace.Stage.PROMPT_START, promptRequestedAt, promptStartedAt);
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            if (!PROMPT_UTTERANCE.equals(utteranceId)) return;
+            promptDoneAt = PipelineTrace.now();
+            PipelineTrace.getInstance().record(PipelineTrace.Stage.PROMPT_SPEAK, promptStartedAt, promptDoneAt);
+        }
+
+        @Override
+        public void onError(String utteranceId) {}
+    };
 
     private final BroadcastReceiver toggleReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (isListening) {
-                voiceManager.stopListening();
-                isListening = false;
-                if (micOverlay != null) micOverlay.stopBlinking();
+                returnToStandby();
                 speak("Stopped listening.");
             } else {
+                mainHandler.removeCallbacks(wakeTimeout);
+                wakeTriggered = false;
                 voiceManager.startListening(ForegroundVoiceService.this);
                 isListening = true;
-                if (micOverlay != null) micOverlay.startBlinking();
+                setListenState(FloatingMicOverlay.State.LISTENING);
                 speak("How can I help?");
             }
         }
     };
 
+    private final BroadcastReceiver measureBlinkReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (micOverlay != null) micOverlay.measureBlink();
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         createNotificationChannel();
         voiceManager = new VoiceRecognitionManager(this);
+        voiceManager.setMeterListener(meter);
+        voiceManager.startStandby(this, this::onWake);
+        voiceManager.setStateListener(this::refreshOverlay);
         tts = new TextToSpeech(this, this);
+        prompts = new PromptCache(this, tts, promptProgress);
+        policy.applyOverrides(getSharedPreferences(POLICY_PREFS, MODE_PRIVATE).getAll());
+        try {
+            earcon = new ToneGenerator(AudioManager.STREAM_NOTIFICATION, 80);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Earcon unavailable, medium-risk commands will be spoken", e);
+        }
         micOverlay = new FloatingMicOverlay(this);
         micOverlay.show();
+        refreshOverlay();
         registerReceiver(toggleReceiver, new android.content.IntentFilter("com.humanhand.TOGGLE_LISTENING"));
+        registerReceiver(measureBlinkReceiver, new android.content.IntentFilter("com.humanhand.MEASURE_BLINK"));
+        // Feed app labels and saved macro names into the command grammar before the first command.
+        LauncherIndex.getInstance(this);
+        MacroStore.getInstance(this);
     }
 
     @Override
@@ -88,79 +200,298 @@ public class ForegroundVoiceService extends Service implements RecognitionListen
 
     @Override
     public void onPartialResult(String hypothesis) {
-        Log.d(TAG, "Partial: " + hypothesis);
+        // Partials arrive several times a second; nothing here allocates unless the text changed.
+        try {
+            hypothesisReader.read(hypothesis);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to parse partial JSON", e);
+            return;
+        }
+        HypothesisReader.Text partial = hypothesisReader.partial();
+        partial.skipPast(WakeWordSpotter.WAKE_PHRASE);
+        if (partial.contentEquals(lastPartial)) return;
+
+        lastPartial.setLength(0);
+        lastPartial.append(partial);
+        lastPartialAt = PipelineTrace.now();
+        if (wakeTriggered) {
+            mainHandler.removeCallbacks(wakeTimeout);
+            mainHandler.postDelayed(wakeTimeout, WAKE_LISTEN_MS);
+        }
+        if (awaitingMacroName) return;
+        if (hasPending() && (partial.contains("confirm") || partial.contains("cancel"))) {
+            // Barge-in: the answer is already known, stop the prompt mid-sentence.
+            if (prompts != null) prompts.stop();
+        } else if (partial.length() > 0) {
+            SpeculativeResolver.getInstance().onPartial(partial);
+        }
     }
 
     @Override
     public void onResult(String hypothesis) {
         Log.d(TAG, "Result: " + hypothesis);
+        if (listenState == FloatingMicOverlay.State.PROCESSING) setListenState(FloatingMicOverlay.State.LISTENING);
         try {
-            JSONObject json = new JSONObject(hypothesis);
-            String text = json.optString("text", "");
+            hypothesisReader.read(hypothesis);
+            HypothesisReader.Text result = hypothesisReader.text();
+            result.skipPast(WakeWordSpotter.WAKE_PHRASE);
+            String text = result.toString();
+            long resultAt = PipelineTrace.now();
+            if (lastPartial.length() > 0) {
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.DECODE_TAIL, lastPartialAt, resultAt);
+                lastPartial.setLength(0);
+            }
             
             if (text.isEmpty()) return;
 
-            if (text.contains("confirm")) {
+            if (awaitingMacroName) {
+                finishMacroName(text);
+            } else if (text.contains("confirm")) {
+                if (hasPending()) {
+                    PipelineTrace.getInstance().record(PipelineTrace.Stage.CONFIRM_WAIT, promptDoneAt, resultAt);
+                }
                 executePendingCommand();
             } else if (text.contains("cancel")) {
                 pendingCommand = null;
+                pendingMacro = null;
+                SpeculativeResolver.getInstance().discard();
                 speak("Action cancelled.");
             } else {
-                CommandParser.Command cmd = CommandParser.parse(text);
-                if (cmd.action != CommandParser.ActionType.UNKNOWN) {
-                    requestConfirmation(cmd);
+                PipelineTrace.getInstance().beginUtterance();
+                commandAt = resultAt;
+                int pick = rescorer.pick(hypothesisReader);
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.RESCORE, resultAt);
+                if (pick > 0) {
+                    HypothesisReader.Text alternative = hypothesisReader.alternative(pick);
+                    alternative.skipPast(WakeWordSpotter.WAKE_PHRASE);
+                    text = alternative.toString();
+                    Log.d(TAG, "Rescored to \"" + text + "\", margin " + rescorer.margin());
+                }
+                // A close call between two different commands is always read back first.
+                boolean doubtful = pick >= 0 && rescorer.isDoubtful();
+                CommandMacro macro = CommandMacro.compile(null, text);
+                if (macro != null && macro.steps.size() > 1) {
+                    PipelineTrace.getInstance().record(PipelineTrace.Stage.PARSE, resultAt);
+                    lastMacro = macro;
+                    SpeculativeResolver.getInstance().onFinal(macro.steps.get(0));
+                    dispatch(null, macro, doubtful);
+                    if (wakeTriggered && !hasPending()) returnToStandby();
+                    return;
+                }
+                CommandParser.Command cmd = macro != null ? macro.steps.get(0) : CommandParser.parse(text);
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.PARSE, resultAt);
+                SpeculativeResolver.getInstance().onFinal(cmd);
+                switch (cmd.action) {
+                    case UNKNOWN:
+                        break;
+                    case RUN_MACRO:
+                        runMacro(cmd.target, doubtful);
+                        break;
+                    case SAVE_MACRO:
+                        saveMacro(cmd.target);
+                        break;
+                    default:
+                        dispatch(cmd, null, doubtful);
                 }
             }
+            if (wakeTriggered && !hasPending() && !awaitingMacroName) returnToStandby();
         } catch (Exception e) {
             Log.e(TAG, "Failed to parse result JSON", e);
         }
     }
 
-    private void requestConfirmation(CommandParser.Command cmd) {
-        this.pendingCommand = cmd;
-        String actionText = "";
-        switch (cmd.action) {
-            case OPEN_APP: actionText = "open " + cmd.target; break;
-            case CLICK: actionText = "click " + cmd.target; break;
-            case SCROLL: actionText = "scroll " + cmd.direction; break;
-            case GO_BACK: actionText = "go back"; break;
-            case HOME: actionText = "go home"; break;
-            case RECENTS: actionText = "show recent apps"; break;
-            case TYPE: actionText = "type: " + cmd.target; break;
-            case CALL: actionText = "call " + cmd.target; break;
-            case TOGGLE_WIFI: actionText = "toggle WiFi"; break;
-            case TOGGLE_FLASHLIGHT: actionText = "toggle Flashlight"; break;
-            case TOGGLE_SPEAKER: actionText = "toggle Speaker"; break;
-            case SAMSUNG_OPTIMIZE: actionText = "optimize your phone"; break;
-            case SAMSUNG_BATTERY: actionText = "check battery settings"; break;
+    private void onWake() {
+        isListening = true;
+        wakeTriggered = true;
+        setListenState(FloatingMicOverlay.State.LISTENING);
+        // A tone rather than speech: the user is usually still talking.
+        if (earcon != null) earcon.startTone(ToneGenerator.TONE_PROP_ACK, EARCON_MS);
+        mainHandler.postDelayed(wakeTimeout, WAKE_LISTEN_MS);
+    }
+
+    private void returnToStandby() {
+        mainHandler.removeCallbacks(wakeTimeout);
+        if (awaitingMacroName) {
+            awaitingMacroName = false;
+            voiceManager.setMode(VoiceRecognitionManager.Mode.COMMAND);
+        }
+        wakeTriggered = false;
+        isListening = false;
+        setListenState(FloatingMicOverlay.State.IDLE);
+        voiceManager.startStandby(this, this::onWake);
+    }
+
+    private void setListenState(FloatingMicOverlay.State state) {
+        listenState = state;
+        refreshOverlay();
+    }
+
+    private void refreshOverlay() {
+        if (micOverlay == null) return;
+        FloatingMicOverlay.State state = listenState;
+        if (!voiceManager.isReady()) {
+            // Unloaded under memory pressure: plain button until a tap reloads.
+            state = voiceManager.isLoading() ? FloatingMicOverlay.State.WARMING : FloatingMicOverlay.State.IDLE;
+        } else if (executing > 0) {
+            state = FloatingMicOverlay.State.EXECUTING;
+        }
+        micOverlay.setState(state);
+    }
+
+    private boolean hasPending() {
+        return pendingCommand != null || pendingMacro != null;
+    }
+
+    private void runMacro(String name, boolean doubtful) {
+        CommandMacro macro = MacroStore.getInstance(this).get(name);
+        if (macro == null) {
+            speak(UNKNOWN_MACRO + " " + name + ".", Arrays.asList(UNKNOWN_MACRO, name));
+        } else {
+            dispatch(null, macro, doubtful);
         }
-        speak("I am about to " + actionText + ". Should I proceed? Say Confirm or Cancel.");
+    }
+
+    private void saveMacro(String name) {
+        if (lastMacro == null) {
+            speak("Say a command with then first, for example open settings then click battery.");
+            return;
+        }
+        if (name.contains(UNKNOWN_WORD)) {
+            // A new name is outside the command grammar: listen for it again with the full vocabulary.
+            awaitingMacroName = true;
+            voiceManager.setMode(VoiceRecognitionManager.Mode.DICTATION);
+            voiceManager.startListening(this);
+            // A tone rather than speech, which the free-form decoder would take as the name.
+            if (earcon != null) earcon.startTone(ToneGenerator.TONE_PROP_ACK, EARCON_MS);
+            return;
+        }
+        MacroStore.getInstance(this).save(name, lastMacro);
+        speak(SAVED_MACRO + " " + name + ".", Arrays.asList(SAVED_MACRO, name));
+    }
+
+    private void finishMacroName(String text) {
+        awaitingMacroName = false;
+        voiceManager.setMode(VoiceRecognitionManager.Mode.COMMAND);
+        String name = text.replace(UNKNOWN_WORD, " ").trim().replaceAll("\\s+", " ");
+        if (name.isEmpty() || name.equals("cancel")) {
+            speak(name.isEmpty() ? MISSED_MACRO_NAME : "Action cancelled.");
+        } else {
+            saveMacro(name);
+        }
+        // Standby restores command decoding by itself; a tapped session has to be restarted.
+        if (!wakeTriggered) voiceManager.startListening(this);
+    }
+
+    /**
+     * Exactly one of {@code cmd} and {@code macro} is non-null. A
+     * {@code doubtful} recognition is confirmed by voice whatever its tier.
+     */
+    private void dispatch(CommandParser.Command cmd, CommandMacro macro, boolean doubtful) {
+        pendingCommand = cmd;
+        pendingMacro = macro;
+        pendingTier = macro != null ? policy.classify(macro.steps) : policy.classify(cmd);
+        if (doubtful || pendingTier == ConfirmationPolicy.Tier.MEDIUM && earcon == null) {
+            pendingTier = ConfirmationPolicy.Tier.HIGH;
+        }
+        switch (pendingTier) {
+            case LOW:
+                executePendingCommand();
+                break;
+            case MEDIUM:
+                if (prompts != null) prompts.stop();
+                earcon.startTone(ToneGenerator.TONE_PROP_PROMPT, EARCON_MS);
+                promptDoneAt = PipelineTrace.now();
+                break;
+            case HIGH:
+                requestConfirmation(macro != null ? ConfirmationText.describe(macro) : ConfirmationText.describe(cmd));
+                break;
+        }
+    }
+
+    private void requestConfirmation(String actionText) {
+        promptRequestedAt = PipelineTrace.now();
+        promptDoneAt = 0;
+        // The prompt no longer names the answer words: with barge-in enabled, the
+        // microphone hearing our own "confirm" would execute the command.
+        prompts.speak(ConfirmationText.prompt(actionText), ConfirmationText.promptSegments(actionText),
+                PROMPT_UTTERANCE);
     }
 
     private void executePendingCommand() {
-        if (pendingCommand != null) {
-            // Send broadcast to Accessibility Service
-            Intent intent = new Intent("com.humanhand.ACTION_COMMAND");
-            intent.putExtra("action", pendingCommand.action.name());
-            if (pendingCommand.target != null) intent.putExtra("target", pendingCommand.target);
-            if (pendingCommand.direction != null) intent.putExtra("direction", pendingCommand.direction);
-            sendBroadcast(intent);
-            
-            speak("Executing " + pendingCommand.action.name().replace("_", " ").toLowerCase());
+        if (!hasPending()) return;
+
+        PipelineTrace.getInstance().record(dispatchStage(pendingTier), commandAt);
+        CommandBus bus = CommandBus.getInstance();
+        CompletableFuture<Boolean> result = pendingMacro != null ? bus.submit(pendingMacro) : bus.submit(pendingCommand);
+        if (result == null && pendingMacro != null) {
+            // Macros need the pipeline inside the accessibility service; a broadcast cannot carry them.
+            pendingMacro = null;
+            speak("Please enable the accessibility service first.");
+            return;
+        }
+        if (result != null) {
+            long startedAt = commandAt;
+            // Low-risk actions speak for themselves; only report when they fail.
+            boolean quiet = pendingTier == ConfirmationPolicy.Tier.LOW;
+            executing++;
+            refreshOverlay();
+            result.whenComplete((success, error) -> mainHandler.post(() -> {
+                executing--;
+                refreshOverlay();
+            }));
+            result.thenAccept(success -> {
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.TOTAL, startedAt);
+                if (!success) {
+                    mainHandler.post(() -> speak("Sorry, that did not work."));
+                } else if (!quiet) {
+                    mainHandler.post(() -> speak("Done."));
+                }
+            });
             pendingCommand = null;
+            pendingMacro = null;
+            return;
         }
+
+        // Accessibility service not connected or bus full: send broadcast to Accessibility Service
+        Intent intent = new Intent("com.humanhand.ACTION_COMMAND");
+        intent.putExtra("action", pendingCommand.action.name());
+        if (pendingCommand.target != null) intent.putExtra("target", pendingCommand.target);
+        if (pendingCommand.direction != null) intent.putExtra("direction", pendingCommand.direction);
+        sendBroadcast(intent);
+
+        speak("Executing " + pendingCommand.action.name().replace("_", " ").toLowerCase());
+        pendingCommand = null;
     }
 
-    private void speak(String text) {
-        if (tts != null) {
-            tts.speak(text, TextToSpeech.QUEUE_FLUSH, null, "confirmation");
+    private static PipelineTrace.Stage dispatchStage(ConfirmationPolicy.Tier tier) {
+        switch (tier) {
+            case LOW: return PipelineTrace.Stage.DISPATCH_LOW;
+            case MEDIUM: return PipelineTrace.Stage.DISPATCH_MEDIUM;
+            default: return PipelineTrace.Stage.DISPATCH_HIGH;
         }
     }
 
+    private static float scoreTarget(CommandParser.ActionType action, String target) {
+        HumanHandAccessibilityService service = HumanHandAccessibilityService.getInstance();
+        return service != null ? service.scoreTarget(action, target) : HypothesisRescorer.TargetScorer.UNKNOWN;
+    }
+
+    private void speak(String text) {
+        speak(text, Collections.singletonList(text));
+    }
+
+    /** {@code segments} spell out {@code text} in pieces that can be cached and stitched. */
+    private void speak(String text, List<String> segments) {
+        if (prompts != null) prompts.speak(text, segments, SPEECH_UTTERANCE);
+    }
+
     @Override
     public void onInit(int status) {
         if (status == TextToSpeech.SUCCESS) {
             tts.setLanguage(Locale.US);
+            List<String> phrases = new ArrayList<>(Arrays.asList(FIXED_PROMPTS));
+            phrases.addAll(ConfirmationText.fixedSegments());
+            prompts.onReady(phrases);
         }
     }
 
@@ -177,12 +508,31 @@ public class ForegroundVoiceService extends Service implements RecognitionListen
     @Override
     public void onTimeout() {}
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (voiceManager != null) voiceManager.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (voiceManager != null) voiceManager.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     @Override
     public void onDestroy() {
+        mainHandler.removeCallbacks(wakeTimeout);
         if (micOverlay != null) {
+            Log.d(TAG, "Mic overlay: " + FloatingMicOverlay.describeStats());
             micOverlay.hide();
         }
         if (voiceManager != null) voiceManager.destroy();
+        if (earcon != null) earcon.release();
+        if (prompts != null) {
+            Log.d(TAG, "Prompts: " + prompts.describeStats());
+            prompts.release();
+        }
         if (tts != null) {
             tts.stop();
             tts.shutdown();
@@ -190,6 +540,7 @@ public class ForegroundVoiceService extends Service implements RecognitionListen
         if (toggleReceiver != null) {
             unregisterReceiver(toggleReceiver);
         }
+        unregisterReceiver(measureBlinkReceiver);
         super.onDestroy();
     }
 
@@ -0,0 +1,247 @@
+package com.humanhand.offlineassistant.service;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.os.Handler;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Serialises gestures through {@link AccessibilityService.GestureResultCallback}:
+ * only one gesture is in flight and the next starts the moment the previous
+ * one completes, with no fixed delays. Continuous scrolling keeps the finger
+ * down and extends the drag with continued strokes until {@link #stop()}.
+ *
+ * Must be used from the handler's thread; gesture callbacks are delivered there too.
+ */
+final class GestureEngine {
+    private static final String TAG = "GestureEngine";
+    private static final long TAP_MS = 50;
+    // Swipes run at a fixed finger speed, so short swipes finish sooner than long ones.
+    private static final float SWIPE_PX_PER_MS = 3f;
+    private static final long MIN_SWIPE_MS = 100;
+    private static final long MAX_SWIPE_MS = 500;
+    private static final int DRAG_SEGMENTS = 8;
+    private static final long SEGMENT_MS = 100;
+    private static final long LIFT_MS = 10;
+
+    private final AccessibilityService service;
+    private final ScreenIndex screenIndex;
+    private final Handler handler;
+    private final ArrayDeque<GestureDescription> queue = new ArrayDeque<>();
+    private final GestureCallback callback = new GestureCallback();
+    private boolean inFlight;
+    private long dispatchedAt;
+
+    // Continuous scroll state: the stroke being extended and where along the drag we are.
+    private String continuousDirection;
+    private GestureDescription.StrokeDescription dragStroke;
+    private int dragSegment;
+    private final int[] drag = new int[4];
+
+    private int dispatched;
+    private int completed;
+    private int cancelled;
+    private long completionNanos;
+    private long firstDispatchAt;
+    private long lastCompletionAt;
+
+    GestureEngine(AccessibilityService service, ScreenIndex screenIndex, Handler handler) {
+        this.service = service;
+        this.screenIndex = screenIndex;
+        this.handler = handler;
+    }
+
+    boolean tap(int x, int y) {
+        stopContinuous();
+        Path path = new Path();
+        path.moveTo(x, y);
+        return enqueue(stroke(new GestureDescription.StrokeDescription(path, 0, TAP_MS)));
+    }
+
+    /** Scrolls one page, using the scrollable node's own action when there is one. */
+    boolean scroll(String direction) {
+        stopContinuous();
+        if (scrollNode(direction)) return true;
+        int[] swipe = new int[4];
+        swipeBounds(direction, swipe);
+        Path path = new Path();
+        path.moveTo(swipe[0], swipe[1]);
+        path.lineTo(swipe[2], swipe[3]);
+        float distance = Math.abs(swipe[2] - swipe[0]) + Math.abs(swipe[3] - swipe[1]);
+        long duration = Math.max(MIN_SWIPE_MS, Math.min(MAX_SWIPE_MS, (long) (distance / SWIPE_PX_PER_MS)));
+        return enqueue(stroke(new GestureDescription.StrokeDescription(path, 0, duration)));
+    }
+
+    /** Scrolls until {@link #stop()}: one long drag per screen, extended segment by segment. */
+    void startContinuousScroll(String direction) {
+        queue.clear();
+        if (direction.equals(continuousDirection)) return;
+        boolean idle = continuousDirection == null && !inFlight;
+        continuousDirection = direction;
+        dragStroke = null;
+        dragSegment = 0;
+        // If a gesture is in flight, the drag starts from its completion callback.
+        if (idle) nextDragSegment();
+    }
+
+    /** Ends continuous scrolling and drops queued gestures. */
+    void stop() {
+        queue.clear();
+        stopContinuous();
+    }
+
+    boolean isScrolling() {
+        return continuousDirection != null;
+    }
+
+    String describeStats() {
+        double seconds = (lastCompletionAt - firstDispatchAt) / 1e9;
+        return String.format(Locale.US, "%d dispatched, %d completed, %d cancelled; "
+                        + "completion avg %.1f ms; %.1f gestures/s",
+                dispatched, completed, cancelled,
+                completed == 0 ? 0 : completionNanos / 1e6 / completed,
+                seconds <= 0 ? 0 : completed / seconds);
+    }
+
+    private void stopContinuous() {
+        continuousDirection = null;
+    }
+
+    private boolean enqueue(GestureDescription gesture) {
+        if (inFlight) {
+            queue.add(gesture);
+            return true;
+        }
+        return dispatch(gesture);
+    }
+
+    private boolean dispatch(GestureDescription gesture) {
+        dispatchedAt = PipelineTrace.now();
+        if (firstDispatchAt == 0) firstDispatchAt = dispatchedAt;
+        dispatched++;
+        inFlight = service.dispatchGesture(gesture, callback, handler);
+        if (!inFlight) {
+            cancelled++;
+            Log.w(TAG, "Gesture rejected by the system");
+        }
+        return inFlight;
+    }
+
+    private void onFinished(boolean success) {
+        long now = PipelineTrace.now();
+        inFlight = false;
+        if (success) {
+            completed++;
+            completionNanos += now - dispatchedAt;
+            lastCompletionAt = now;
+            PipelineTrace.getInstance().record(PipelineTrace.Stage.GESTURE, dispatchedAt, now);
+        } else {
+            cancelled++;
+            // A cancelled stroke cannot be continued; start the next drag afresh.
+            dragStroke = null;
+            dragSegment = 0;
+        }
+
+        if (continuousDirection != null) {
+            nextDragSegment();
+        } else if (dragStroke != null && dragStroke.willContinue()) {
+            liftFinger();
+        } else if (!queue.isEmpty()) {
+            dispatch(queue.poll());
+        }
+    }
+
+    private void nextDragSegment() {
+        if (dragStroke == null) {
+            swipeBounds(continuousDirection, drag);
+            dragSegment = 0;
+        }
+        Path path = new Path();
+        path.moveTo(dragPoint(drag[0], drag[2], dragSegment), dragPoint(drag[1], drag[3], dragSegment));
+        path.lineTo(dragPoint(drag[0], drag[2], dragSegment + 1), dragPoint(drag[1], drag[3], dragSegment + 1));
+        dragSegment++;
+        boolean more = dragSegment < DRAG_SEGMENTS;
+        dragStroke = dragStroke == null
+                ? new GestureDescription.StrokeDescription(path, 0, SEGMENT_MS, more)
+                : dragStroke.continueStroke(path, 0, SEGMENT_MS, more);
+        GestureDescription gesture = stroke(dragStroke);
+        if (!more) dragStroke = null;
+        dispatch(gesture);
+    }
+
+    // A continued stroke leaves the finger down; end it where it is.
+    private void liftFinger() {
+        Path path = new Path();
+        path.moveTo(dragPoint(drag[0], drag[2], dragSegment), dragPoint(drag[1], drag[3], dragSegment));
+        GestureDescription.StrokeDescription last = dragStroke.continueStroke(path, 0, LIFT_MS, false);
+        dragStroke = null;
+        dispatch(stroke(last));
+    }
+
+    private static int dragPoint(int from, int to, int segment) {
+        return from + (to - from) * segment / DRAG_SEGMENTS;
+    }
+
+    // Lists often offer only forward and backward, so vertical scrolls fall back to those.
+    private boolean scrollNode(String direction) {
+        switch (direction == null ? "down" : direction.toLowerCase(Locale.ROOT)) {
+            case "down":
+                return scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_DOWN)
+                        || scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_FORWARD);
+            case "up":
+                return scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_UP)
+                        || scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_BACKWARD);
+            case "left":
+                return scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_LEFT);
+            case "right":
+                return scrollNode(AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_RIGHT);
+            default:
+                return false;
+        }
+    }
+
+    private boolean scrollNode(AccessibilityNodeInfo.AccessibilityAction action) {
+        AccessibilityNodeInfo scrollable = screenIndex.largestScrollable(action);
+        if (scrollable == null) return false;
+        boolean scrolled = scrollable.performAction(action.getId());
+        scrollable.recycle();
+        return scrolled;
+    }
+
+    // Fills {startX, startY, endX, endY} for a finger movement that scrolls content in `direction`.
+    private void swipeBounds(String direction, int[] out) {
+        DisplayMetrics metrics = service.getResources().getDisplayMetrics();
+        int w = metrics.widthPixels;
+        int h = metrics.heightPixels;
+        out[0] = out[2] = w / 2;
+        out[1] = out[3] = h / 2;
+        switch (direction == null ? "down" : direction.toLowerCase(Locale.ROOT)) {
+            case "up": out[1] = (int) (h * 0.2); out[3] = (int) (h * 0.8); break;
+            case "down": out[1] = (int) (h * 0.8); out[3] = (int) (h * 0.2); break;
+            case "left": out[0] = (int) (w * 0.2); out[2] = (int) (w * 0.8); break;
+            case "right": out[0] = (int) (w * 0.8); out[2] = (int) (w * 0.2); break;
+        }
+    }
+
+    private static GestureDescription stroke(GestureDescription.StrokeDescription stroke) {
+        return new GestureDescription.Builder().addStroke(stroke).build();
+    }
+
+    private final class GestureCallback extends AccessibilityService.GestureResultCallback {
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            onFinished(true);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            onFinished(false);
+        }
+    }
+}
@@ -1,14 +1,12 @@
 package com.humanhand.offlineassistant.service;
 
 import android.accessibilityservice.AccessibilityService;
-import android.accessibilityservice.GestureDescription;
 import android.os.Build;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Color;
-import android.graphics.Path;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.hardware.camera2.CameraManager;
@@ -16,7 +14,9 @@ import android.media.AudioManager;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.WindowManager;
@@ -24,21 +24,71 @@ import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.FrameLayout;
 
+import com.humanhand.offlineassistant.voice.CommandGrammar;
+import com.humanhand.offlineassistant.voice.CommandMacro;
 import com.humanhand.offlineassistant.voice.CommandParser;
+import com.humanhand.offlineassistant.voice.HypothesisRescorer;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class HumanHandAccessibilityService extends AccessibilityService {
     private static final String TAG = "HumanHandAS";
+    private static final long VOCABULARY_THROTTLE_MS = 1000;
+    private static volatile HumanHandAccessibilityService instance;
+    private final MacroRunner.Steps macroSteps = new MacroRunner.Steps() {
+        @Override
+        public boolean execute(CommandParser.Command step) {
+            CommandBus bus = CommandBus.getInstance();
+            bus.beginStep(step);
+            try {
+                // Superseded while waiting for its target or for the screen to settle.
+                return !bus.isCancelled() && handleCommand(step);
+            } finally {
+                bus.endStep();
+            }
+        }
+
+        @Override
+        public boolean isReady(CommandParser.Command step) {
+            if (step.action != CommandParser.ActionType.CLICK || screenIndex == null) return true;
+            // Index only: this runs on every index update, and the step resolves its target again anyway.
+            return screenIndex.matchScore(step.target) > 0;
+        }
+    };
+
+    private final CommandBus.Consumer commandConsumer = new CommandBus.Consumer() {
+        @Override
+        public boolean execute(CommandParser.Command command) {
+            macroRunner.cancel();
+            return handleCommand(command);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> run(CommandMacro macro) {
+            return macroRunner.run(macro);
+        }
+    };
+
     private WindowManager windowManager;
+    private ScreenIndex screenIndex;
+    private WindowSearch windowSearch;
+    private CommandHistory history;
+    private GestureEngine gestureEngine;
+    // Node queries and actions are blocking binder calls; they run here, not on the main thread.
+    private HandlerThread executorThread;
+    private Handler executor;
+    private MacroRunner macroRunner;
+    private long lastVocabularyUpdate;
 
     private final BroadcastReceiver commandReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // Fallback path for when the in-process CommandBus is unavailable.
             String action = intent.getStringExtra("action");
-            String target = intent.getStringExtra("target");
-            String direction = intent.getStringExtra("direction");
-            handleCommand(action, target, direction);
+            if (action == null) return;
+            CommandParser.Command cmd = new CommandParser.Command(CommandParser.ActionType.valueOf(action),
+                    intent.getStringExtra("target"), intent.getStringExtra("direction"));
+            executor.post(() -> handleCommand(cmd));
         }
     };
 
@@ -46,124 +96,210 @@ public class HumanHandAccessibilityService extends AccessibilityService {
     protected void onServiceConnected() {
         super.onServiceConnected();
         windowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
+        executorThread = new HandlerThread("CommandExecutor");
+        executorThread.start();
+        executor = new Handler(executorThread.getLooper());
+        macroRunner = new MacroRunner(macroSteps, executor);
+        history = CommandHistory.getInstance(this);
+        screenIndex = new ScreenIndex(this, this::onScreenIndexUpdated, history);
+        // No window-state change may come for a while; until the first build every CLICK searches live.
+        screenIndex.requestRebuild();
+        gestureEngine = new GestureEngine(this, screenIndex, executor);
+        windowSearch = new WindowSearch(this, history);
+        LauncherIndex.getInstance(this);
         IntentFilter filter = new IntentFilter("com.humanhand.ACTION_COMMAND");
         registerReceiver(commandReceiver, filter);
+        CommandBus.getInstance().attach(commandConsumer, executor);
+        instance = this;
         Log.d(TAG, "Service Connected and Receiver Registered");
     }
 
+    /** The connected service, or null while accessibility is disabled. */
+    static HumanHandAccessibilityService getInstance() {
+        return instance;
+    }
+
     @Override
-    public void onAccessibilityEvent(AccessibilityEvent event) {}
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            CommandBus.getInstance().onWindowChanged();
+        }
+        if (screenIndex != null) screenIndex.onEvent(event);
+    }
+
+    private void onScreenIndexUpdated(ScreenIndex index, boolean windowChanged) {
+        executor.post(() -> macroRunner.onScreenUpdated(windowChanged));
+        if (windowChanged) prefetch(index.packageName());
+        long now = SystemClock.uptimeMillis();
+        if (windowChanged || now - lastVocabularyUpdate > VOCABULARY_THROTTLE_MS) {
+            lastVocabularyUpdate = now;
+            CommandGrammar.getInstance().setScreenLabels(index.labels());
+        }
+    }
+
+    // An app came to the foreground: resolve what is usually clicked there before it is asked for.
+    private void prefetch(String packageName) {
+        String spoken = history.predict(packageName);
+        if (spoken != null && SpeculativeResolver.getInstance().prefetch(CommandParser.ActionType.CLICK, spoken)) {
+            history.notePrefetch();
+        }
+    }
 
     @Override
     public void onInterrupt() {}
 
-    private void handleCommand(String action, String target, String direction) {
-        if (action == null) return;
-
-        CommandParser.ActionType type = CommandParser.ActionType.valueOf(action);
-        switch (type) {
+    private boolean handleCommand(CommandParser.Command cmd) {
+        switch (cmd.action) {
             case OPEN_APP:
-                openApplication(target);
-                break;
+                return openApplication(cmd.target);
             case CLICK:
-                findAndClick(target);
-                break;
+                return findAndClick(cmd.target);
             case SCROLL:
-                performScroll(direction);
-                break;
+                return gestureEngine.scroll(cmd.direction);
+            case KEEP_SCROLLING:
+                gestureEngine.startContinuousScroll(cmd.direction);
+                return true;
+            case STOP:
+                gestureEngine.stop();
+                return true;
             case GO_BACK:
-                performGlobalAction(GLOBAL_ACTION_BACK);
-                break;
+                return performGlobalAction(GLOBAL_ACTION_BACK);
             case HOME:
-                performGlobalAction(GLOBAL_ACTION_HOME);
-                break;
+                return performGlobalAction(GLOBAL_ACTION_HOME);
             case RECENTS:
-                performGlobalAction(GLOBAL_ACTION_RECENTS);
-                break;
+                return performGlobalAction(GLOBAL_ACTION_RECENTS);
             case TYPE:
-                typeText(target);
-                break;
+                return typeText(cmd.target);
             case CALL:
-                makeCall(target);
-                break;
+                return makeCall(cmd.target);
             case TOGGLE_WIFI:
-                toggleWifi();
-                break;
+                return toggleWifi();
             case TOGGLE_FLASHLIGHT:
-                toggleFlashlight();
-                break;
+                return toggleFlashlight();
             case TOGGLE_SPEAKER:
-                toggleSpeaker();
-                break;
+                return toggleSpeaker();
             case SAMSUNG_OPTIMIZE:
-                openSamsungDeviceCare();
-                break;
+                return openSamsungDeviceCare();
             case SAMSUNG_BATTERY:
-                openSamsungBatterySettings();
-                break;
+                return openSamsungBatterySettings();
+            default:
+                return false;
         }
     }
 
-    private void openApplication(String packageName) {
+    private boolean openApplication(String name) {
+        long start = System.nanoTime();
+        ResolvedTarget target = SpeculativeResolver.getInstance().claim(CommandParser.ActionType.OPEN_APP, name);
+        if (target == null) target = resolveApp(name);
+        long resolveNanos = System.nanoTime() - start;
+        String packageName = target != null ? target.packageName : name;
+
         Intent launchIntent = getPackageManager().getLaunchIntentForPackage(packageName);
+        if (target != null) {
+            history.record(CommandHistory.LAUNCHER, name, target.label, launchIntent != null, resolveNanos);
+        }
         if (launchIntent != null) {
             launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(launchIntent);
-        } else {
-            Log.e(TAG, "Could not find package: " + packageName);
+            return true;
         }
+        Log.e(TAG, "Could not find package: " + packageName);
+        return false;
+    }
+
+    /** Resolves a CLICK or OPEN_APP target without acting on it. Safe to call off the main thread. */
+    ResolvedTarget resolveTarget(CommandParser.ActionType action, String target) {
+        switch (action) {
+            case OPEN_APP:
+                return resolveApp(target);
+            case CLICK:
+                return resolveNode(target);
+            default:
+                return null;
+        }
+    }
+
+    /** Match score for a CLICK or OPEN_APP target, for {@link HypothesisRescorer}. Safe to call off the main thread. */
+    float scoreTarget(CommandParser.ActionType action, String target) {
+        switch (action) {
+            case OPEN_APP:
+                return LauncherIndex.getInstance(this).matchScore(target);
+            case CLICK:
+                return screenIndex != null ? screenIndex.matchScore(target) : HypothesisRescorer.TargetScorer.UNKNOWN;
+            default:
+                return HypothesisRescorer.TargetScorer.UNKNOWN;
+        }
+    }
+
+    private ResolvedTarget resolveApp(String name) {
+        return LauncherIndex.getInstance(this).resolve(name);
+    }
+
+    private ResolvedTarget resolveNode(String text) {
+        if (screenIndex != null) {
+            ResolvedTarget indexed = screenIndex.lookup(text);
+            if (indexed != null) return indexed;
+        }
+
+        // Not in the active window, or the index is behind: query every window live.
+        return windowSearch != null ? windowSearch.find(text) : null;
     }
 
     private boolean findAndClick(String text) {
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
-        if (rootNode == null) return false;
-
-        boolean success = false;
-        List<AccessibilityNodeInfo> nodes = rootNode.findAccessibilityNodeInfosByText(text);
-        if (nodes != null && !nodes.isEmpty()) {
-            AccessibilityNodeInfo node = nodes.get(0);
-            AccessibilityNodeInfo clickableNode = node;
-            while (clickableNode != null && !clickableNode.isClickable()) {
-                clickableNode = clickableNode.getParent();
-            }
+        long start = System.nanoTime();
+        ResolvedTarget target = SpeculativeResolver.getInstance().claim(CommandParser.ActionType.CLICK, text);
+        if (target != null && !target.revalidate()) {
+            target.recycle();
+            target = null;
+        }
+        if (target == null) target = resolveNode(text);
+        if (target == null) {
+            Log.d(TAG, "Node not found for text: " + text);
+            return false;
+        }
+        long resolveNanos = System.nanoTime() - start;
+        if (CommandBus.getInstance().isCancelled()) {
+            Log.d(TAG, "Click on " + text + " is stale, skipping");
+            target.recycle();
+            return false;
+        }
 
-            if (clickableNode != null) {
-                success = clickableNode.performAction(AccessibilityNodeInfo.ACTION_CLICK);
-                Log.d(TAG, "Clicked on: " + text);
-            } else {
-                Rect rect = new Rect();
-                node.getBoundsInScreen(rect);
-                performTap(rect.centerX(), rect.centerY());
-                Log.d(TAG, "Tapped coordinates for: " + text);
-                success = true;
-            }
-            node.recycle();
-            if (clickableNode != null && clickableNode != node) clickableNode.recycle();
+        boolean success;
+        if (target.clickable != null) {
+            success = target.clickable.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+            Log.d(TAG, "Clicked on: " + text);
         } else {
-            Log.d(TAG, "Node not found for text: " + text);
+            Rect rect = new Rect();
+            target.node.getBoundsInScreen(rect);
+            success = performTap(rect.centerX(), rect.centerY());
+            Log.d(TAG, "Tapped coordinates for: " + text);
         }
-        rootNode.recycle();
+        CharSequence packageName = target.node.getPackageName();
+        history.record(packageName != null ? packageName.toString() : null, text, target.label, success, resolveNanos);
+        target.recycle();
         return success;
     }
 
-    private void typeText(String text) {
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
-        if (rootNode == null) return;
-
-        AccessibilityNodeInfo focusedNode = rootNode.findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
-        if (focusedNode != null) {
+    private boolean typeText(String text) {
+        // Searches all windows, so a field in a dialog or the other split-screen pane is found too.
+        boolean typed = false;
+        AccessibilityNodeInfo focusedNode = findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
+        if (focusedNode != null && CommandBus.getInstance().isCancelled()) {
+            Log.d(TAG, "Typing is stale, skipping");
+            focusedNode.recycle();
+        } else if (focusedNode != null) {
             Bundle arguments = new Bundle();
             arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
-            focusedNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
+            typed = focusedNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
             Log.d(TAG, "Typed text into focused node: " + text);
             focusedNode.recycle();
         } else {
             Log.d(TAG, "No focused input node found to type into");
         }
-        rootNode.recycle();
+        return typed;
     }
 
-    private void makeCall(String contactName) {
+    private boolean makeCall(String contactName) {
         // Step 1: Try to find and click the contact name (in WhatsApp or Dialer)
         if (!findAndClick(contactName)) {
             // Step 2: Fallback - Open Dialer for manual confirmation if name not found
@@ -172,60 +308,68 @@ public class HumanHandAccessibilityService extends AccessibilityService {
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(intent);
         }
+        return true;
     }
 
-    private void toggleWifi() {
+    private boolean toggleWifi() {
         WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-        if (wm != null) {
-            boolean isEnabled = wm.isWifiEnabled();
-            wm.setWifiEnabled(!isEnabled);
-            Log.d(TAG, "WiFi toggled to " + !isEnabled);
-        }
+        if (wm == null) return false;
+        boolean isEnabled = wm.isWifiEnabled();
+        boolean changed = wm.setWifiEnabled(!isEnabled);
+        Log.d(TAG, "WiFi toggled to " + !isEnabled);
+        return changed;
     }
 
-    private void toggleFlashlight() {
+    private boolean toggleFlashlight() {
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
             CameraManager cm = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
             try {
                 String cameraId = cm.getCameraIdList()[0];
                 cm.setTorchMode(cameraId, true); // For now just turn it ON, can be refined to toggle
                 Log.d(TAG, "Flashlight turned ON");
+                return true;
             } catch (Exception e) {
                 Log.e(TAG, "Flashlight error", e);
             }
         }
+        return false;
     }
 
-    private void toggleSpeaker() {
+    private boolean toggleSpeaker() {
         AudioManager am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        if (am != null) {
-            boolean isOn = am.isSpeakerphoneOn();
-            am.setSpeakerphoneOn(!isOn);
-            Log.d(TAG, "Speaker toggled to " + !isOn);
-        }
+        if (am == null) return false;
+        boolean isOn = am.isSpeakerphoneOn();
+        am.setSpeakerphoneOn(!isOn);
+        Log.d(TAG, "Speaker toggled to " + !isOn);
+        return true;
     }
 
-    private void openSamsungDeviceCare() {
+    private boolean openSamsungDeviceCare() {
         try {
             Intent intent = new Intent();
             intent.setClassName("com.samsung.android.lool", "com.samsung.android.sm.ui.IndexActivity");
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(intent);
+            return true;
         } catch (Exception e) {
             try {
                 Intent intent = getPackageManager().getLaunchIntentForPackage("com.samsung.android.lool");
                 startActivity(intent);
+                return true;
             } catch (Exception ignored) {}
         }
+        return false;
     }
 
-    private void openSamsungBatterySettings() {
+    private boolean openSamsungBatterySettings() {
         try {
             Intent intent = new Intent();
             intent.setClassName("com.samsung.android.lool", "com.samsung.android.sm.ui.battery.BatteryActivity");
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             startActivity(intent);
+            return true;
         } catch (Exception ignored) {}
+        return false;
     }
 
     private void showExecutionIndicator(int x, int y) {
@@ -253,42 +397,36 @@ public class HumanHandAccessibilityService extends AccessibilityService {
         });
     }
 
-    private void performTap(int x, int y) {
+    private boolean performTap(int x, int y) {
         showExecutionIndicator(x, y);
-        Path path = new Path();
-        path.moveTo(x, y);
-        GestureDescription.Builder builder = new GestureDescription.Builder();
-        builder.addStroke(new GestureDescription.StrokeDescription(path, 0, 50));
-        dispatchGesture(builder.build(), null, null);
-    }
-
-    private void performScroll(String direction) {
-        int displayHeight = getResources().getDisplayMetrics().heightPixels;
-        int displayWidth = getResources().getDisplayMetrics().widthPixels;
-
-        Path path = new Path();
-        int startX = displayWidth / 2;
-        int startY = displayHeight / 2;
-        int endX = startX;
-        int endY = startY;
-
-        switch (direction.toLowerCase()) {
-            case "up": startY = (int) (displayHeight * 0.2); endY = (int) (displayHeight * 0.8); break;
-            case "down": startY = (int) (displayHeight * 0.8); endY = (int) (displayHeight * 0.2); break;
-            case "left": startX = (int) (displayWidth * 0.8); endX = (int) (displayWidth * 0.2); break;
-            case "right": startX = (int) (displayWidth * 0.2); endX = (int) (displayWidth * 0.8); break;
-        }
-
-        path.moveTo(startX, startY);
-        path.lineTo(endX, endY);
-
-        GestureDescription.Builder builder = new GestureDescription.Builder();
-        builder.addStroke(new GestureDescription.StrokeDescription(path, 0, 500));
-        dispatchGesture(builder.build(), null, null);
+        return gestureEngine.tap(x, y);
     }
 
     @Override
     public void onDestroy() {
+        instance = null;
+        CommandBus.getInstance().detach(commandConsumer);
+        if (executor != null) {
+            executor.post(() -> {
+                macroRunner.cancel();
+                gestureEngine.stop();
+                Log.d(TAG, "Gestures: " + gestureEngine.describeStats());
+            });
+            executorThread.quitSafely();
+        }
+        Log.d(TAG, "Command bus: " + CommandBus.getInstance().describeStats());
+        if (screenIndex != null) {
+            Log.d(TAG, "Screen index: " + screenIndex.describeStats());
+            Log.d(TAG, "Launcher index: " + LauncherIndex.getInstance(this).describeStats());
+            screenIndex.shutdown();
+            screenIndex = null;
+        }
+        if (history != null) Log.d(TAG, "Command history: " + history.describeStats());
+        if (windowSearch != null) {
+            Log.d(TAG, "Window search: " + windowSearch.describeStats());
+            windowSearch.shutdown();
+            windowSearch = null;
+        }
         if (commandReceiver != null) unregisterReceiver(commandReceiver);
         super.onDestroy();
     }
@@ -0,0 +1,298 @@
+package com.humanhand.offlineassistant.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.CommandGrammar;
+import com.humanhand.offlineassistant.voice.LabelMatcher;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Launcher label -> package map for OPEN_APP. Built from PackageManager once,
+ * persisted to internal storage, then kept current from package broadcasts one
+ * package at a time. Broadcasts sent while the process was dead are caught up
+ * after a load from PackageManager's change sequence, or by a full rebuild when
+ * the device has rebooted since. Resolving a spoken name is a pure in-memory lookup.
+ */
+final class LauncherIndex {
+    private static final String TAG = "LauncherIndex";
+    private static final String FILE_NAME = "launcher_index.json";
+    // 2: built with the <queries> visibility; older files missed most user-installed apps.
+    private static final int FORMAT = 2;
+    private static final float MIN_MATCH_SCORE = 0.55f;
+    // Near-ties among these are settled by command history.
+    private static final int CANDIDATES = 4;
+    // Stripped to form an alias, so "open play store" finds "Google Play Store".
+    private static final String[] VENDOR_PREFIXES = {"samsung ", "google ", "galaxy "};
+    private static LauncherIndex instance;
+
+    private final Context context;
+    private final File file;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "LauncherIndex"));
+    private final Map<String, String> labels = new HashMap<>();
+    // Normalized label or alias -> package; null where two apps share it, which the matcher settles.
+    private final Map<String, String> exact = new HashMap<>();
+    private final LabelMatcher<String> matcher = new LabelMatcher<>();
+    // PackageManager change sequence the labels reflect; only valid within bootCount.
+    private int sequence;
+    private int bootCount;
+
+    private int lookups;
+    private long lookupNanos;
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) return;
+            String packageName = intent.getData().getSchemeSpecificPart();
+            boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction());
+            // An update sends REMOVED with EXTRA_REPLACING and then ADDED; act on the ADDED.
+            if (removed && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) return;
+            executor.execute(() -> {
+                updatePackage(packageName, removed);
+                persist();
+            });
+        }
+    };
+
+    static synchronized LauncherIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new LauncherIndex(context.getApplicationContext());
+            instance.start();
+        }
+        return instance;
+    }
+
+    private LauncherIndex(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private void start() {
+        executor.execute(() -> {
+            if (!load()) {
+                rebuild();
+                persist();
+            } else if (catchUp()) {
+                persist();
+            }
+        });
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(packageReceiver, filter);
+    }
+
+    /** Best launchable package for a spoken app name, or null. */
+    ResolvedTarget resolve(String spoken) {
+        long start = System.nanoTime();
+        ResolvedTarget result = null;
+        synchronized (this) {
+            String packageName = exact.get(LabelMatcher.normalize(spoken));
+            if (packageName != null) {
+                result = ResolvedTarget.forPackage(labels.get(packageName), packageName);
+            } else {
+                LabelMatcher.Match<String> match = CommandHistory.getInstance(context)
+                        .pick(CommandHistory.LAUNCHER, spoken, matcher.match(spoken, CANDIDATES), MIN_MATCH_SCORE);
+                if (match != null) {
+                    packageName = match.item;
+                    result = ResolvedTarget.forPackage(labels.get(packageName), packageName);
+                }
+            }
+            lookups++;
+            lookupNanos += System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /** Score of the best app name for {@code spoken}, or 0 below the match threshold. */
+    synchronized float matchScore(String spoken) {
+        if (exact.get(LabelMatcher.normalize(spoken)) != null) return 1f;
+        List<LabelMatcher.Match<String>> matches = matcher.match(spoken, 1);
+        return matches.isEmpty() || matches.get(0).score < MIN_MATCH_SCORE ? 0f : matches.get(0).score;
+    }
+
+    synchronized String describeStats() {
+        return labels.size() + " apps; lookup avg "
+                + (lookups == 0 ? 0 : lookupNanos / 1000 / lookups) + " us over " + lookups;
+    }
+
+    // Applies packages changed since the persisted sequence. True if anything was applied.
+    private boolean catchUp() {
+        PackageManager pm = context.getPackageManager();
+        if (bootCount != currentBootCount()) {
+            // Sequence numbers restart at boot, so the persisted one says nothing.
+            rebuild();
+            return true;
+        }
+        ChangedPackages changed = pm.getChangedPackages(sequence);
+        if (changed == null) return false;
+        for (String packageName : changed.getPackageNames()) updatePackage(packageName, false);
+        synchronized (this) {
+            sequence = changed.getSequenceNumber();
+        }
+        Log.d(TAG, "Caught up " + changed.getPackageNames().size() + " changed packages");
+        return true;
+    }
+
+    private void rebuild() {
+        PackageManager pm = context.getPackageManager();
+        // Taken first, so changes made during the query are applied again by the next catch-up.
+        ChangedPackages sinceBoot = pm.getChangedPackages(0);
+        int rebuiltSequence = sinceBoot == null ? 0 : sinceBoot.getSequenceNumber();
+        int rebuiltBootCount = currentBootCount();
+        Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        Map<String, String> fresh = new HashMap<>();
+        for (ResolveInfo info : pm.queryIntentActivities(launcher, 0)) {
+            if (!fresh.containsKey(info.activityInfo.packageName)) {
+                fresh.put(info.activityInfo.packageName, String.valueOf(info.loadLabel(pm)));
+            }
+        }
+        synchronized (this) {
+            labels.clear();
+            labels.putAll(fresh);
+            sequence = rebuiltSequence;
+            bootCount = rebuiltBootCount;
+            reindex();
+        }
+        Log.d(TAG, "Built from PackageManager: " + fresh.size() + " apps");
+    }
+
+    private int currentBootCount() {
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+    }
+
+    // Broadcasts do not advance the sequence; catching up re-applies them harmlessly.
+    private void updatePackage(String packageName, boolean removed) {
+        String label = null;
+        if (!removed) {
+            PackageManager pm = context.getPackageManager();
+            Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER)
+                    .setPackage(packageName);
+            List<ResolveInfo> infos = pm.queryIntentActivities(launcher, 0);
+            if (!infos.isEmpty()) label = String.valueOf(infos.get(0).loadLabel(pm));
+        }
+        synchronized (this) {
+            if (label == null) {
+                if (labels.remove(packageName) == null) return;
+            } else if (!label.equals(labels.put(packageName, label))) {
+                Log.d(TAG, "Indexed " + packageName + " as " + label);
+            }
+            reindex();
+        }
+    }
+
+    // Caller holds the lock. A few hundred apps rebuild in well under a millisecond.
+    private void reindex() {
+        matcher.clear();
+        exact.clear();
+        for (Map.Entry<String, String> app : labels.entrySet()) {
+            String label = app.getValue();
+            addLabel(label, app.getKey());
+            String lower = label.toLowerCase(Locale.ROOT);
+            for (String prefix : VENDOR_PREFIXES) {
+                if (lower.startsWith(prefix) && lower.length() > prefix.length()) {
+                    addLabel(label.substring(prefix.length()), app.getKey());
+                }
+            }
+        }
+        CommandGrammar.getInstance().setAppLabels(labels.values());
+    }
+
+    private void addLabel(String label, String packageName) {
+        matcher.add(label, packageName, true, true, 0);
+        String key = LabelMatcher.normalize(label);
+        if (!exact.containsKey(key)) {
+            exact.put(key, packageName);
+        } else if (!packageName.equals(exact.get(key))) {
+            exact.put(key, null);
+        }
+    }
+
+    private boolean load() {
+        if (!file.isFile()) return false;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONObject root = new JSONObject(new String(data, 0, read, "UTF-8"));
+            if (root.optInt("format", 1) < FORMAT) {
+                Log.d(TAG, "Rebuilding " + FILE_NAME + " written by an older format");
+                return false;
+            }
+            JSONArray apps = root.getJSONArray("apps");
+            synchronized (this) {
+                // Files written before these were kept read as a different boot, forcing a rebuild.
+                sequence = root.optInt("sequence", 0);
+                bootCount = root.optInt("bootCount", -2);
+                labels.clear();
+                for (int i = 0; i < apps.length(); i++) {
+                    JSONObject app = apps.getJSONObject(i);
+                    labels.put(app.getString("package"), app.getString("label"));
+                }
+                reindex();
+            }
+            Log.d(TAG, "Loaded " + apps.length() + " apps from " + FILE_NAME);
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable " + FILE_NAME, e);
+            return false;
+        }
+    }
+
+    private void persist() {
+        JSONArray apps = new JSONArray();
+        JSONObject root = new JSONObject();
+        try {
+            synchronized (this) {
+                root.put("format", FORMAT);
+                root.put("sequence", sequence);
+                root.put("bootCount", bootCount);
+                for (Map.Entry<String, String> app : labels.entrySet()) {
+                    JSONObject entry = new JSONObject();
+                    entry.put("package", app.getKey());
+                    entry.put("label", app.getValue());
+                    apps.put(entry);
+                }
+            }
+            root.put("apps", apps);
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(root.toString().getBytes("UTF-8"));
+            }
+            if (!tmp.renameTo(file)) Log.w(TAG, "Could not replace " + FILE_NAME);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to persist launcher index", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.humanhand.offlineassistant.service;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.CommandMacro;
+import com.humanhand.offlineassistant.voice.CommandParser;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs a macro one step at a time, driven by screen index updates rather than
+ * fixed sleeps. A step starts as soon as its target is on screen, and the next
+ * one waits until the screen has reacted (new window, or new content for
+ * in-place actions). Waiting for a target has a hard timeout, after which the
+ * step runs once anyway, so its own live search gets a single try; waiting for
+ * the screen to settle has only a soft one, since the next step's own wait still gates it.
+ *
+ * All methods run on the handler's thread.
+ */
+final class MacroRunner {
+    private static final String TAG = "MacroRunner";
+    private static final long TARGET_TIMEOUT_MS = 4000;
+    private static final long SETTLE_TIMEOUT_MS = 1500;
+
+    interface Steps {
+        boolean execute(CommandParser.Command step);
+
+        /**
+         * Whether the step can run on the current screen, e.g. its click target is
+         * indexed. Called on every index update, so it must not search the windows.
+         */
+        boolean isReady(CommandParser.Command step);
+    }
+
+    private enum Phase { IDLE, WAIT_TARGET, WAIT_SETTLE }
+
+    private final Steps steps;
+    private final Handler handler;
+    private final Runnable targetTimeout = this::onTargetTimeout;
+    private final Runnable settleTimeout = this::onSettled;
+
+    private CommandMacro macro;
+    private CompletableFuture<Boolean> result;
+    private int index;
+    private Phase phase = Phase.IDLE;
+    private long stepStartedAt;
+
+    MacroRunner(Steps steps, Handler handler) {
+        this.steps = steps;
+        this.handler = handler;
+    }
+
+    /** Starts {@code macro}, abandoning any macro still running. */
+    CompletableFuture<Boolean> run(CommandMacro macro) {
+        if (phase != Phase.IDLE) finish(false);
+        this.macro = macro;
+        this.result = new CompletableFuture<>();
+        this.index = 0;
+        CompletableFuture<Boolean> started = result;
+        advance();
+        return started;
+    }
+
+    void cancel() {
+        if (phase != Phase.IDLE) finish(false);
+    }
+
+    /** Feed from the screen index; {@code windowChanged} is true for a new window. */
+    void onScreenUpdated(boolean windowChanged) {
+        if (phase == Phase.WAIT_TARGET) {
+            if (steps.isReady(current())) {
+                handler.removeCallbacks(targetTimeout);
+                fire();
+            }
+        } else if (phase == Phase.WAIT_SETTLE) {
+            if (windowChanged || !changesWindow(current().action)) {
+                handler.removeCallbacks(settleTimeout);
+                onSettled();
+            }
+        }
+    }
+
+    private void advance() {
+        if (index == macro.steps.size()) {
+            finish(true);
+            return;
+        }
+        if (steps.isReady(current())) {
+            fire();
+        } else {
+            phase = Phase.WAIT_TARGET;
+            handler.postDelayed(targetTimeout, TARGET_TIMEOUT_MS);
+        }
+    }
+
+    private void fire() {
+        CommandParser.Command step = current();
+        stepStartedAt = PipelineTrace.now();
+        if (!steps.execute(step)) {
+            Log.d(TAG, "Step " + (index + 1) + " failed: " + step.action);
+            finish(false);
+            return;
+        }
+        if (index + 1 < macro.steps.size() && needsSettle(step.action)) {
+            phase = Phase.WAIT_SETTLE;
+            handler.postDelayed(settleTimeout, SETTLE_TIMEOUT_MS);
+        } else {
+            onSettled();
+        }
+    }
+
+    private void onSettled() {
+        PipelineTrace.getInstance().record(PipelineTrace.Stage.MACRO_STEP, stepStartedAt);
+        index++;
+        advance();
+    }
+
+    // The index may have missed the target, e.g. in another window; the step's own lookup searches once.
+    private void onTargetTimeout() {
+        Log.d(TAG, "Step " + (index + 1) + " target not indexed, trying anyway: " + current().target);
+        fire();
+    }
+
+    private void finish(boolean success) {
+        handler.removeCallbacks(targetTimeout);
+        handler.removeCallbacks(settleTimeout);
+        phase = Phase.IDLE;
+        CompletableFuture<Boolean> done = result;
+        macro = null;
+        result = null;
+        if (done != null) done.complete(success);
+    }
+
+    private CommandParser.Command current() {
+        return macro.steps.get(index);
+    }
+
+    private static boolean changesWindow(CommandParser.ActionType action) {
+        switch (action) {
+            case OPEN_APP:
+            case GO_BACK:
+            case HOME:
+            case RECENTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean needsSettle(CommandParser.ActionType action) {
+        return changesWindow(action) || action == CommandParser.ActionType.CLICK
+                || action == CommandParser.ActionType.SCROLL;
+    }
+}
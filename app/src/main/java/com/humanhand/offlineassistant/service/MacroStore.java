@@ -0,0 +1,80 @@
+package com.humanhand.offlineassistant.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.CommandGrammar;
+import com.humanhand.offlineassistant.voice.CommandMacro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named macros saved by voice ("save macro morning"). Only the name and the
+ * spoken phrase are persisted, under the normalized name, so saving "Morning"
+ * replaces "morning"; each macro is compiled once on load or save and replayed
+ * from the compiled steps.
+ */
+final class MacroStore {
+    private static final String TAG = "MacroStore";
+    private static final String PREFS = "macros";
+    // Between the spoken name and the phrase in a stored value; neither can contain it.
+    private static final char SEPARATOR = '\n';
+    private static MacroStore instance;
+
+    private final SharedPreferences prefs;
+    private final Map<String, CommandMacro> macros = new HashMap<>();
+
+    static synchronized MacroStore getInstance(Context context) {
+        if (instance == null) instance = new MacroStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private MacroStore(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        SharedPreferences.Editor migrated = prefs.edit();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String value = String.valueOf(entry.getValue());
+            int split = value.indexOf(SEPARATOR);
+            String name = split < 0 ? entry.getKey() : value.substring(0, split);
+            CommandMacro macro = CommandMacro.compile(name, value.substring(split + 1));
+            if (macro == null) {
+                Log.w(TAG, "Dropping macro that no longer parses: " + name);
+                migrated.remove(entry.getKey());
+                continue;
+            }
+            macros.put(key(name), macro);
+            if (split < 0) {
+                // Saved before names were normalized: the key was the name and the value just the phrase.
+                migrated.remove(entry.getKey());
+                migrated.putString(key(name), name + SEPARATOR + macro.phrase);
+            }
+        }
+        migrated.apply();
+        publishNames();
+    }
+
+    synchronized CommandMacro get(String name) {
+        return macros.get(key(name));
+    }
+
+    synchronized void save(String name, CommandMacro macro) {
+        CommandMacro named = macro.withName(name);
+        macros.put(key(name), named);
+        prefs.edit().putString(key(name), name + SEPARATOR + named.phrase).apply();
+        publishNames();
+    }
+
+    private void publishNames() {
+        List<String> names = new ArrayList<>();
+        for (CommandMacro macro : macros.values()) names.add(macro.name);
+        CommandGrammar.getInstance().setMacroNames(names);
+    }
+
+    private static String key(String name) {
+        return ResolvedTarget.normalize(name);
+    }
+}
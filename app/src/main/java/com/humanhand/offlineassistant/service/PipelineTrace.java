@@ -0,0 +1,159 @@
+package com.humanhand.offlineassistant.service;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-utterance latency spans for the voice -> action pipeline. Spans go into a
+ * preallocated ring buffer so recording never allocates; readers take a
+ * snapshot for percentiles or a Chrome trace JSON export (opens in Perfetto).
+ *
+ * Writers claim slots with an atomic counter and do not lock, so a snapshot
+ * taken mid-write may contain one stale span. That is fine for statistics.
+ */
+public final class PipelineTrace {
+    public enum Stage {
+        /** Last changed partial to final result: decoder endpointing after the user stops. */
+        DECODE_TAIL,
+        /** N-best alternatives scored against commands and on-screen targets. */
+        RESCORE,
+        PARSE,
+        /** Confirmation prompt requested to TTS audio start. */
+        PROMPT_START,
+        PROMPT_SPEAK,
+        /** Any prompt requested to its first audio: cached segments on the AudioTrack, or the engine live. */
+        PROMPT_CACHED,
+        PROMPT_LIVE,
+        /** Prompt finished to "confirm" recognised. */
+        CONFIRM_WAIT,
+        QUEUE,
+        EXECUTE,
+        /** Gesture dispatched to completed callback. */
+        GESTURE,
+        /** Macro step started to its settle condition (window or content change). */
+        MACRO_STEP,
+        /** Command recognised to action finished, including the confirmation round trip. */
+        TOTAL,
+        /** Command recognised to handed off for execution, per confirmation tier. */
+        DISPATCH_LOW,
+        DISPATCH_MEDIUM,
+        DISPATCH_HIGH
+    }
+
+    private static final int CAPACITY = 2048;
+    private static final PipelineTrace INSTANCE = new PipelineTrace();
+
+    private final int[] stages = new int[CAPACITY];
+    private final int[] utterances = new int[CAPACITY];
+    private final long[] starts = new long[CAPACITY];
+    private final long[] durations = new long[CAPACITY];
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicInteger utterance = new AtomicInteger();
+
+    public static PipelineTrace getInstance() {
+        return INSTANCE;
+    }
+
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Starts a new utterance; later spans are tagged with its id. */
+    void beginUtterance() {
+        utterance.incrementAndGet();
+    }
+
+    void record(Stage stage, long startNanos) {
+        record(stage, startNanos, now());
+    }
+
+    void record(Stage stage, long startNanos, long endNanos) {
+        if (startNanos <= 0 || endNanos < startNanos) return;
+        int slot = (int) (written.getAndIncrement() % CAPACITY);
+        stages[slot] = stage.ordinal();
+        utterances[slot] = utterance.get();
+        starts[slot] = startNanos;
+        durations[slot] = endNanos - startNanos;
+    }
+
+    /** p50/p95/p99 per stage over the spans currently in the buffer, one line per stage. */
+    public String describePercentiles() {
+        int count = (int) Math.min(written.get(), CAPACITY);
+        if (count == 0) return "No spans recorded yet";
+
+        Stage[] all = Stage.values();
+        long[][] byStage = new long[all.length][count];
+        int[] sizes = new int[all.length];
+        for (int i = 0; i < count; i++) {
+            int stage = stages[i];
+            byStage[stage][sizes[stage]++] = durations[i];
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : all) {
+            int n = sizes[stage.ordinal()];
+            if (n == 0) continue;
+            long[] values = byStage[stage.ordinal()];
+            Arrays.sort(values, 0, n);
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(String.format(Locale.US, "%s (n=%d): p50 %.1f, p95 %.1f, p99 %.1f ms",
+                    stage.name().toLowerCase(Locale.US), n, percentile(values, n, 50),
+                    percentile(values, n, 95), percentile(values, n, 99)));
+        }
+        return sb.toString();
+    }
+
+    /** Writes the buffer as Chrome trace JSON into {@code dir}, one track per stage. */
+    public File export(File dir) throws IOException {
+        int count = (int) Math.min(written.get(), CAPACITY);
+        JSONArray events = new JSONArray();
+        try {
+            for (Stage stage : Stage.values()) {
+                JSONObject name = new JSONObject();
+                name.put("name", "thread_name");
+                name.put("ph", "M");
+                name.put("pid", 1);
+                name.put("tid", stage.ordinal() + 1);
+                name.put("args", new JSONObject().put("name", stage.name().toLowerCase(Locale.US)));
+                events.put(name);
+            }
+            for (int i = 0; i < count; i++) {
+                JSONObject event = new JSONObject();
+                event.put("name", Stage.values()[stages[i]].name().toLowerCase(Locale.US));
+                event.put("cat", "pipeline");
+                event.put("ph", "X");
+                event.put("pid", 1);
+                event.put("tid", stages[i] + 1);
+                event.put("ts", starts[i] / 1000);
+                event.put("dur", durations[i] / 1000);
+                event.put("args", new JSONObject().put("utterance", utterances[i]));
+                events.put(event);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode trace", e);
+        }
+
+        File file = new File(dir, "pipeline-trace-" + System.currentTimeMillis() + ".json");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(("{\"traceEvents\":" + events + "}").getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    private static double percentile(long[] sorted, int n, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, rank))] / 1e6;
+    }
+}
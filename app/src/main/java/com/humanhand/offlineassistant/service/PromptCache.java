@@ -0,0 +1,516 @@
+package com.humanhand.offlineassistant.service;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speaks prompts from PCM recorded once from the TTS engine instead of
+ * synthesising them every time. A prompt is a list of segments (the fixed
+ * frame, verbs, target names); each is cached on disk with its edge silence
+ * trimmed, so stitched segments join with one even pause. The cache is kept
+ * under {@link #DISK_BUDGET_BYTES}, least recently played out first, and is
+ * keyed by voice so a voice change starts a fresh one.
+ *
+ * A prompt whose first segment is cached plays at once through one
+ * low-latency AudioTrack, created as soon as the engine's sample rate is
+ * known; segments not cached yet, usually a target, are synthesised while the
+ * earlier ones play. Otherwise the prompt goes to the engine live and its
+ * segments are recorded for next time. The listener gets the same start and
+ * done callbacks either way.
+ */
+final class PromptCache {
+    private static final String TAG = "PromptCache";
+    private static final String DIR_NAME = "prompts";
+    private static final String SYNTH_PREFIX = "cache:";
+    // Live remainder of a prompt whose cached start has already played.
+    private static final String REST_SUFFIX = ":rest";
+    private static final long DISK_BUDGET_BYTES = 8L * 1024 * 1024;
+    // How long playback waits for an uncached segment before handing the rest to the engine.
+    private static final long SEGMENT_WAIT_MS = 1500;
+    private static final int GAP_MS = 90;
+    private static final int EDGE_MS = 20;
+    private static final int SILENCE_LEVEL = 400;
+    private static final int CHUNK_SAMPLES = 1024;
+
+    private static final class Segment {
+        final int sampleRate;
+        final short[] samples;
+
+        Segment(int sampleRate, short[] samples) {
+            this.sampleRate = sampleRate;
+            this.samples = samples;
+        }
+    }
+
+    private final File root;
+    private final TextToSpeech tts;
+    private final UtteranceProgressListener delegate;
+    private final ExecutorService player =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "PromptPlayer"));
+    private final Map<String, CompletableFuture<File>> synthesizing = new HashMap<>();
+    private final Set<String> cached = new HashSet<>();
+    private volatile File dir;
+    private volatile boolean released;
+
+    // Player thread only, apart from pause and flush in stop().
+    private volatile AudioTrack track;
+    private int trackRate;
+    private volatile int generation;
+    private short[] gap = new short[0];
+
+    private volatile String liveUtterance;
+    private volatile long liveRequestedAt;
+
+    private int cachedPrompts;
+    private int stitchedPrompts;
+    private int livePrompts;
+
+    private final UtteranceProgressListener listener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            if (utteranceId.startsWith(SYNTH_PREFIX) || utteranceId.endsWith(REST_SUFFIX)) return;
+            if (utteranceId.equals(liveUtterance)) {
+                liveUtterance = null;
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.PROMPT_LIVE, liveRequestedAt);
+            }
+            delegate.onStart(utteranceId);
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            if (utteranceId.startsWith(SYNTH_PREFIX)) {
+                finishSynthesis(utteranceId, true);
+            } else {
+                delegate.onDone(stripRest(utteranceId));
+            }
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            if (utteranceId.startsWith(SYNTH_PREFIX)) {
+                finishSynthesis(utteranceId, false);
+            } else {
+                delegate.onError(stripRest(utteranceId));
+            }
+        }
+
+        @Override
+        public void onStop(String utteranceId, boolean interrupted) {
+            // Flushed by a live prompt or stop(): queue it again behind whatever flushed it,
+            // keeping the future, which playback may already be waiting on.
+            if (utteranceId.startsWith(SYNTH_PREFIX)) {
+                if (released || !submit(utteranceId)) finishSynthesis(utteranceId, false);
+            }
+        }
+    };
+
+    PromptCache(Context context, TextToSpeech tts, UtteranceProgressListener delegate) {
+        this.root = new File(context.getCacheDir(), DIR_NAME);
+        this.tts = tts;
+        this.delegate = delegate;
+    }
+
+    /** Call from onInit once the language is set; records {@code phrases} that are not cached yet. */
+    void onReady(Collection<String> phrases) {
+        tts.setOnUtteranceProgressListener(listener);
+        Voice voice = tts.getVoice();
+        String voiceName = voice != null ? voice.getName() : tts.getDefaultEngine();
+        player.execute(() -> {
+            File voiceDir = new File(root, String.valueOf(voiceName).replaceAll("[^A-Za-z0-9._-]", "_"));
+            if (!voiceDir.isDirectory() && !voiceDir.mkdirs()) {
+                Log.e(TAG, "Cannot create " + voiceDir);
+                return;
+            }
+            File[] files = voiceDir.listFiles();
+            File sample = null;
+            synchronized (this) {
+                for (File file : files != null ? files : new File[0]) {
+                    String name = file.getName();
+                    if (name.endsWith(".pcm")) {
+                        cached.add(name.substring(0, name.length() - 4));
+                        sample = file;
+                    } else {
+                        // Left over from a synthesis or write that never finished.
+                        file.delete();
+                    }
+                }
+            }
+            dir = voiceDir;
+            Segment segment = sample != null ? load(sample) : null;
+            if (segment != null) ensureTrack(segment.sampleRate);
+            for (String phrase : phrases) request(phrase);
+            Log.d(TAG, cached.size() + " segments cached in " + voiceDir.getName());
+        });
+    }
+
+    /**
+     * Speaks {@code text}, which {@code segments} spell out piece by piece.
+     * Replaces whatever is playing.
+     */
+    void speak(String text, List<String> segments, String utteranceId) {
+        stop();
+        long requestedAt = PipelineTrace.now();
+        if (dir == null || !isCached(segments.get(0))) {
+            synchronized (this) {
+                livePrompts++;
+            }
+            speakLive(text, utteranceId, requestedAt);
+            for (String segment : segments) request(segment);
+            return;
+        }
+        boolean complete = true;
+        List<CompletableFuture<File>> files = new ArrayList<>(segments.size());
+        for (String segment : segments) {
+            complete &= isCached(segment);
+            files.add(request(segment));
+        }
+        synchronized (this) {
+            if (complete) {
+                cachedPrompts++;
+            } else {
+                stitchedPrompts++;
+            }
+        }
+        int playGeneration = generation;
+        player.execute(() -> play(segments, files, utteranceId, requestedAt, playGeneration));
+    }
+
+    /** Stops cached playback and the engine. */
+    void stop() {
+        generation++;
+        liveUtterance = null;
+        AudioTrack t = track;
+        if (t != null) {
+            // Pausing also releases a write blocked on the full buffer.
+            t.pause();
+            t.flush();
+        }
+        tts.stop();
+    }
+
+    void release() {
+        released = true;
+        stop();
+        player.execute(() -> {
+            if (track != null) track.release();
+            track = null;
+        });
+        player.shutdown();
+    }
+
+    synchronized String describeStats() {
+        int total = cachedPrompts + stitchedPrompts + livePrompts;
+        return String.format(Locale.US, "%d prompts: %d cached, %d stitched, %d live (hit rate %.0f%%); %d segments",
+                total, cachedPrompts, stitchedPrompts, livePrompts,
+                total == 0 ? 0 : 100.0 * (cachedPrompts + stitchedPrompts) / total, cached.size());
+    }
+
+    // Player thread.
+    private void play(List<String> segments, List<CompletableFuture<File>> files, String utteranceId,
+                      long requestedAt, int playGeneration) {
+        int frames = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (playGeneration != generation) return;
+            Segment segment = null;
+            try {
+                File file = files.get(i).get(SEGMENT_WAIT_MS, TimeUnit.MILLISECONDS);
+                if (file != null) segment = load(file);
+            } catch (Exception e) {
+                Log.d(TAG, "Segment not ready: " + segments.get(i));
+            }
+            if (segment == null || !ensureTrack(segment.sampleRate)) {
+                // Let the engine finish the sentence rather than leave a hole in it.
+                if (!drain(frames, playGeneration)) return;
+                String rest = join(segments, i);
+                if (i == 0) {
+                    speakLive(rest, utteranceId, requestedAt);
+                } else {
+                    tts.speak(rest, TextToSpeech.QUEUE_FLUSH, null, utteranceId + REST_SUFFIX);
+                }
+                return;
+            }
+            if (frames == 0) track.play();
+            if (i > 0 && !write(gap, playGeneration)) return;
+            if (!write(segment.samples, playGeneration)) return;
+            if (i == 0) {
+                PipelineTrace.getInstance().record(PipelineTrace.Stage.PROMPT_CACHED, requestedAt);
+                delegate.onStart(utteranceId);
+            }
+            frames += (i > 0 ? gap.length : 0) + segment.samples.length;
+        }
+        if (drain(frames, playGeneration)) delegate.onDone(utteranceId);
+    }
+
+    private boolean write(short[] samples, int playGeneration) {
+        for (int offset = 0; offset < samples.length; offset += CHUNK_SAMPLES) {
+            if (playGeneration != generation) return false;
+            int written = track.write(samples, offset, Math.min(CHUNK_SAMPLES, samples.length - offset));
+            if (written < 0) return false;
+        }
+        return true;
+    }
+
+    // Waits until everything written has been heard, then parks the track.
+    private boolean drain(int frames, int playGeneration) {
+        if (frames == 0) return playGeneration == generation;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500 + frames * 1000L / trackRate);
+        while (playGeneration == generation && track.getPlaybackHeadPosition() < frames
+                && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (playGeneration != generation) return false;
+        track.pause();
+        track.flush();
+        return true;
+    }
+
+    // Player thread: one track for the lifetime of the cache, rebuilt only if the voice's rate changes.
+    private boolean ensureTrack(int sampleRate) {
+        if (track != null && trackRate == sampleRate) return true;
+        if (track != null) track.release();
+        track = null;
+        try {
+            int minBuffer = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT);
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_ASSISTANT)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                            .build())
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .setBufferSizeInBytes(minBuffer)
+                    .build();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "AudioTrack unavailable, prompts will be synthesised live", e);
+            return false;
+        }
+        trackRate = sampleRate;
+        gap = new short[sampleRate * GAP_MS / 1000];
+        return true;
+    }
+
+    private void speakLive(String text, String utteranceId, long requestedAt) {
+        liveRequestedAt = requestedAt;
+        liveUtterance = utteranceId;
+        tts.speak(text, TextToSpeech.QUEUE_FLUSH, null, utteranceId);
+    }
+
+    private synchronized boolean isCached(String text) {
+        return cached.contains(name(text));
+    }
+
+    // The cached file, or a future for it once synthesised; completes with null on failure.
+    private CompletableFuture<File> request(String text) {
+        File voiceDir = dir;
+        if (voiceDir == null) return CompletableFuture.completedFuture(null);
+        String name = name(text);
+        String utteranceId = SYNTH_PREFIX + name + ":" + text;
+        CompletableFuture<File> future;
+        synchronized (this) {
+            if (cached.contains(name)) return CompletableFuture.completedFuture(new File(voiceDir, name + ".pcm"));
+            future = synthesizing.get(utteranceId);
+            if (future != null) return future;
+            future = new CompletableFuture<>();
+            synthesizing.put(utteranceId, future);
+        }
+        if (!submit(utteranceId)) finishSynthesis(utteranceId, false);
+        return future;
+    }
+
+    private boolean submit(String utteranceId) {
+        int separator = utteranceId.indexOf(':', SYNTH_PREFIX.length());
+        String name = utteranceId.substring(SYNTH_PREFIX.length(), separator);
+        File wav = new File(dir, name + ".wav");
+        return tts.synthesizeToFile(utteranceId.substring(separator + 1), null, wav, utteranceId)
+                == TextToSpeech.SUCCESS;
+    }
+
+    // TTS callback thread: trims the engine's WAV into a cached segment.
+    private void finishSynthesis(String utteranceId, boolean success) {
+        CompletableFuture<File> future;
+        synchronized (this) {
+            future = synthesizing.remove(utteranceId);
+        }
+        if (future == null) return;
+        int separator = utteranceId.indexOf(':', SYNTH_PREFIX.length());
+        String name = utteranceId.substring(SYNTH_PREFIX.length(), separator);
+        File voiceDir = dir;
+        File wav = new File(voiceDir, name + ".wav");
+        File pcm = null;
+        if (success) {
+            pcm = convert(wav, new File(voiceDir, name + ".pcm"));
+            if (pcm != null) {
+                synchronized (this) {
+                    cached.add(name);
+                }
+                enforceBudget(voiceDir);
+            }
+        }
+        wav.delete();
+        future.complete(pcm);
+    }
+
+    private static File convert(File wav, File pcm) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(readFully(wav)).order(ByteOrder.LITTLE_ENDIAN);
+            if (in.remaining() < 12 || in.getInt() != 0x46464952 || in.getInt(8) != 0x45564157) { // RIFF, WAVE
+                throw new IOException("Not a WAV file");
+            }
+            in.position(12);
+            int sampleRate = 0;
+            short[] samples = null;
+            while (in.remaining() >= 8 && samples == null) {
+                int id = in.getInt();
+                int size = in.getInt();
+                if (size < 0 || size > in.remaining()) size = in.remaining();
+                if (id == 0x20746d66) { // "fmt "
+                    int format = in.getShort(in.position());
+                    int channels = in.getShort(in.position() + 2);
+                    sampleRate = in.getInt(in.position() + 4);
+                    int bits = in.getShort(in.position() + 14);
+                    if (format != 1 || channels != 1 || bits != 16) {
+                        throw new IOException("Unsupported WAV format " + format + "/" + channels + "/" + bits);
+                    }
+                } else if (id == 0x61746164 && sampleRate > 0) { // "data"
+                    samples = new short[size / 2];
+                    in.asShortBuffer().get(samples);
+                }
+                in.position(in.position() + size + (size & 1));
+            }
+            if (samples == null) throw new IOException("No audio data");
+
+            int edge = sampleRate * EDGE_MS / 1000;
+            int start = 0;
+            while (start < samples.length && Math.abs(samples[start]) < SILENCE_LEVEL) start++;
+            int end = samples.length;
+            while (end > start && Math.abs(samples[end - 1]) < SILENCE_LEVEL) end--;
+            if (start == end) throw new IOException("Silent");
+            start = Math.max(0, start - edge);
+            end = Math.min(samples.length, end + edge);
+
+            ByteBuffer out = ByteBuffer.allocate(4 + 2 * (end - start)).order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(sampleRate);
+            out.asShortBuffer().put(samples, start, end - start);
+            File tmp = new File(pcm.getPath() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                stream.write(out.array());
+            }
+            if (!tmp.renameTo(pcm)) throw new IOException("Rename failed");
+            return pcm;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Dropping synthesised " + wav.getName(), e);
+            return null;
+        }
+    }
+
+    private static Segment load(File pcm) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(readFully(pcm)).order(ByteOrder.LITTLE_ENDIAN);
+            int sampleRate = in.getInt();
+            short[] samples = new short[in.remaining() / 2];
+            in.asShortBuffer().get(samples);
+            pcm.setLastModified(System.currentTimeMillis());
+            return new Segment(sampleRate, samples);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unreadable segment " + pcm.getName(), e);
+            return null;
+        }
+    }
+
+    private void enforceBudget(File voiceDir) {
+        File[] files = voiceDir.listFiles((d, name) -> name.endsWith(".pcm"));
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= DISK_BUDGET_BYTES) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        // Down to 80%, so the next few recordings do not each trigger a sweep.
+        for (int i = 0; i < files.length && total > DISK_BUDGET_BYTES * 4 / 5; i++) {
+            total -= files[i].length();
+            String name = files[i].getName();
+            synchronized (this) {
+                cached.remove(name.substring(0, name.length() - 4));
+            }
+            files[i].delete();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) throw new IOException("Truncated " + file.getName());
+                read += n;
+            }
+        }
+        return bytes;
+    }
+
+    private static String join(List<String> segments, int from) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < segments.size(); i++) {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(segments.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static String stripRest(String utteranceId) {
+        return utteranceId.endsWith(REST_SUFFIX)
+                ? utteranceId.substring(0, utteranceId.length() - REST_SUFFIX.length()) : utteranceId;
+    }
+
+    private static String name(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 10; i++) sb.append(String.format(Locale.US, "%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.humanhand.offlineassistant.service;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.humanhand.offlineassistant.voice.LabelMatcher;
+
+/**
+ * Outcome of resolving a spoken target: a launchable package for OPEN_APP, or
+ * the matched node and its nearest clickable ancestor for CLICK.
+ */
+final class ResolvedTarget {
+    final String label;
+    final String packageName;
+    final AccessibilityNodeInfo node;
+    final AccessibilityNodeInfo clickable;
+    long resolveMs;
+
+    private ResolvedTarget(String label, String packageName,
+                           AccessibilityNodeInfo node, AccessibilityNodeInfo clickable) {
+        this.label = label;
+        this.packageName = packageName;
+        this.node = node;
+        this.clickable = clickable;
+    }
+
+    static ResolvedTarget forPackage(String label, String packageName) {
+        return new ResolvedTarget(label, packageName, null, null);
+    }
+
+    static ResolvedTarget forNode(CharSequence label, AccessibilityNodeInfo node, AccessibilityNodeInfo clickable) {
+        return new ResolvedTarget(label != null ? label.toString() : "", null, node, clickable);
+    }
+
+    /** Whether this resolution also answers {@code target}, using the same rule the live lookup applies. */
+    boolean matches(String target) {
+        if (target == null) return false;
+        if (packageName != null) {
+            return packageName.equals(target) || normalize(label).startsWith(normalize(target));
+        }
+        String key = normalize(target);
+        return !key.isEmpty() && normalize(label).contains(key);
+    }
+
+    /** Cheap check that cached nodes still exist on screen and still carry the matched label. */
+    boolean revalidate() {
+        if (node == null) return true;
+        if (!node.refresh()) return false;
+        CharSequence current = node.getText();
+        if (current == null || current.length() == 0) current = node.getContentDescription();
+        if (current == null || !label.contentEquals(current)) return false;
+        return clickable == null || clickable == node || clickable.refresh();
+    }
+
+    void recycle() {
+        if (clickable != null && clickable != node) clickable.recycle();
+        if (node != null) node.recycle();
+    }
+
+    static String normalize(CharSequence text) {
+        return LabelMatcher.normalize(text);
+    }
+}
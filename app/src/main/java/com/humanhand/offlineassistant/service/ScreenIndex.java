@@ -0,0 +1,433 @@
+package com.humanhand.offlineassistant.service;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import com.humanhand.offlineassistant.voice.LabelMatcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental index of the active window's labels, kept up to date from
+ * accessibility events on its own thread. A window-state change rebuilds it;
+ * content changes and scrolls re-walk only the changed subtrees, after merging
+ * sources that share an ancestor. A batch too large to track falls back to a
+ * full rebuild, at most once per {@link #MIN_REBUILD_INTERVAL_MS}. Each entry
+ * remembers its nearest clickable ancestor, so lookups need no getParent() walk.
+ * Lookups go through a {@link LabelMatcher} kept in step with the entries, and
+ * scrollable nodes are tracked so scrolling needs no walk of the window either.
+ * Walks run without the lock; only splicing their result in takes it, so a
+ * lookup never waits on binder calls.
+ */
+final class ScreenIndex {
+    private static final String TAG = "ScreenIndex";
+    private static final long BATCH_DELAY_MS = 50;
+    private static final int MAX_PENDING_SOURCES = 128;
+    // This many changed children of one node are re-walked as that node.
+    private static final int SIBLING_MERGE = 3;
+    // Busy screens (feeds, timers, video) overflow often; overflow rebuilds no more often than this.
+    private static final long MIN_REBUILD_INTERVAL_MS = 500;
+    // Below this a fuzzy match is more likely a wrong click than a misheard label.
+    private static final float MIN_MATCH_SCORE = 0.55f;
+    // Near-ties among these are settled by command history.
+    private static final int CANDIDATES = 4;
+
+    interface Listener {
+        /** Called on the index thread after each batch of updates. */
+        void onIndexUpdated(ScreenIndex index, boolean windowChanged);
+    }
+
+    static final class Entry {
+        final String label;
+        final String key;
+        final AccessibilityNodeInfo node;
+        final AccessibilityNodeInfo clickable;
+        final Rect bounds;
+        int matcherId = -1;
+
+        Entry(String label, AccessibilityNodeInfo node, AccessibilityNodeInfo clickable, Rect bounds) {
+            this.label = label;
+            this.key = LabelMatcher.normalize(label);
+            this.node = node;
+            this.clickable = clickable;
+            this.bounds = bounds;
+        }
+    }
+
+    private static final class NodeRecord {
+        final AccessibilityNodeInfo node;
+        final NodeRecord parent;
+        final List<NodeRecord> children = new ArrayList<>(2);
+        Entry entry;
+
+        NodeRecord(AccessibilityNodeInfo node, NodeRecord parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+    }
+
+    // What lookups read. The index thread is the only writer: it reads these
+    // without the lock and takes it only to patch them or swap in new ones.
+    private static final class Tables {
+        final Map<AccessibilityNodeInfo, NodeRecord> records = new HashMap<>();
+        final Map<String, List<Entry>> byKey = new HashMap<>();
+        final LabelMatcher<Entry> matcher = new LabelMatcher<>();
+        final Set<NodeRecord> scrollables = new LinkedHashSet<>();
+        NodeRecord root;
+    }
+
+    private final AccessibilityService service;
+    private final Listener listener;
+    private final CommandHistory history;
+    private final HandlerThread thread = new HandlerThread("ScreenIndex");
+    private final Handler handler;
+
+    private Tables tables = new Tables();
+    private final int screenHeight;
+    private volatile int windowId = -1;
+    private volatile String packageName;
+
+    private final Set<AccessibilityNodeInfo> pendingSources = new LinkedHashSet<>();
+    private boolean pendingRebuild;
+    private boolean pendingOverflow;
+    private final Runnable processPending = this::processPending;
+
+    // Index thread only.
+    private long lastRebuildAt = Long.MIN_VALUE / 2;
+
+    private long rebuilds;
+    private long deferredRebuilds;
+    private long updates;
+    private long updateNanos;
+    private long maxUpdateNanos;
+    private long lookups;
+    private long lookupNanos;
+
+    ScreenIndex(AccessibilityService service, Listener listener, CommandHistory history) {
+        this.service = service;
+        this.listener = listener;
+        this.history = history;
+        this.screenHeight = Math.max(1, service.getResources().getDisplayMetrics().heightPixels);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /** Main thread: queues the event's effect on the index. */
+    void onEvent(AccessibilityEvent event) {
+        int type = event.getEventType();
+        if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            requestRebuild();
+        } else if (type == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                || type == AccessibilityEvent.TYPE_VIEW_SCROLLED) {
+            if (event.getWindowId() != windowId) return;
+            AccessibilityNodeInfo source = event.getSource();
+            synchronized (pendingSources) {
+                if (source == null || pendingSources.size() >= MAX_PENDING_SOURCES) {
+                    pendingOverflow = true;
+                    if (source != null) source.recycle();
+                } else if (!pendingSources.add(source)) {
+                    source.recycle();
+                }
+            }
+            handler.removeCallbacks(processPending);
+            handler.postDelayed(processPending, BATCH_DELAY_MS);
+        }
+    }
+
+    /** Any thread: rebuilds from the active window, as a window-state change does. */
+    void requestRebuild() {
+        synchronized (pendingSources) {
+            pendingRebuild = true;
+        }
+        handler.removeCallbacks(processPending);
+        handler.post(processPending);
+    }
+
+    /** Best match for {@code text} with copies of its nodes, or null. The caller recycles the result. */
+    ResolvedTarget lookup(String text) {
+        long start = System.nanoTime();
+        ResolvedTarget result = null;
+        synchronized (this) {
+            LabelMatcher.Match<Entry> match =
+                    history.pick(packageName, text, tables.matcher.match(text, CANDIDATES), MIN_MATCH_SCORE);
+            if (match != null) {
+                Entry best = match.item;
+                AccessibilityNodeInfo node = AccessibilityNodeInfo.obtain(best.node);
+                AccessibilityNodeInfo clickable = best.clickable == null ? null
+                        : best.clickable == best.node ? node : AccessibilityNodeInfo.obtain(best.clickable);
+                result = ResolvedTarget.forNode(best.label, node, clickable);
+            }
+            lookups++;
+            lookupNanos += System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /** Score of the best label for {@code text}, or 0 below the match threshold. Allocates no nodes. */
+    synchronized float matchScore(String text) {
+        List<LabelMatcher.Match<Entry>> matches = tables.matcher.match(text, 1);
+        return matches.isEmpty() || matches.get(0).score < MIN_MATCH_SCORE ? 0f : matches.get(0).score;
+    }
+
+    /**
+     * Copy of the largest visible scrollable node offering {@code action}, or null.
+     * The caller recycles it.
+     */
+    synchronized AccessibilityNodeInfo largestScrollable(AccessibilityNodeInfo.AccessibilityAction action) {
+        NodeRecord best = null;
+        int bestArea = 0;
+        Rect bounds = new Rect();
+        for (NodeRecord record : tables.scrollables) {
+            if (!record.node.isVisibleToUser() || !record.node.getActionList().contains(action)) continue;
+            record.node.getBoundsInScreen(bounds);
+            int area = bounds.width() * bounds.height();
+            if (area > bestArea) {
+                bestArea = area;
+                best = record;
+            }
+        }
+        return best == null ? null : AccessibilityNodeInfo.obtain(best.node);
+    }
+
+    /** Package of the indexed window, or null before the first build. */
+    String packageName() {
+        return packageName;
+    }
+
+    synchronized List<String> labels() {
+        List<String> labels = new ArrayList<>();
+        for (List<Entry> entries : tables.byKey.values()) {
+            for (Entry entry : entries) labels.add(entry.label);
+        }
+        return labels;
+    }
+
+    synchronized String describeStats() {
+        return String.format(java.util.Locale.US,
+                "%d nodes, %d labels; %d rebuilds, %d deferred; update avg %.2f ms max %.2f ms over %d;"
+                        + " lookup avg %.3f ms over %d",
+                tables.records.size(), tables.byKey.size(), rebuilds, deferredRebuilds,
+                updates == 0 ? 0 : updateNanos / 1e6 / updates, maxUpdateNanos / 1e6, updates,
+                lookups == 0 ? 0 : lookupNanos / 1e6 / lookups, lookups);
+    }
+
+    void shutdown() {
+        handler.removeCallbacks(processPending);
+        handler.post(() -> {
+            synchronized (this) {
+                clear();
+            }
+            thread.quitSafely();
+        });
+    }
+
+    private void processPending() {
+        boolean rebuild;
+        boolean overflow;
+        List<AccessibilityNodeInfo> sources;
+        synchronized (pendingSources) {
+            rebuild = pendingRebuild;
+            overflow = pendingOverflow;
+            pendingRebuild = false;
+            pendingOverflow = false;
+            sources = new ArrayList<>(pendingSources);
+            pendingSources.clear();
+        }
+        if (overflow && !rebuild) {
+            long wait = lastRebuildAt + MIN_REBUILD_INTERVAL_MS - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                // Apply what was tracked now and rebuild for the rest once the interval is up.
+                synchronized (pendingSources) {
+                    pendingOverflow = true;
+                }
+                handler.postDelayed(processPending, wait);
+                deferredRebuilds++;
+            } else {
+                rebuild = true;
+            }
+        }
+
+        long start = System.nanoTime();
+        List<NodeRecord> subtrees = rebuild || tables.root == null ? null : coalesce(sources);
+        if (subtrees == null) {
+            rebuild();
+            rebuild = true;
+        } else {
+            for (NodeRecord record : subtrees) {
+                if (record == tables.root) {
+                    rebuild();
+                    rebuild = true;
+                    break;
+                }
+                refreshSubtree(record);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            updates++;
+            updateNanos += elapsed;
+            if (elapsed > maxUpdateNanos) maxUpdateNanos = elapsed;
+        }
+        for (AccessibilityNodeInfo source : sources) source.recycle();
+        if (listener != null) listener.onIndexUpdated(this, rebuild);
+    }
+
+    // Walks the whole window into new tables, then swaps them in.
+    private void rebuild() {
+        lastRebuildAt = SystemClock.uptimeMillis();
+        Tables fresh = new Tables();
+        int freshWindowId = -1;
+        String freshPackage = null;
+        AccessibilityNodeInfo rootNode = service.getRootInActiveWindow();
+        if (rootNode != null) {
+            freshWindowId = rootNode.getWindowId();
+            CharSequence pkg = rootNode.getPackageName();
+            freshPackage = pkg != null ? pkg.toString() : null;
+            List<NodeRecord> walked = new ArrayList<>();
+            fresh.root = walk(rootNode, null, null, walked);
+            for (NodeRecord record : walked) add(fresh, record);
+        }
+        Tables old;
+        synchronized (this) {
+            old = tables;
+            tables = fresh;
+            windowId = freshWindowId;
+            packageName = freshPackage;
+            rebuilds++;
+        }
+        recycle(old);
+        if (rootNode != null) Log.d(TAG, "Rebuilt: " + describeStats());
+    }
+    // Indexed subtrees covering every source, none inside another, or null if a
+    // source is not in the index and only a rebuild can place it.
+    private List<NodeRecord> coalesce(List<AccessibilityNodeInfo> sources) {
+        Set<NodeRecord> changed = new LinkedHashSet<>();
+        Map<NodeRecord, Integer> perParent = new HashMap<>();
+        for (AccessibilityNodeInfo source : sources) {
+            NodeRecord record = tables.records.get(source);
+            if (record == null) return null;
+            if (changed.add(record) && record.parent != null) {
+                Integer count = perParent.get(record.parent);
+                perParent.put(record.parent, count == null ? 1 : count + 1);
+            }
+        }
+        // Rows of a feed or list changing together: one walk of their parent.
+        for (Map.Entry<NodeRecord, Integer> parent : perParent.entrySet()) {
+            if (parent.getValue() >= SIBLING_MERGE) changed.add(parent.getKey());
+        }
+        List<NodeRecord> subtrees = new ArrayList<>(changed.size());
+        for (NodeRecord record : changed) {
+            boolean covered = false;
+            for (NodeRecord r = record.parent; r != null && !covered; r = r.parent) {
+                covered = changed.contains(r);
+            }
+            if (!covered) subtrees.add(record);
+        }
+        return subtrees;
+    }
+
+    // Re-walks the subtree under an indexed, non-root record, then splices it in.
+    private void refreshSubtree(NodeRecord record) {
+        AccessibilityNodeInfo clickableAncestor = null;
+        for (NodeRecord r = record.parent; r != null; r = r.parent) {
+            if (r.node.isClickable()) {
+                clickableAncestor = r.node;
+                break;
+            }
+        }
+        NodeRecord parent = record.parent;
+        AccessibilityNodeInfo fresh = AccessibilityNodeInfo.obtain(record.node);
+        List<NodeRecord> walked = new ArrayList<>();
+        NodeRecord subtree = null;
+        if (fresh.refresh()) {
+            subtree = walk(fresh, parent, clickableAncestor, walked);
+        } else {
+            fresh.recycle();
+        }
+        synchronized (this) {
+            parent.children.remove(record);
+            remove(record);
+            if (subtree != null) {
+                parent.children.add(subtree);
+                for (NodeRecord walkedRecord : walked) add(tables, walkedRecord);
+            }
+        }
+    }
+
+    // Records the subtree under {@code node} into {@code out}, indexing nothing; the caller attaches the result.
+    private NodeRecord walk(AccessibilityNodeInfo node, NodeRecord parent, AccessibilityNodeInfo clickableAncestor,
+                            List<NodeRecord> out) {
+        NodeRecord record = new NodeRecord(node, parent);
+        out.add(record);
+
+        AccessibilityNodeInfo clickable = node.isClickable() ? node : clickableAncestor;
+        CharSequence label = node.getText();
+        if (label == null || label.length() == 0) label = node.getContentDescription();
+        if (label != null && label.length() > 0 && node.isVisibleToUser()) {
+            Rect bounds = new Rect();
+            node.getBoundsInScreen(bounds);
+            Entry entry = new Entry(label.toString(), node, clickable, bounds);
+            if (!entry.key.isEmpty()) record.entry = entry;
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = node.getChild(i);
+            if (child != null) record.children.add(walk(child, record, clickable, out));
+        }
+        return record;
+    }
+
+    private void add(Tables into, NodeRecord record) {
+        into.records.put(record.node, record);
+        if (record.node.isScrollable()) into.scrollables.add(record);
+        Entry entry = record.entry;
+        if (entry == null) return;
+        entry.matcherId = into.matcher.add(entry.label, entry, entry.clickable != null, true,
+                (float) entry.bounds.top / screenHeight);
+        List<Entry> entries = into.byKey.get(entry.key);
+        if (entries == null) {
+            entries = new ArrayList<>(1);
+            into.byKey.put(entry.key, entries);
+        }
+        entries.add(entry);
+    }
+
+    // Caller holds the lock.
+    private void remove(NodeRecord record) {
+        for (NodeRecord child : record.children) remove(child);
+        if (record.entry != null) {
+            tables.matcher.remove(record.entry.matcherId);
+            List<Entry> entries = tables.byKey.get(record.entry.key);
+            if (entries != null) {
+                entries.remove(record.entry);
+                if (entries.isEmpty()) tables.byKey.remove(record.entry.key);
+            }
+        }
+        tables.records.remove(record.node);
+        tables.scrollables.remove(record);
+        record.node.recycle();
+    }
+
+    private static void recycle(Tables old) {
+        for (NodeRecord record : old.records.values()) record.node.recycle();
+    }
+
+    // Caller holds the lock.
+    private void clear() {
+        recycle(tables);
+        tables = new Tables();
+        windowId = -1;
+        packageName = null;
+    }
+}
@@ -0,0 +1,197 @@
+package com.humanhand.offlineassistant.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.humanhand.offlineassistant.voice.CommandParser;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies partial hypotheses while the user is still speaking and resolves a
+ * likely CLICK or OPEN_APP target in the background, so execution can use the
+ * result instead of querying the window or PackageManager again.
+ */
+public final class SpeculativeResolver {
+    private static final String TAG = "SpeculativeResolver";
+    private static final int MIN_TARGET_CHARS = 3;
+    private static final long CLAIM_WAIT_MS = 150;
+    private static final SpeculativeResolver INSTANCE = new SpeculativeResolver();
+
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "SpeculativeResolver"));
+    private CommandParser.ActionType action;
+    private String target;
+    private Speculation pending;
+    // The pending speculation came from prefetch, not from speech, so a newer prefetch may replace it.
+    private boolean predicted;
+
+    private int claims;
+    private int hits;
+    private long savedMs;
+
+    public static SpeculativeResolver getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized void onPartial(CharSequence text) {
+        CommandParser.Command cmd = CommandParser.parse(text);
+        if (!isSpeculative(cmd.action) || cmd.target == null || cmd.target.length() < MIN_TARGET_CHARS) {
+            return;
+        }
+        if (cmd.action == action && pending != null) {
+            if (cmd.target.equals(target)) {
+                predicted = false;
+                return;
+            }
+            // "click sett" already found "Settings"; "click setti" needs no new lookup.
+            if (cmd.target.startsWith(target) && pending.future.isDone() && matches(pending.future, cmd.target)) {
+                target = cmd.target;
+                predicted = false;
+                return;
+            }
+        }
+        HumanHandAccessibilityService service = HumanHandAccessibilityService.getInstance();
+        if (service == null) return;
+
+        discard();
+        speculate(service, cmd.action, cmd.target, false);
+    }
+
+    /**
+     * Resolves a target predicted before anything was said, unless speech has
+     * already started a speculation. Returns whether it was started.
+     */
+    synchronized boolean prefetch(CommandParser.ActionType action, String target) {
+        HumanHandAccessibilityService service = HumanHandAccessibilityService.getInstance();
+        if (service == null || pending != null && !predicted) return false;
+        discard();
+        speculate(service, action, target, true);
+        return true;
+    }
+
+    /** Drops the speculation as soon as the final hypothesis shows it cannot be used. */
+    synchronized void onFinal(CommandParser.Command cmd) {
+        if (pending == null) return;
+        if (cmd.action != action || cmd.target == null || !cmd.target.startsWith(target)) {
+            discard();
+        }
+    }
+
+    /** Hands over the speculative result for {@code target}, or null if there is none that matches. */
+    ResolvedTarget claim(CommandParser.ActionType action, String target) {
+        Speculation speculation;
+        synchronized (this) {
+            claims++;
+            if (pending == null || action != this.action) {
+                discard();
+                return null;
+            }
+            speculation = pending;
+            pending = null;
+            this.action = null;
+            this.target = null;
+        }
+
+        long waitStart = SystemClock.elapsedRealtime();
+        ResolvedTarget resolved;
+        try {
+            resolved = speculation.future.get(CLAIM_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            speculation.abandon();
+            return null;
+        }
+        long waited = SystemClock.elapsedRealtime() - waitStart;
+        if (resolved == null || !resolved.matches(target)) {
+            if (resolved != null) resolved.recycle();
+            return null;
+        }
+
+        synchronized (this) {
+            hits++;
+            savedMs += Math.max(0, resolved.resolveMs - waited);
+            Log.d(TAG, "Speculation hit for " + target + ": " + hits + "/" + claims
+                    + " hits, " + savedMs + " ms saved");
+        }
+        return resolved;
+    }
+
+    private void speculate(HumanHandAccessibilityService service, CommandParser.ActionType a, String t,
+                           boolean predicted) {
+        action = a;
+        target = t;
+        this.predicted = predicted;
+        Speculation speculation = new Speculation();
+        speculation.future = executor.submit(() -> {
+            if (speculation.state.get() != Speculation.RUNNING) return null;
+            long start = SystemClock.elapsedRealtime();
+            ResolvedTarget resolved = service.resolveTarget(a, t);
+            if (resolved != null) resolved.resolveMs = SystemClock.elapsedRealtime() - start;
+            if (!speculation.state.compareAndSet(Speculation.RUNNING, Speculation.DONE)) {
+                // Abandoned while resolving: nobody will read the result.
+                if (resolved != null) resolved.recycle();
+                return null;
+            }
+            return resolved;
+        });
+        pending = speculation;
+    }
+
+    synchronized void discard() {
+        if (pending != null) pending.abandon();
+        pending = null;
+        action = null;
+        target = null;
+    }
+
+    public synchronized String describeStats() {
+        return String.format(Locale.US, "%d/%d claims hit (%.0f%%), %d ms saved",
+                hits, claims, claims == 0 ? 0 : 100.0 * hits / claims, savedMs);
+    }
+
+    private static boolean isSpeculative(CommandParser.ActionType action) {
+        return action == CommandParser.ActionType.CLICK || action == CommandParser.ActionType.OPEN_APP;
+    }
+
+    /**
+     * One background resolve. Whoever loses the race between the resolve
+     * finishing and the speculation being dropped recycles the result, so a
+     * late result is never leaked.
+     */
+    private static final class Speculation {
+        static final int RUNNING = 0;
+        static final int DONE = 1;
+        static final int ABANDONED = 2;
+
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        volatile Future<ResolvedTarget> future;
+
+        void abandon() {
+            if (state.compareAndSet(RUNNING, ABANDONED)) {
+                // Not started, or the task recycles its own result when it finishes.
+                future.cancel(false);
+                return;
+            }
+            if (state.get() != DONE) return;
+            try {
+                // The task has returned; its value lands in the future right away.
+                ResolvedTarget resolved = future.get();
+                if (resolved != null) resolved.recycle();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    private static boolean matches(Future<ResolvedTarget> future, String target) {
+        try {
+            ResolvedTarget resolved = future.get();
+            return resolved != null && resolved.matches(target);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.humanhand.offlineassistant.service;
+
+import android.accessibilityservice.AccessibilityService;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live CLICK target search over every interactive window, not just the active
+ * one: dialogs, the IME, the other split-screen pane, the notification shade,
+ * bubbles. Used when the screen index, which covers the active window only,
+ * has no match.
+ *
+ * Windows are ranked active first, then focused, then top layer down, and
+ * queried in parallel on a small pool. The search settles as soon as a window
+ * has an exact label match and every window ranked above it has answered, or
+ * when {@link #BUDGET_MS} runs out, taking the best match so far. The common
+ * case therefore costs about one window's query however many are open.
+ */
+final class WindowSearch {
+    private static final String TAG = "WindowSearch";
+    private static final int THREADS = 3;
+    private static final long BUDGET_MS = 150;
+    private static final float EXACT = 1f;
+    private static final float WEAK = 0.1f;
+    // Off-screen matches (scrolled away, covered) only win when nothing visible does.
+    private static final float HIDDEN_PENALTY = 0.5f;
+
+    private static final Comparator<AccessibilityWindowInfo> ORDER = (a, b) -> {
+        if (a.isActive() != b.isActive()) return a.isActive() ? -1 : 1;
+        if (a.isFocused() != b.isFocused()) return a.isFocused() ? -1 : 1;
+        return Integer.compare(b.getLayer(), a.getLayer());
+    };
+
+    private final AccessibilityService service;
+    private final CommandHistory history;
+    private final ExecutorService pool =
+            Executors.newFixedThreadPool(THREADS, r -> new Thread(r, "WindowSearch"));
+
+    private long searches;
+    private long searchNanos;
+    private long timeouts;
+    private long windowsQueried;
+
+    WindowSearch(AccessibilityService service, CommandHistory history) {
+        this.service = service;
+        this.history = history;
+    }
+
+    /** Best match for {@code text} in any window, or null. Blocks up to the budget; the caller recycles the result. */
+    ResolvedTarget find(String text) {
+        long start = System.nanoTime();
+        String key = ResolvedTarget.normalize(text);
+        if (key.isEmpty()) return null;
+
+        List<AccessibilityWindowInfo> windows = new ArrayList<>();
+        for (AccessibilityWindowInfo window : service.getWindows()) {
+            int type = window.getType();
+            if (type == AccessibilityWindowInfo.TYPE_ACCESSIBILITY_OVERLAY
+                    || type == AccessibilityWindowInfo.TYPE_SPLIT_SCREEN_DIVIDER) {
+                window.recycle();
+            } else {
+                windows.add(window);
+            }
+        }
+        if (windows.isEmpty()) return null;
+        Collections.sort(windows, ORDER);
+
+        Search search = new Search(windows.size());
+        for (int i = 0; i < windows.size(); i++) {
+            int rank = i;
+            AccessibilityWindowInfo window = windows.get(i);
+            pool.execute(() -> scan(search, rank, window, text, key));
+        }
+        ResolvedTarget result = search.await(start + TimeUnit.MILLISECONDS.toNanos(BUDGET_MS));
+
+        synchronized (this) {
+            searches++;
+            searchNanos += System.nanoTime() - start;
+            windowsQueried += windows.size();
+            if (search.timedOut) timeouts++;
+        }
+        return result;
+    }
+
+    synchronized String describeStats() {
+        return String.format(Locale.US, "%d searches, avg %.1f ms, %.1f windows, %d hit the budget",
+                searches, searches == 0 ? 0 : searchNanos / 1e6 / searches,
+                searches == 0 ? 0 : (double) windowsQueried / searches, timeouts);
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void scan(Search search, int rank, AccessibilityWindowInfo window, String text, String key) {
+        ResolvedTarget best = null;
+        float bestScore = 0f;
+        try {
+            // Nothing left to win once the search has settled.
+            if (search.closed) return;
+            AccessibilityNodeInfo root = window.getRoot();
+            if (root == null) return;
+            CharSequence pkg = root.getPackageName();
+            String packageName = pkg != null ? pkg.toString() : null;
+            List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByText(text);
+            root.recycle();
+            if (nodes == null) return;
+            AccessibilityNodeInfo bestNode = null;
+            for (AccessibilityNodeInfo node : nodes) {
+                CharSequence label = label(node);
+                float score = score(key, label);
+                if (!node.isVisibleToUser()) score *= HIDDEN_PENALTY;
+                // Only breaks ties between partial matches; an exact label still settles the search.
+                if (score < EXACT && label != null) {
+                    score = Math.min(Math.nextDown(EXACT), score + history.boost(packageName, text, label.toString()));
+                }
+                if (score > bestScore) {
+                    if (bestNode != null) bestNode.recycle();
+                    bestNode = node;
+                    bestScore = score;
+                } else {
+                    node.recycle();
+                }
+            }
+            if (bestNode != null) best = ResolvedTarget.forNode(label(bestNode), bestNode, clickableAncestor(bestNode));
+        } catch (RuntimeException e) {
+            // The window can go away mid-query; treat it as no match.
+            Log.d(TAG, "Window query failed: " + e);
+        } finally {
+            window.recycle();
+            search.offer(rank, best, bestScore);
+        }
+    }
+
+    // 1 for the whole label, less the more of the label the spoken text leaves out.
+    // The framework already matched the node, so even a label that normalises differently scores a little.
+    private static float score(String key, CharSequence label) {
+        String labelKey = ResolvedTarget.normalize(label);
+        if (labelKey.equals(key)) return EXACT;
+        return labelKey.contains(key) ? 0.9f * key.length() / labelKey.length() : WEAK;
+    }
+
+    private static CharSequence label(AccessibilityNodeInfo node) {
+        CharSequence label = node.getText();
+        return label != null && label.length() > 0 ? label : node.getContentDescription();
+    }
+
+    /** Nearest clickable node at or above {@code node}, or null. */
+    private static AccessibilityNodeInfo clickableAncestor(AccessibilityNodeInfo node) {
+        AccessibilityNodeInfo clickable = node;
+        while (clickable != null && !clickable.isClickable()) {
+            AccessibilityNodeInfo parent = clickable.getParent();
+            if (clickable != node) clickable.recycle();
+            clickable = parent;
+        }
+        return clickable;
+    }
+
+    /** Per-window answers, indexed by rank. */
+    private static final class Search {
+        private static final int PENDING = -2;
+        private static final int NONE = -1;
+
+        private final ResolvedTarget[] targets;
+        private final float[] scores;
+        private final boolean[] answered;
+        volatile boolean closed;
+        boolean timedOut;
+
+        Search(int windows) {
+            targets = new ResolvedTarget[windows];
+            scores = new float[windows];
+            answered = new boolean[windows];
+        }
+
+        synchronized void offer(int rank, ResolvedTarget target, float score) {
+            if (closed) {
+                if (target != null) target.recycle();
+                return;
+            }
+            targets[rank] = target;
+            scores[rank] = score;
+            answered[rank] = true;
+            notifyAll();
+        }
+
+        /** Waits until the winner is settled or the deadline passes; recycles every other match. */
+        synchronized ResolvedTarget await(long deadlineNanos) {
+            int winner;
+            try {
+                while ((winner = settled()) == PENDING) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0) break;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                winner = PENDING;
+            }
+            if (winner == PENDING) {
+                timedOut = true;
+                winner = best();
+            }
+            closed = true;
+            for (int i = 0; i < targets.length; i++) {
+                if (i != winner && targets[i] != null) targets[i].recycle();
+            }
+            return winner == NONE ? null : targets[winner];
+        }
+
+        // Winner once no unanswered window could still beat it, NONE if nothing matched, else PENDING.
+        private int settled() {
+            for (int i = 0; i < answered.length; i++) {
+                if (!answered[i]) return PENDING;
+                if (scores[i] >= EXACT) return i;
+            }
+            return best();
+        }
+
+        // Highest score; ties go to the higher-ranked window.
+        private int best() {
+            int best = NONE;
+            for (int i = 0; i < targets.length; i++) {
+                if (targets[i] != null && (best == NONE || scores[i] > scores[best])) best = i;
+            }
+            return best;
+        }
+    }
+}
@@ -4,9 +4,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.PixelFormat;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.view.animation.AlphaAnimation;
 import android.view.animation.Animation;
@@ -15,12 +18,68 @@ import android.widget.ImageView;
 
 import com.humanhand.offlineassistant.R;
 
+import java.util.Locale;
+
+/**
+ * Mic button over other apps. While active it shows a level meter and the
+ * recognizer state instead of blinking: the button sits on a hardware layer
+ * and is only redrawn when the quantized level or the state changes, at most
+ * every {@link #MIN_FRAME_MS}, so steady silence renders nothing.
+ *
+ * Frames are counted where the window draws, so {@link #measureBlink()} can
+ * run the old blink for a few seconds and count its frames the same way.
+ */
 public class FloatingMicOverlay {
+    public enum State {
+        // Standby: plain button, no meter.
+        IDLE,
+        WARMING,
+        LISTENING,
+        PROCESSING,
+        EXECUTING
+    }
+
+    private static final String TAG = "FloatingMicOverlay";
+    // About 20 fps; the recognizer reports levels at 10 Hz anyway.
+    private static final long MIN_FRAME_MS = 50;
+    private static final long BLINK_SAMPLE_MS = 5000;
+
+    // The overlay on screen, for the dashboard; main thread only.
+    private static FloatingMicOverlay shown;
+    // Frames per minute the old blink drew when last measured, or -1.
+    private static double blinkFramesPerMin = -1;
+
     private final Context context;
     private final WindowManager windowManager;
+    private final LevelMeterDrawable meter = new LevelMeterDrawable();
     private View overlayView;
     private ImageView micButton;
 
+    private State state = State.IDLE;
+    private int level;
+    private long lastFrameAt;
+    private boolean frameScheduled;
+    private final Runnable frame = () -> {
+        frameScheduled = false;
+        render();
+    };
+
+    // Time spent in any state but IDLE, which the old blink would have animated through.
+    private long activeSince;
+    private long activeMs;
+    private long activeFrames;
+
+    private long blinkStartedAt;
+    private long blinkFrames;
+    private final Runnable endBlink = this::endBlink;
+    private final ViewTreeObserver.OnDrawListener frameCounter = () -> {
+        if (blinkStartedAt != 0) {
+            blinkFrames++;
+        } else if (state != State.IDLE) {
+            activeFrames++;
+        }
+    };
+
     public FloatingMicOverlay(Context context) {
         this.context = context;
         this.windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
@@ -52,31 +111,104 @@ public class FloatingMicOverlay {
             Intent intent = new Intent("com.humanhand.TOGGLE_LISTENING");
             context.sendBroadcast(intent);
         });
+        micButton.setForeground(meter);
+        micButton.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        overlayView.getViewTreeObserver().addOnDrawListener(frameCounter);
 
         windowManager.addView(overlayView, params);
+        shown = this;
     }
 
-    public void startBlinking() {
-        if (micButton != null) {
-            Animation blink = new AlphaAnimation(1, 0);
-            blink.setDuration(500);
-            blink.setInterpolator(new LinearInterpolator());
-            blink.setRepeatCount(Animation.INFINITE);
-            blink.setRepeatMode(Animation.REVERSE);
-            micButton.startAnimation(blink);
+    /** Main thread. Leaving LISTENING clears the level. */
+    public void setState(State state) {
+        if (state == this.state) return;
+        long now = SystemClock.elapsedRealtime();
+        if (this.state == State.IDLE) {
+            activeSince = now;
+        } else if (state == State.IDLE) {
+            activeMs += now - activeSince;
         }
+        this.state = state;
+        if (state != State.LISTENING) level = 0;
+        render();
     }
 
-    public void stopBlinking() {
-        if (micButton != null) {
-            micButton.clearAnimation();
+    /** Main thread; {@code level} as reported by {@link com.humanhand.offlineassistant.voice.VoiceRecognitionManager.MeterListener}. */
+    public void setLevel(int level) {
+        if (level == this.level) return;
+        this.level = level;
+        render();
+    }
+
+    // Coalesces changes that come faster than MIN_FRAME_MS into one redraw of the latest.
+    private void render() {
+        if (micButton == null || frameScheduled) return;
+        long now = SystemClock.uptimeMillis();
+        long wait = lastFrameAt + MIN_FRAME_MS - now;
+        if (wait > 0) {
+            frameScheduled = true;
+            micButton.postDelayed(frame, wait);
+            return;
         }
+        if (meter.set(state, level)) lastFrameAt = now;
+    }
+
+    /**
+     * Main thread. Runs the blink the overlay used to show while listening for
+     * {@link #BLINK_SAMPLE_MS} and records how many frames it drew, as the
+     * baseline for {@link #describeStats()}.
+     */
+    public void measureBlink() {
+        if (micButton == null || blinkStartedAt != 0) return;
+        Animation blink = new AlphaAnimation(1, 0);
+        blink.setDuration(500);
+        blink.setInterpolator(new LinearInterpolator());
+        blink.setRepeatCount(Animation.INFINITE);
+        blink.setRepeatMode(Animation.REVERSE);
+        blinkFrames = 0;
+        blinkStartedAt = SystemClock.uptimeMillis();
+        micButton.startAnimation(blink);
+        micButton.postDelayed(endBlink, BLINK_SAMPLE_MS);
+    }
+
+    private void endBlink() {
+        micButton.clearAnimation();
+        blinkFramesPerMin = blinkFrames * 60000.0 / (SystemClock.uptimeMillis() - blinkStartedAt);
+        blinkStartedAt = 0;
+        Log.d(TAG, "Blink drew " + blinkFrames + " frames in " + BLINK_SAMPLE_MS + " ms");
+    }
+
+    /**
+     * Main thread. Frames the overlay window drew and meter render time per
+     * active minute, against the blink's frames per minute from {@link #measureBlink()}.
+     */
+    public static String describeStats() {
+        FloatingMicOverlay overlay = shown;
+        String blink = blinkFramesPerMin < 0 ? "not measured"
+                : String.format(Locale.US, "%.0f frames/min measured", blinkFramesPerMin);
+        if (overlay == null) return "Overlay not shown\nBlink baseline: " + blink;
+        long ms = overlay.activeMs
+                + (overlay.state != State.IDLE ? SystemClock.elapsedRealtime() - overlay.activeSince : 0);
+        if (ms == 0) return "Never active\nBlink baseline: " + blink;
+        double minutes = ms / 60000.0;
+        return String.format(Locale.US, "%.1f active min, %.0f frames/min, %.2f ms render/min\nBlink baseline: %s",
+                minutes, overlay.activeFrames / minutes, overlay.meter.getRenderNanos() / 1e6 / minutes, blink);
     }
 
     public void hide() {
         if (overlayView != null) {
+            micButton.removeCallbacks(frame);
+            frameScheduled = false;
+            if (blinkStartedAt != 0) {
+                micButton.removeCallbacks(endBlink);
+                micButton.clearAnimation();
+                blinkStartedAt = 0;
+            }
+            overlayView.getViewTreeObserver().removeOnDrawListener(frameCounter);
+            if (shown == this) shown = null;
             windowManager.removeView(overlayView);
             overlayView = null;
+            micButton = null;
         }
     }
 }
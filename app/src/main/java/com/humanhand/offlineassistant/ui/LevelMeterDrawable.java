@@ -0,0 +1,91 @@
+package com.humanhand.offlineassistant.ui;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.humanhand.offlineassistant.voice.VoiceRecognitionManager;
+
+/**
+ * Ring drawn over the mic button: its colour is the recognizer state and its
+ * thickness the input level. Static between changes, so on a hardware layer
+ * an unchanged meter costs no rendering at all.
+ */
+final class LevelMeterDrawable extends Drawable {
+    private static final int WARMING_COLOR = 0xFF9E9E9E;
+    private static final int LISTENING_COLOR = 0xFF03DAC5;
+    private static final int PROCESSING_COLOR = 0xFFFFB300;
+    private static final int EXECUTING_COLOR = 0xFF43A047;
+    // Fractions of the button radius.
+    private static final float MIN_STROKE = 0.06f;
+    private static final float MAX_STROKE = 0.3f;
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private FloatingMicOverlay.State state = FloatingMicOverlay.State.IDLE;
+    private int level;
+
+    private long renderNanos;
+
+    LevelMeterDrawable() {
+        paint.setStyle(Paint.Style.STROKE);
+    }
+
+    /** Returns false, and does not invalidate, when nothing visible changed. */
+    boolean set(FloatingMicOverlay.State state, int level) {
+        // Only listening shows the level; elsewhere it would redraw for nothing.
+        if (state != FloatingMicOverlay.State.LISTENING) level = 0;
+        if (state == this.state && level == this.level) return false;
+        this.state = state;
+        this.level = level;
+        invalidateSelf();
+        return true;
+    }
+
+    long getRenderNanos() {
+        return renderNanos;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        long start = System.nanoTime();
+        int color = colorFor(state);
+        if (color != 0) {
+            Rect bounds = getBounds();
+            float radius = Math.min(bounds.width(), bounds.height()) / 2f;
+            float fraction = (float) level / (VoiceRecognitionManager.METER_LEVELS - 1);
+            float stroke = radius * (MIN_STROKE + (MAX_STROKE - MIN_STROKE) * fraction);
+            paint.setColor(color);
+            paint.setStrokeWidth(stroke);
+            canvas.drawCircle(bounds.exactCenterX(), bounds.exactCenterY(), radius - stroke / 2, paint);
+        }
+        renderNanos += System.nanoTime() - start;
+    }
+
+    private static int colorFor(FloatingMicOverlay.State state) {
+        switch (state) {
+            case WARMING: return WARMING_COLOR;
+            case LISTENING: return LISTENING_COLOR;
+            case PROCESSING: return PROCESSING_COLOR;
+            case EXECUTING: return EXECUTING_COLOR;
+            default: return 0;
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+}
@@ -10,10 +10,26 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.humanhand.offlineassistant.R;
+import com.humanhand.offlineassistant.service.CommandBus;
+import com.humanhand.offlineassistant.service.CommandHistory;
+import com.humanhand.offlineassistant.service.PipelineTrace;
+import com.humanhand.offlineassistant.service.SpeculativeResolver;
+import com.humanhand.offlineassistant.voice.ModelBudget;
+import com.humanhand.offlineassistant.voice.ModelStore;
+import com.humanhand.offlineassistant.voice.VoiceRecognitionManager;
+import com.humanhand.offlineassistant.voice.WakeWordSpotter;
 import java.io.File;
 import java.io.IOException;
 
 public class MaintenanceDashboardActivity extends AppCompatActivity {
+    private TextView tvTraceStats;
+    private TextView tvStandbyStats;
+    private TextView tvHistoryStats;
+    private TextView tvModelTiers;
+    private TextView tvSpeculationStats;
+    private TextView tvBusStats;
+    private TextView tvOverlayStats;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -26,6 +42,15 @@ public class MaintenanceDashboardActivity extends AppCompatActivity {
         TextView tvModelStatus = findViewById(R.id.tv_model_status);
         Button btnSamsungOptimize = findViewById(R.id.btn_samsung_optimize);
         Button btnSamsungBattery = findViewById(R.id.btn_samsung_battery);
+        Button btnExportTrace = findViewById(R.id.btn_export_trace);
+        tvTraceStats = findViewById(R.id.tv_trace_stats);
+        tvStandbyStats = findViewById(R.id.tv_standby_stats);
+        tvHistoryStats = findViewById(R.id.tv_history_stats);
+        tvModelTiers = findViewById(R.id.tv_model_tiers);
+        tvSpeculationStats = findViewById(R.id.tv_speculation_stats);
+        tvBusStats = findViewById(R.id.tv_bus_stats);
+        tvOverlayStats = findViewById(R.id.tv_overlay_stats);
+        Button btnMeasureBlink = findViewById(R.id.btn_measure_blink);
 
         btnClearCache.setOnClickListener(v -> clearAppCache());
         btnOptimizeRam.setOnClickListener(v -> optimizeRam());
@@ -33,10 +58,43 @@ public class MaintenanceDashboardActivity extends AppCompatActivity {
         btnAccessibility.setOnClickListener(v -> openAccessibilitySettings());
         btnSamsungOptimize.setOnClickListener(v -> openSamsungDeviceCare());
         btnSamsungBattery.setOnClickListener(v -> openSamsungBatterySettings());
+        btnExportTrace.setOnClickListener(v -> exportTrace());
+        btnMeasureBlink.setOnClickListener(v -> measureBlink());
 
         checkModelStatus(tvModelStatus);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        tvTraceStats.setText(PipelineTrace.getInstance().describePercentiles());
+        tvStandbyStats.setText(WakeWordSpotter.describeStats());
+        tvHistoryStats.setText(CommandHistory.getInstance(this).describeStats());
+        tvModelTiers.setText(ModelBudget.describe(this));
+        tvSpeculationStats.setText(SpeculativeResolver.getInstance().describeStats());
+        tvBusStats.setText(CommandBus.getInstance().describeStats());
+        tvOverlayStats.setText(FloatingMicOverlay.describeStats());
+    }
+
+    // The voice service owns the overlay; it blinks for a few seconds, then the result shows here.
+    private void measureBlink() {
+        sendBroadcast(new Intent("com.humanhand.MEASURE_BLINK"));
+        Toast.makeText(this, "Measuring blink for 5 s", Toast.LENGTH_SHORT).show();
+        tvOverlayStats.postDelayed(() -> tvOverlayStats.setText(FloatingMicOverlay.describeStats()), 5500);
+    }
+
+    private void exportTrace() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) dir = getFilesDir();
+        try {
+            File file = PipelineTrace.getInstance().export(dir);
+            Toast.makeText(this, "Trace saved to " + file.getPath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, "Trace export failed", Toast.LENGTH_SHORT).show();
+        }
+        tvTraceStats.setText(PipelineTrace.getInstance().describePercentiles());
+    }
+
     private void openSamsungDeviceCare() {
         try {
             Intent intent = new Intent();
@@ -72,9 +130,13 @@ public class MaintenanceDashboardActivity extends AppCompatActivity {
 
     private void checkModelStatus(TextView tv) {
         try {
-            String[] assets = getAssets().list("vosk-model-small-en-us-0.15");
+            String[] assets = getAssets().list(VoiceRecognitionManager.MODEL_ASSET);
             if (assets != null && assets.length > 0) {
-                tv.setText("Model Status: Ready (Offline)");
+                long[] readyMs = ModelStore.getReadyTimes(this, VoiceRecognitionManager.MODEL_ASSET);
+                boolean lite = ModelStore.isBundled(this, VoiceRecognitionManager.LITE_MODEL_ASSET);
+                tv.setText("Model Status: Ready (Offline)\nLoad time: cold " + formatMs(readyMs[0])
+                        + ", warm " + formatMs(readyMs[1])
+                        + "\nLite model: " + (lite ? "bundled" : "not bundled, LITE keeps the full model"));
                 tv.setTextColor(0xFF4CAF50); // Green
             } else {
                 tv.setText("Model Status: MISSING! (Add model to assets/model-en-us)");
@@ -85,6 +147,10 @@ public class MaintenanceDashboardActivity extends AppCompatActivity {
         }
     }
 
+    private static String formatMs(long ms) {
+        return ms < 0 ? "n/a" : ms + " ms";
+    }
+
     private void startVoiceService() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !Settings.canDrawOverlays(this)) {
             Intent intent = new Intent(Settings.ACTION_MANAGE_OVERLAY_PERMISSION);
@@ -0,0 +1,132 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vosk grammar for command mode: the parser vocabulary plus whatever app and
+ * on-screen labels are currently reachable. Label sets are diffed word by word,
+ * so the JSON is only rebuilt when the reachable vocabulary actually changes.
+ */
+public class CommandGrammar {
+    private static final String UNKNOWN_WORD = "[unk]";
+    private static final CommandGrammar INSTANCE = new CommandGrammar();
+
+    private final Set<String> fixedWords = new LinkedHashSet<>();
+    private final Map<String, Integer> dynamicWords = new HashMap<>();
+    private Set<String> screenWords = new HashSet<>();
+    private Set<String> appWords = new HashSet<>();
+    private Set<String> macroWords = new HashSet<>();
+    private String cachedJson;
+    private int rebuilds;
+
+    public static CommandGrammar getInstance() {
+        return INSTANCE;
+    }
+
+    private CommandGrammar() {
+        fixedWords.addAll(CommandParser.vocabulary());
+        fixedWords.add("confirm");
+        fixedWords.add("cancel");
+        // Replayed wake segments start with the phrase; keep it out of [unk].
+        fixedWords.addAll(Arrays.asList(WakeWordSpotter.WAKE_PHRASE.split(" ")));
+    }
+
+    public void setScreenLabels(Collection<? extends CharSequence> labels) {
+        Set<String> words = tokenize(labels);
+        synchronized (this) {
+            applyDiff(screenWords, words);
+            screenWords = words;
+        }
+    }
+
+    public void setAppLabels(Collection<? extends CharSequence> labels) {
+        Set<String> words = tokenize(labels);
+        synchronized (this) {
+            applyDiff(appWords, words);
+            appWords = words;
+        }
+    }
+
+    public void setMacroNames(Collection<? extends CharSequence> names) {
+        Set<String> words = tokenize(names);
+        synchronized (this) {
+            applyDiff(macroWords, words);
+            macroWords = words;
+        }
+    }
+
+    public synchronized String toJson() {
+        if (cachedJson == null) {
+            StringBuilder sb = new StringBuilder(16 * (fixedWords.size() + dynamicWords.size()));
+            sb.append('[');
+            for (String word : fixedWords) appendWord(sb, word);
+            for (String word : dynamicWords.keySet()) {
+                if (!fixedWords.contains(word)) appendWord(sb, word);
+            }
+            appendWord(sb, UNKNOWN_WORD);
+            sb.append(']');
+            cachedJson = sb.toString();
+            rebuilds++;
+        }
+        return cachedJson;
+    }
+
+    public synchronized int size() {
+        return fixedWords.size() + dynamicWords.size();
+    }
+
+    public synchronized int getRebuildCount() {
+        return rebuilds;
+    }
+
+    private void applyDiff(Set<String> previous, Set<String> next) {
+        boolean changed = false;
+        for (String word : previous) {
+            if (next.contains(word)) continue;
+            Integer count = dynamicWords.get(word);
+            if (count == null || count <= 1) {
+                dynamicWords.remove(word);
+                changed = true;
+            } else {
+                dynamicWords.put(word, count - 1);
+            }
+        }
+        for (String word : next) {
+            if (previous.contains(word)) continue;
+            Integer count = dynamicWords.get(word);
+            dynamicWords.put(word, count == null ? 1 : count + 1);
+            if (count == null) changed = true;
+        }
+        if (changed) cachedJson = null;
+    }
+
+    // Vosk model vocabularies are lowercase words; anything else would only add [unk] noise.
+    private static Set<String> tokenize(Collection<? extends CharSequence> labels) {
+        Set<String> words = new HashSet<>();
+        StringBuilder word = new StringBuilder();
+        for (CharSequence label : labels) {
+            if (label == null) continue;
+            for (int i = 0; i <= label.length(); i++) {
+                char c = i < label.length() ? Character.toLowerCase(label.charAt(i)) : ' ';
+                if ((c >= 'a' && c <= 'z') || c == '\'') {
+                    word.append(c);
+                } else if (word.length() > 0) {
+                    if (word.length() > 1) words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+        }
+        return words;
+    }
+
+    private static void appendWord(StringBuilder sb, String word) {
+        if (sb.length() > 1) sb.append(',');
+        sb.append('"').append(word).append('"');
+    }
+}
@@ -0,0 +1,43 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed command sequence. Compiled once from its spoken phrase, then
+ * replayed as often as needed without touching the parser again.
+ */
+public final class CommandMacro {
+    public final String name;
+    public final String phrase;
+    public final List<CommandParser.Command> steps;
+
+    private CommandMacro(String name, String phrase, List<CommandParser.Command> steps) {
+        this.name = name;
+        this.phrase = phrase;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Parses {@code phrase} into steps. Returns null if any step is not understood
+     * or is itself a macro command, so a half-understood sequence never runs.
+     */
+    public static CommandMacro compile(String name, String phrase) {
+        List<CommandParser.Command> steps = CommandParser.parseSequence(phrase);
+        for (CommandParser.Command step : steps) {
+            switch (step.action) {
+                case UNKNOWN:
+                case RUN_MACRO:
+                case SAVE_MACRO:
+                    return null;
+                default:
+                    break;
+            }
+        }
+        return new CommandMacro(name, phrase, steps);
+    }
+
+    public CommandMacro withName(String name) {
+        return new CommandMacro(name, phrase, steps);
+    }
+}
@@ -1,13 +1,16 @@
 package com.humanhand.offlineassistant.voice;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class CommandParser {
     public enum ActionType {
-        OPEN_APP, CLICK, SCROLL, GO_BACK, HOME, RECENTS, TYPE, CALL, 
-        TOGGLE_WIFI, TOGGLE_FLASHLIGHT, TOGGLE_SPEAKER, 
-        SAMSUNG_OPTIMIZE, SAMSUNG_BATTERY, UNKNOWN
+        OPEN_APP, CLICK, SCROLL, KEEP_SCROLLING, STOP, GO_BACK, HOME, RECENTS, TYPE, CALL,
+        TOGGLE_WIFI, TOGGLE_FLASHLIGHT, TOGGLE_SPEAKER,
+        SAMSUNG_OPTIMIZE, SAMSUNG_BATTERY, RUN_MACRO, SAVE_MACRO, UNKNOWN
     }
 
     public static class Command {
@@ -31,53 +34,196 @@ public class CommandParser {
         }
     }
 
-    public static Command parse(String text) {
-        text = text.toLowerCase().trim();
-        
-        if (text.startsWith("open ")) {
-            return new Command(ActionType.OPEN_APP, text.substring(5).trim());
+    private enum Anchor { PREFIX, CONTAINS, EXACT }
+
+    private enum Slot { NONE, TARGET, DIRECTION }
+
+    private static final class Rule {
+        final ActionType action;
+        final Anchor anchor;
+        final Slot slot;
+        final String[] phrases;
+
+        Rule(ActionType action, Anchor anchor, Slot slot, String... phrases) {
+            this.action = action;
+            this.anchor = anchor;
+            this.slot = slot;
+            this.phrases = phrases;
         }
-        
-        if (text.startsWith("click ")) {
-            return new Command(ActionType.CLICK, text.substring(6).trim());
+    }
+
+    // Earlier rules win when several match, which keeps the old if-chain precedence.
+    private static final Rule[] RULES = {
+            new Rule(ActionType.SAVE_MACRO, Anchor.PREFIX, Slot.TARGET, "save macro "),
+            new Rule(ActionType.RUN_MACRO, Anchor.PREFIX, Slot.TARGET, "run "),
+            new Rule(ActionType.OPEN_APP, Anchor.PREFIX, Slot.TARGET, "open "),
+            new Rule(ActionType.CLICK, Anchor.PREFIX, Slot.TARGET, "click "),
+            new Rule(ActionType.KEEP_SCROLLING, Anchor.CONTAINS, Slot.DIRECTION, "keep scrolling", "continuously"),
+            new Rule(ActionType.SCROLL, Anchor.CONTAINS, Slot.DIRECTION, "scroll "),
+            new Rule(ActionType.STOP, Anchor.EXACT, Slot.NONE, "stop", "stop scrolling"),
+            new Rule(ActionType.GO_BACK, Anchor.EXACT, Slot.NONE, "go back", "back"),
+            new Rule(ActionType.HOME, Anchor.EXACT, Slot.NONE, "go home", "home"),
+            new Rule(ActionType.RECENTS, Anchor.CONTAINS, Slot.NONE, "recent apps", "recents"),
+            new Rule(ActionType.TOGGLE_WIFI, Anchor.CONTAINS, Slot.NONE, "wifi"),
+            new Rule(ActionType.TOGGLE_FLASHLIGHT, Anchor.CONTAINS, Slot.NONE, "flashlight", "torch"),
+            new Rule(ActionType.SAMSUNG_OPTIMIZE, Anchor.CONTAINS, Slot.NONE, "optimize", "clean phone"),
+            new Rule(ActionType.SAMSUNG_BATTERY, Anchor.CONTAINS, Slot.NONE, "battery"),
+    };
+
+    private static final String[] DIRECTIONS = {"down", "up", "left", "right"};
+    // Joins the steps of a spoken macro: "open settings then click battery".
+    private static final String STEP_SEPARATOR = "then";
+
+    private static final KeywordAutomaton AUTOMATON;
+    // Rule index for each keyword id, or -1 - directionIndex for direction words.
+    private static final int[] KEYWORD_RULE;
+
+    static {
+        List<String> keywords = new ArrayList<>();
+        List<Integer> owners = new ArrayList<>();
+        for (int r = 0; r < RULES.length; r++) {
+            for (String phrase : RULES[r].phrases) {
+                keywords.add(phrase);
+                owners.add(r);
+            }
         }
-        
-        if (text.contains("scroll ")) {
-            String direction = "down";
-            if (text.contains("up")) direction = "up";
-            else if (text.contains("left")) direction = "left";
-            else if (text.contains("right")) direction = "right";
-            return new Command(ActionType.SCROLL, null, direction);
+        for (int d = 0; d < DIRECTIONS.length; d++) {
+            keywords.add(DIRECTIONS[d]);
+            owners.add(-1 - d);
         }
+        AUTOMATON = new KeywordAutomaton(keywords.toArray(new String[0]));
+        KEYWORD_RULE = new int[owners.size()];
+        for (int i = 0; i < KEYWORD_RULE.length; i++) KEYWORD_RULE[i] = owners.get(i);
+    }
 
-        if (text.equals("go back") || text.equals("back")) {
-            return new Command(ActionType.GO_BACK);
+    /** Every word the rule table can match, for building recognizer grammars. */
+    public static Set<String> vocabulary() {
+        Set<String> words = new LinkedHashSet<>();
+        for (Rule rule : RULES) {
+            for (String phrase : rule.phrases) {
+                for (String word : phrase.trim().split(" ")) words.add(word);
+            }
         }
+        Collections.addAll(words, DIRECTIONS);
+        words.add(STEP_SEPARATOR);
+        return words;
+    }
+
+    public static Command parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
 
-        if (text.equals("go home") || text.equals("home")) {
-            return new Command(ActionType.HOME);
+    /**
+     * Splits on the word "then" (and a preceding "and") and parses each step.
+     * A phrase without "then" yields a single command.
+     */
+    public static List<Command> parseSequence(CharSequence text) {
+        List<Command> steps = new ArrayList<>();
+        int stepStart = 0;
+        int wordStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean space = i == text.length() || text.charAt(i) <= ' ';
+            if (!space) {
+                if (wordStart < 0) wordStart = i;
+                continue;
+            }
+            if (wordStart < 0) continue;
+            if (i - wordStart == STEP_SEPARATOR.length()
+                    && regionMatchesIgnoreCase(text, wordStart, STEP_SEPARATOR)) {
+                int stepEnd = trimTrailingWord(text, stepStart, wordStart, "and");
+                steps.add(parse(text, stepStart, stepEnd));
+                stepStart = i;
+            }
+            wordStart = -1;
         }
+        steps.add(parse(text, stepStart, text.length()));
+        return steps;
+    }
 
-        if (text.contains("recent apps") || text.contains("recents")) {
-            return new Command(ActionType.RECENTS);
+    private static int trimTrailingWord(CharSequence text, int from, int to, String word) {
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        int start = to - word.length();
+        if (start >= from && regionMatchesIgnoreCase(text, start, word)
+                && (start == from || text.charAt(start - 1) <= ' ')) {
+            return start;
         }
-        
-        if (text.contains("wifi")) {
-            return new Command(ActionType.TOGGLE_WIFI);
+        return to;
+    }
+
+    private static Command parse(CharSequence text, int begin, int end) {
+        while (begin < end && text.charAt(begin) <= ' ') begin++;
+        while (end > begin && text.charAt(end - 1) <= ' ') end--;
+
+        int best = RULES.length;
+        int bestEnd = -1;
+        int scrollEnd = -1;
+        int direction = 0;
+        boolean directionFound = false;
+
+        int state = 0;
+        for (int i = begin; i < end; i++) {
+            state = AUTOMATON.step(state, text.charAt(i));
+            for (int id : AUTOMATON.outputs(state)) {
+                int matchEnd = i + 1;
+                int matchStart = matchEnd - AUTOMATON.length(id);
+                int owner = KEYWORD_RULE[id];
+                if (owner < 0) {
+                    if (scrollEnd >= 0 && !directionFound && matchStart >= scrollEnd
+                            && isWordStart(text, begin, matchStart)) {
+                        direction = -1 - owner;
+                        directionFound = true;
+                    }
+                    continue;
+                }
+                if (owner >= best || !accepts(RULES[owner].anchor, matchStart, matchEnd, begin, end)) {
+                    continue;
+                }
+                best = owner;
+                bestEnd = matchEnd;
+                if (RULES[owner].slot == Slot.DIRECTION) scrollEnd = matchEnd;
+            }
         }
 
-        if (text.contains("flashlight") || text.contains("torch")) {
-            return new Command(ActionType.TOGGLE_FLASHLIGHT);
+        if (best == RULES.length) {
+            return new Command(ActionType.UNKNOWN, null);
+        }
+        Rule rule = RULES[best];
+        switch (rule.slot) {
+            case TARGET:
+                return new Command(rule.action, lowerSlice(text, bestEnd, end));
+            case DIRECTION:
+                return new Command(rule.action, null, DIRECTIONS[direction]);
+            default:
+                return new Command(rule.action);
         }
+    }
 
-        if (text.contains("optimize") || text.contains("clean phone")) {
-            return new Command(ActionType.SAMSUNG_OPTIMIZE);
+    private static boolean accepts(Anchor anchor, int matchStart, int matchEnd, int begin, int end) {
+        switch (anchor) {
+            case PREFIX: return matchStart == begin;
+            case EXACT: return matchStart == begin && matchEnd == end;
+            default: return true;
         }
+    }
+
+    private static boolean isWordStart(CharSequence text, int begin, int index) {
+        return index == begin || text.charAt(index - 1) <= ' ';
+    }
 
-        if (text.contains("battery")) {
-            return new Command(ActionType.SAMSUNG_BATTERY);
+    private static boolean regionMatchesIgnoreCase(CharSequence text, int offset, String word) {
+        if (offset < 0 || offset + word.length() > text.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toLowerCase(text.charAt(offset + i)) != Character.toLowerCase(word.charAt(i))) return false;
         }
+        return true;
+    }
 
-        return new Command(ActionType.UNKNOWN, null);
+    private static String lowerSlice(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') from++;
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(text.charAt(from + i));
+        }
+        return new String(chars);
     }
 }
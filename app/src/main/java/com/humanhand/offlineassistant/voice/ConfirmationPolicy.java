@@ -0,0 +1,108 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides how much confirmation a command needs before it runs. Navigation is
+ * harmless and runs at once, taps get a short earcon, and anything that talks
+ * to other people or changes device state keeps the spoken prompt.
+ *
+ * Tiers can be overridden per action, e.g. from SharedPreferences entries of
+ * the form {@code "SCROLL" -> "MEDIUM"}.
+ */
+public final class ConfirmationPolicy {
+    public enum Tier { LOW, MEDIUM, HIGH }
+
+    // A click on any of these escalates to HIGH whatever the configured tier. Matched
+    // as whole words, so "Display" and "Preset" stay at the configured tier.
+    private static final String[][] RISKY_TARGET_PHRASES = phrases(
+            "delete", "remove", "uninstall", "erase", "reset", "format",
+            "pay", "buy", "purchase", "send", "transfer", "sign out", "log out");
+
+    private final Map<CommandParser.ActionType, Tier> tiers = new EnumMap<>(CommandParser.ActionType.class);
+
+    public ConfirmationPolicy() {
+        for (CommandParser.ActionType action : CommandParser.ActionType.values()) {
+            tiers.put(action, defaultTier(action));
+        }
+    }
+
+    private static Tier defaultTier(CommandParser.ActionType action) {
+        switch (action) {
+            case SAVE_MACRO:
+            case SCROLL:
+            case KEEP_SCROLLING:
+            case STOP:
+            case GO_BACK:
+            case HOME:
+            case RECENTS:
+            case OPEN_APP:
+                return Tier.LOW;
+            case CLICK:
+            case SAMSUNG_OPTIMIZE:
+            case SAMSUNG_BATTERY:
+                return Tier.MEDIUM;
+            default:
+                return Tier.HIGH;
+        }
+    }
+
+    public void setTier(CommandParser.ActionType action, Tier tier) {
+        tiers.put(action, tier);
+    }
+
+    /** Applies {@code ActionType name -> Tier name} overrides; unknown names are ignored. */
+    public void applyOverrides(Map<String, ?> overrides) {
+        for (Map.Entry<String, ?> entry : overrides.entrySet()) {
+            try {
+                CommandParser.ActionType action = CommandParser.ActionType.valueOf(entry.getKey());
+                setTier(action, Tier.valueOf(String.valueOf(entry.getValue()).toUpperCase(Locale.US)));
+            } catch (IllegalArgumentException ignored) {}
+        }
+    }
+
+    public Tier classify(CommandParser.Command cmd) {
+        Tier tier = tiers.get(cmd.action);
+        if (cmd.action == CommandParser.ActionType.CLICK && cmd.target != null) {
+            String[] words = words(cmd.target);
+            for (String[] phrase : RISKY_TARGET_PHRASES) {
+                if (containsPhrase(words, phrase)) return Tier.HIGH;
+            }
+        }
+        return tier;
+    }
+
+    private static boolean containsPhrase(String[] words, String[] phrase) {
+        for (int start = 0; start + phrase.length <= words.length; start++) {
+            int i = 0;
+            while (i < phrase.length && words[start + i].equals(phrase[i])) i++;
+            if (i == phrase.length) return true;
+        }
+        return false;
+    }
+
+    // Lowercase runs of letters; everything else separates words.
+    private static String[] words(String text) {
+        String trimmed = text.toLowerCase(Locale.US).replaceAll("^[^\\p{L}]+", "");
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("[^\\p{L}]+");
+    }
+
+    private static String[][] phrases(String... phrases) {
+        String[][] split = new String[phrases.length][];
+        for (int i = 0; i < phrases.length; i++) split[i] = words(phrases[i]);
+        return split;
+    }
+
+    /** A sequence needs as much confirmation as its riskiest step. */
+    public Tier classify(List<CommandParser.Command> steps) {
+        Tier tier = Tier.LOW;
+        for (CommandParser.Command step : steps) {
+            Tier stepTier = classify(step);
+            if (stepTier.compareTo(tier) > 0) tier = stepTier;
+        }
+        return tier;
+    }
+}
@@ -0,0 +1,101 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Spoken descriptions of commands, for confirmation prompts. */
+public final class ConfirmationText {
+    private static final String PROMPT_PREFIX = "I am about to";
+    private static final String PROMPT_SUFFIX = "Should I proceed?";
+    private static final String STEP_SEPARATOR = ", then ";
+    // Verbs that describe() puts in front of a target, longest first.
+    private static final String[] TARGET_VERBS = {"keep scrolling", "scroll", "open", "click", "type:", "call"};
+    // Whole descriptions of commands that take no target.
+    private static final String[] FIXED_ACTIONS = {
+            "stop", "go back", "go home", "show recent apps", "toggle WiFi", "toggle Flashlight",
+            "toggle Speaker", "optimize your phone", "check battery settings",
+    };
+
+    private ConfirmationText() {
+    }
+
+    public static String prompt(String actionText) {
+        return PROMPT_PREFIX + " " + actionText + ". " + PROMPT_SUFFIX;
+    }
+
+    /**
+     * {@link #prompt} cut into separately recordable pieces: the fixed frame,
+     * "then", each verb, and each target, in speaking order.
+     */
+    public static List<String> promptSegments(String actionText) {
+        List<String> segments = new ArrayList<>();
+        segments.add(PROMPT_PREFIX);
+        int start = 0;
+        while (true) {
+            int end = actionText.indexOf(STEP_SEPARATOR, start);
+            if (start > 0) segments.add("then");
+            addStep(segments, actionText.substring(start, end < 0 ? actionText.length() : end));
+            if (end < 0) break;
+            start = end + STEP_SEPARATOR.length();
+        }
+        segments.add(PROMPT_SUFFIX);
+        return segments;
+    }
+
+    /** Every segment {@link #promptSegments} can produce apart from targets. */
+    public static List<String> fixedSegments() {
+        List<String> segments = new ArrayList<>();
+        segments.add(PROMPT_PREFIX);
+        segments.add(PROMPT_SUFFIX);
+        segments.add("then");
+        for (String verb : TARGET_VERBS) segments.add(spokenVerb(verb));
+        for (String action : FIXED_ACTIONS) segments.add(action);
+        return segments;
+    }
+
+    private static void addStep(List<String> segments, String step) {
+        for (String verb : TARGET_VERBS) {
+            if (step.startsWith(verb + " ")) {
+                segments.add(spokenVerb(verb));
+                segments.add(step.substring(verb.length() + 1).trim());
+                return;
+            }
+        }
+        segments.add(step);
+    }
+
+    private static String spokenVerb(String verb) {
+        return verb.endsWith(":") ? verb.substring(0, verb.length() - 1) : verb;
+    }
+
+    public static String describe(CommandMacro macro) {
+        StringBuilder sb = new StringBuilder();
+        for (CommandParser.Command step : macro.steps) {
+            if (sb.length() > 0) sb.append(STEP_SEPARATOR);
+            sb.append(describe(step));
+        }
+        return sb.toString();
+    }
+
+    public static String describe(CommandParser.Command cmd) {
+        String actionText = "";
+        switch (cmd.action) {
+            case OPEN_APP: actionText = "open " + cmd.target; break;
+            case CLICK: actionText = "click " + cmd.target; break;
+            case SCROLL: actionText = "scroll " + cmd.direction; break;
+            case KEEP_SCROLLING: actionText = "keep scrolling " + cmd.direction; break;
+            case STOP: actionText = "stop"; break;
+            case GO_BACK: actionText = "go back"; break;
+            case HOME: actionText = "go home"; break;
+            case RECENTS: actionText = "show recent apps"; break;
+            case TYPE: actionText = "type: " + cmd.target; break;
+            case CALL: actionText = "call " + cmd.target; break;
+            case TOGGLE_WIFI: actionText = "toggle WiFi"; break;
+            case TOGGLE_FLASHLIGHT: actionText = "toggle Flashlight"; break;
+            case TOGGLE_SPEAKER: actionText = "toggle Speaker"; break;
+            case SAMSUNG_OPTIMIZE: actionText = "optimize your phone"; break;
+            case SAMSUNG_BATTERY: actionText = "check battery settings"; break;
+        }
+        return actionText;
+    }
+}
@@ -0,0 +1,404 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.Arrays;
+
+/**
+ * Streaming reader for Vosk hypothesis JSON: {@code text}, {@code partial},
+ * per-word {@code word}/{@code conf} from {@code result} or
+ * {@code partial_result}, and {@code alternatives}. Everything is copied into
+ * buffers owned by the reader, which only grow, so once they are large enough
+ * reading allocates nothing.
+ *
+ * Returned views are valid until the next {@link #read}. Not thread-safe.
+ */
+public final class HypothesisReader {
+    /** A reusable window onto the reader's buffer. */
+    public final class Text implements CharSequence {
+        private int start;
+        private int end;
+
+        private void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(chars, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, start, end - start);
+        }
+
+        public boolean contentEquals(CharSequence other) {
+            if (other.length() != length()) return false;
+            for (int i = start; i < end; i++) {
+                if (chars[i] != other.charAt(i - start)) return false;
+            }
+            return true;
+        }
+
+        public boolean contains(String s) {
+            return indexOf(s) >= 0;
+        }
+
+        /** Drops everything up to and including the first {@code s}, and the spaces after it. */
+        public void skipPast(String s) {
+            int at = indexOf(s);
+            if (at < 0) return;
+            start += at + s.length();
+            while (start < end && chars[start] <= ' ') start++;
+        }
+
+        private int indexOf(String s) {
+            int last = end - s.length();
+            outer:
+            for (int i = start; i <= last; i++) {
+                for (int j = 0; j < s.length(); j++) {
+                    if (chars[i + j] != s.charAt(j)) continue outer;
+                }
+                return i - start;
+            }
+            return -1;
+        }
+    }
+
+    private char[] chars = new char[256];
+    private int used;
+
+    private final Text text = new Text();
+    private final Text partial = new Text();
+    private final Text word = new Text();
+    private final Text alternative = new Text();
+
+    private int[] wordBounds = new int[32];
+    private float[] wordConf = new float[16];
+    private int wordCount;
+    private int[] alternativeBounds = new int[8];
+    private float[] alternativeConfidence = new float[4];
+    private int alternativeCount;
+
+    private String json;
+    private int pos;
+
+    /** Parses one hypothesis. Throws IllegalArgumentException if it is not well-formed. */
+    public void read(String json) {
+        this.json = json;
+        pos = 0;
+        used = 0;
+        wordCount = 0;
+        alternativeCount = 0;
+        text.set(0, 0);
+        partial.set(0, 0);
+        boolean textSeen = false;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+                int keyStart = readKey();
+                int keyLength = pos - keyStart - 1;
+                expect(':');
+                if (isKey(keyStart, keyLength, "text")) {
+                    int start = readString();
+                    text.set(start, used);
+                    textSeen = true;
+                } else if (isKey(keyStart, keyLength, "partial")) {
+                    int start = readString();
+                    partial.set(start, used);
+                } else if (isKey(keyStart, keyLength, "result") || isKey(keyStart, keyLength, "partial_result")) {
+                    readWords();
+                } else if (isKey(keyStart, keyLength, "alternatives")) {
+                    readAlternatives();
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        // With alternatives enabled Vosk has no top-level text; the best one stands in.
+        if (!textSeen && alternativeCount > 0) text.set(alternativeBounds[0], alternativeBounds[1]);
+        this.json = null;
+    }
+
+    /** Final text, or empty for partials. */
+    public Text text() {
+        return text;
+    }
+
+    /** Partial text, or empty for finals. */
+    public Text partial() {
+        return partial;
+    }
+
+    public int wordCount() {
+        return wordCount;
+    }
+
+    /** The {@code index}th word; the view is shared with later calls. */
+    public Text word(int index) {
+        word.set(wordBounds[2 * index], wordBounds[2 * index + 1]);
+        return word;
+    }
+
+    /** Confidence of the {@code index}th word, or 1 when the decoder gave none. */
+    public float wordConfidence(int index) {
+        return wordConf[index];
+    }
+
+    public int alternativeCount() {
+        return alternativeCount;
+    }
+
+    /** The {@code index}th alternative, best first; the view is shared with later calls. */
+    public Text alternative(int index) {
+        alternative.set(alternativeBounds[2 * index], alternativeBounds[2 * index + 1]);
+        return alternative;
+    }
+
+    public float alternativeConfidence(int index) {
+        return alternativeConfidence[index];
+    }
+
+    private void readWords() {
+        expect('[');
+        if (consume(']')) return;
+        do {
+            int start = -1;
+            int end = -1;
+            float conf = 1f;
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    int keyStart = readKey();
+                    int keyLength = pos - keyStart - 1;
+                    expect(':');
+                    if (isKey(keyStart, keyLength, "word")) {
+                        start = readString();
+                        end = used;
+                    } else if (isKey(keyStart, keyLength, "conf")) {
+                        conf = (float) readNumber();
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            if (start < 0) continue;
+            if (wordCount == wordConf.length) {
+                wordConf = Arrays.copyOf(wordConf, wordCount * 2);
+                wordBounds = Arrays.copyOf(wordBounds, wordCount * 4);
+            }
+            wordBounds[2 * wordCount] = start;
+            wordBounds[2 * wordCount + 1] = end;
+            wordConf[wordCount++] = conf;
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readAlternatives() {
+        expect('[');
+        if (consume(']')) return;
+        do {
+            int start = used;
+            int end = used;
+            float confidence = 0f;
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    int keyStart = readKey();
+                    int keyLength = pos - keyStart - 1;
+                    expect(':');
+                    if (isKey(keyStart, keyLength, "text")) {
+                        start = readString();
+                        end = used;
+                    } else if (isKey(keyStart, keyLength, "confidence")) {
+                        confidence = (float) readNumber();
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            if (alternativeCount == alternativeConfidence.length) {
+                alternativeConfidence = Arrays.copyOf(alternativeConfidence, alternativeCount * 2);
+                alternativeBounds = Arrays.copyOf(alternativeBounds, alternativeCount * 4);
+            }
+            alternativeBounds[2 * alternativeCount] = start;
+            alternativeBounds[2 * alternativeCount + 1] = end;
+            alternativeConfidence[alternativeCount++] = confidence;
+        } while (consume(','));
+        expect(']');
+    }
+
+    // Keys are plain ASCII in Vosk output; returns the index after the opening quote.
+    private int readKey() {
+        expect('"');
+        int start = pos;
+        while (pos < json.length() && json.charAt(pos) != '"') {
+            if (json.charAt(pos) == '\\') throw malformed();
+            pos++;
+        }
+        if (pos == json.length()) throw malformed();
+        pos++;
+        return start;
+    }
+
+    private boolean isKey(int start, int length, String key) {
+        return length == key.length() && json.regionMatches(start, key, 0, length);
+    }
+
+    // Unescapes into the buffer and returns where the string starts; it ends at `used`.
+    private int readString() {
+        expect('"');
+        int start = used;
+        int length = json.length();
+        while (true) {
+            if (pos >= length) throw malformed();
+            char c = json.charAt(pos++);
+            if (c == '"') return start;
+            if (c == '\\') {
+                if (pos >= length) throw malformed();
+                c = json.charAt(pos++);
+                switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 't': c = '\t'; break;
+                    case 'r': c = '\r'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'u':
+                        if (pos + 4 > length) throw malformed();
+                        int code = 0;
+                        for (int end = pos + 4; pos < end; pos++) {
+                            int digit = Character.digit(json.charAt(pos), 16);
+                            if (digit < 0) throw malformed();
+                            code = code * 16 + digit;
+                        }
+                        c = (char) code;
+                        break;
+                    default:
+                        // \" \\ \/ stand for themselves.
+                        break;
+                }
+            }
+            if (used == chars.length) chars = Arrays.copyOf(chars, used * 2);
+            chars[used++] = c;
+        }
+    }
+
+    private double readNumber() {
+        skipSpace();
+        int length = json.length();
+        boolean negative = consumeRaw('-');
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (pos < length && isDigit(json.charAt(pos))) {
+            if (digits++ < 18) {
+                mantissa = mantissa * 10 + (json.charAt(pos) - '0');
+            } else {
+                exponent++;
+            }
+            pos++;
+        }
+        if (consumeRaw('.')) {
+            while (pos < length && isDigit(json.charAt(pos))) {
+                if (digits++ < 18) {
+                    mantissa = mantissa * 10 + (json.charAt(pos) - '0');
+                    exponent--;
+                }
+                pos++;
+            }
+        }
+        if (digits == 0) throw malformed();
+        if (pos < length && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = consumeRaw('-');
+            if (!negativeExponent) consumeRaw('+');
+            int e = 0;
+            while (pos < length && isDigit(json.charAt(pos))) e = e * 10 + (json.charAt(pos++) - '0');
+            exponent += negativeExponent ? -e : e;
+        }
+        double value = exponent == 0 ? mantissa : mantissa * Math.pow(10, exponent);
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        skipSpace();
+        if (pos >= json.length()) throw malformed();
+        char c = json.charAt(pos);
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = json.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') depth++;
+                if (c == '}' || c == ']') depth--;
+                pos++;
+            } while (depth > 0 && pos < json.length());
+            if (depth > 0) throw malformed();
+        } else {
+            // Number, true, false or null.
+            while (pos < json.length()) {
+                c = json.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || c <= ' ') break;
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++;
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') return;
+            if (c == '\\') pos++;
+        }
+        throw malformed();
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) throw malformed();
+    }
+
+    private boolean consume(char c) {
+        skipSpace();
+        return consumeRaw(c);
+    }
+
+    private boolean consumeRaw(char c) {
+        if (pos < json.length() && json.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpace() {
+        while (pos < json.length() && json.charAt(pos) <= ' ') pos++;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed hypothesis at " + pos + ": " + json);
+    }
+}
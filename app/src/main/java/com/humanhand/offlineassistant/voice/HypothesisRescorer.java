@@ -0,0 +1,115 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks which of the recognizer's N-best alternatives to act on. Alternatives
+ * that do not parse into commands are dropped; the rest are scored on their
+ * acoustic confidence relative to the best one plus how well their target
+ * matches something that exists right now. When the winner is only narrowly
+ * ahead of a different command the pick is marked doubtful, so the caller can
+ * confirm before acting.
+ *
+ * Alternatives are scored best-first until {@link #BUDGET_NANOS} is spent; the
+ * first is always scored. Not thread-safe.
+ */
+public final class HypothesisRescorer {
+    /** Tells whether a CLICK or OPEN_APP target exists. */
+    public interface TargetScorer {
+        float UNKNOWN = -1f;
+
+        /** Best label match score for {@code target}, 0 if nothing matches, or {@link #UNKNOWN}. */
+        float score(CommandParser.ActionType action, String target);
+    }
+
+    private static final long BUDGET_NANOS = 4_000_000L;
+    // Vosk alternative confidences are lattice scores; this many units weigh as much as a full target match.
+    private static final float ACOUSTIC_UNITS_PER_POINT = 10f;
+    private static final float MISSING_TARGET_PENALTY = 0.5f;
+    private static final float DOUBT_MARGIN = 0.2f;
+
+    private final String skipPhrase;
+    private final TargetScorer scorer;
+
+    private CommandParser.Command[] commands = new CommandParser.Command[4];
+    private float[] scores = new float[4];
+    private float margin;
+
+    /** Text up to and including {@code skipPhrase}, if present, is ignored. */
+    public HypothesisRescorer(String skipPhrase, TargetScorer scorer) {
+        this.skipPhrase = skipPhrase;
+        this.scorer = scorer;
+    }
+
+    /**
+     * Index of the alternative to act on, or -1 if {@code reader} has no
+     * alternatives. Falls back to 0 when none of them parses.
+     */
+    public int pick(HypothesisReader reader) {
+        int count = reader.alternativeCount();
+        margin = Float.POSITIVE_INFINITY;
+        if (count == 0) return -1;
+        if (count > commands.length) {
+            commands = Arrays.copyOf(commands, count);
+            scores = Arrays.copyOf(scores, count);
+        }
+        long deadline = System.nanoTime() + BUDGET_NANOS;
+        float top = reader.alternativeConfidence(0);
+        int scored = 0;
+        int best = -1;
+        for (int i = 0; i < count && (i == 0 || System.nanoTime() < deadline); i++, scored++) {
+            HypothesisReader.Text text = reader.alternative(i);
+            if (skipPhrase != null) text.skipPast(skipPhrase);
+            commands[i] = firstStep(text);
+            if (commands[i] == null) continue;
+            scores[i] = (reader.alternativeConfidence(i) - top) / ACOUSTIC_UNITS_PER_POINT + targetScore(commands[i]);
+            if (best < 0 || scores[i] > scores[best]) best = i;
+        }
+        if (best < 0) {
+            Arrays.fill(commands, 0, scored, null);
+            return 0;
+        }
+        for (int i = 0; i < scored; i++) {
+            if (commands[i] != null && !sameCommand(commands[i], commands[best])) {
+                margin = Math.min(margin, scores[best] - scores[i]);
+            }
+        }
+        Arrays.fill(commands, 0, scored, null);
+        return best;
+    }
+
+    /** Whether the last pick beat a different command by less than {@link #DOUBT_MARGIN}. */
+    public boolean isDoubtful() {
+        return margin < DOUBT_MARGIN;
+    }
+
+    /** Score gap to the best different command in the last pick; infinite if there was none. */
+    public float margin() {
+        return margin;
+    }
+
+    // Only the first step can be checked: later targets are on screens not shown yet.
+    private static CommandParser.Command firstStep(CharSequence text) {
+        List<CommandParser.Command> steps = CommandParser.parseSequence(text);
+        for (CommandParser.Command step : steps) {
+            if (step.action == CommandParser.ActionType.UNKNOWN) return null;
+        }
+        return steps.get(0);
+    }
+
+    private float targetScore(CommandParser.Command cmd) {
+        if (cmd.target == null) return 0f;
+        float score = scorer.score(cmd.action, cmd.target);
+        if (score == TargetScorer.UNKNOWN) return 0f;
+        return score > 0f ? score : -MISSING_TARGET_PENALTY;
+    }
+
+    private static boolean sameCommand(CommandParser.Command a, CommandParser.Command b) {
+        return a.action == b.action && equal(a.target, b.target) && equal(a.direction, b.direction);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
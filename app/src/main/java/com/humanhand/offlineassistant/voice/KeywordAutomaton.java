@@ -0,0 +1,146 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over a fixed keyword set, compiled into a dense DFA.
+ * Matching lowercases on the fly and never allocates.
+ */
+final class KeywordAutomaton {
+    private static final int[] NO_OUTPUT = new int[0];
+
+    private final String[] keywords;
+    private final int[] charClass = new int[128];
+    private final char[] extraChars;
+    private final int[] extraClass;
+    private final int[][] delta;
+    private final int[][] outputs;
+
+    KeywordAutomaton(String[] keywords) {
+        this.keywords = keywords.clone();
+
+        Arrays.fill(charClass, -1);
+        StringBuilder extra = new StringBuilder();
+        List<Integer> extraIds = new ArrayList<>();
+        int alphabet = 0;
+        for (String keyword : keywords) {
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                if (c < 128) {
+                    if (charClass[c] < 0) charClass[c] = alphabet++;
+                } else if (extra.indexOf(String.valueOf(c)) < 0) {
+                    extra.append(c);
+                    extraIds.add(alphabet++);
+                }
+            }
+        }
+        extraChars = extra.toString().toCharArray();
+        extraClass = new int[extraChars.length];
+        for (int i = 0; i < extraClass.length; i++) extraClass[i] = extraIds.get(i);
+
+        List<int[]> gotos = new ArrayList<>();
+        List<int[]> out = new ArrayList<>();
+        gotos.add(newRow(alphabet));
+        out.add(NO_OUTPUT);
+        for (int k = 0; k < keywords.length; k++) {
+            int state = 0;
+            String keyword = keywords[k];
+            for (int i = 0; i < keyword.length(); i++) {
+                int cls = classOf(keyword.charAt(i));
+                if (gotos.get(state)[cls] < 0) {
+                    gotos.get(state)[cls] = gotos.size();
+                    gotos.add(newRow(alphabet));
+                    out.add(NO_OUTPUT);
+                }
+                state = gotos.get(state)[cls];
+            }
+            out.set(state, append(out.get(state), k));
+        }
+
+        int states = gotos.size();
+        int[] fail = new int[states];
+        delta = new int[states][];
+        outputs = new int[states][];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        delta[0] = gotos.get(0).clone();
+        for (int cls = 0; cls < alphabet; cls++) {
+            int next = delta[0][cls];
+            if (next < 0) {
+                delta[0][cls] = 0;
+            } else {
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        outputs[0] = out.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] row = gotos.get(state).clone();
+            outputs[state] = merge(out.get(state), outputs[fail[state]]);
+            for (int cls = 0; cls < alphabet; cls++) {
+                int next = row[cls];
+                if (next < 0) {
+                    row[cls] = delta[fail[state]][cls];
+                } else {
+                    fail[next] = delta[fail[state]][cls];
+                    queue.add(next);
+                }
+            }
+            delta[state] = row;
+        }
+    }
+
+    int size() {
+        return keywords.length;
+    }
+
+    String keyword(int id) {
+        return keywords[id];
+    }
+
+    int length(int id) {
+        return keywords[id].length();
+    }
+
+    /** Advances from {@code state} on {@code c}; characters outside the keyword alphabet reset to the root. */
+    int step(int state, char c) {
+        int cls = classOf(Character.toLowerCase(c));
+        return cls < 0 ? 0 : delta[state][cls];
+    }
+
+    /** Ids of every keyword ending in {@code state}, longest first. The array is shared; do not modify it. */
+    int[] outputs(int state) {
+        return outputs[state];
+    }
+
+    private int classOf(char c) {
+        if (c < 128) return charClass[c];
+        for (int i = 0; i < extraChars.length; i++) {
+            if (extraChars[i] == c) return extraClass[i];
+        }
+        return -1;
+    }
+
+    private static int[] newRow(int alphabet) {
+        int[] row = new int[alphabet];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int[] append(int[] ids, int id) {
+        int[] result = Arrays.copyOf(ids, ids.length + 1);
+        result[ids.length] = id;
+        return result;
+    }
+
+    private static int[] merge(int[] own, int[] inherited) {
+        if (inherited.length == 0) return own;
+        if (own.length == 0) return inherited;
+        int[] result = Arrays.copyOf(own, own.length + inherited.length);
+        System.arraycopy(inherited, 0, result, own.length, inherited.length);
+        return result;
+    }
+}
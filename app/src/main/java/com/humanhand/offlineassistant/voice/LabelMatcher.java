@@ -0,0 +1,269 @@
+package com.humanhand.offlineassistant.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks candidate labels against a spoken target. Candidates come from an exact
+ * key map, a phonetic key map and character-trigram postings, so a query only
+ * scores labels it shares something with; scoring is a banded edit distance on
+ * the normalized keys plus small bonuses for clickable, visible and high-up items.
+ *
+ * Ids returned by {@link #add} stay valid until {@link #clear}, so removed slots
+ * are only reused once every id is dead; in between, {@link #remove} frees the
+ * label and item and rebuilds the postings when dead ids dominate them. Not
+ * thread-safe.
+ */
+public final class LabelMatcher<T> {
+    public static final class Match<T> {
+        public final T item;
+        public final String label;
+        public final float score;
+
+        Match(T item, String label, float score) {
+            this.item = item;
+            this.label = label;
+            this.score = score;
+        }
+    }
+
+    private static final float CLICKABLE_BONUS = 0.1f;
+    private static final float VISIBLE_BONUS = 0.05f;
+    private static final float POSITION_BONUS = 0.05f;
+    // Overlap value for exact and phonetic hits, which bypass the trigram threshold.
+    private static final int STRONG = 1 << 20;
+
+    private final List<String> labels = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+    private final List<T> items = new ArrayList<>();
+    private float[] bonus = new float[16];
+    private boolean[] alive = new boolean[16];
+    private int live;
+
+    private final Map<String, IntList> byKey = new HashMap<>();
+    private final Map<String, IntList> byPhonetic = new HashMap<>();
+    private final Map<Integer, IntList> byTrigram = new HashMap<>();
+
+    private int[] overlap = new int[16];
+    private final IntList touched = new IntList();
+    private int[] row0 = new int[32];
+    private int[] row1 = new int[32];
+
+    /**
+     * @param verticalPosition top of the item as a fraction of screen height, 0 for top
+     * @return id for {@link #remove}
+     */
+    public int add(String label, T item, boolean clickable, boolean visible, float verticalPosition) {
+        int id = labels.size();
+        String key = normalize(label);
+        labels.add(label);
+        keys.add(key);
+        items.add(item);
+        if (id >= alive.length) {
+            alive = Arrays.copyOf(alive, id * 2);
+            bonus = Arrays.copyOf(bonus, id * 2);
+            overlap = Arrays.copyOf(overlap, id * 2);
+        }
+        alive[id] = true;
+        bonus[id] = (clickable ? CLICKABLE_BONUS : 0) + (visible ? VISIBLE_BONUS : 0)
+                + POSITION_BONUS * (1 - Math.max(0, Math.min(1, verticalPosition)));
+        live++;
+        index(id, key);
+        return id;
+    }
+
+    public void remove(int id) {
+        if (id < 0 || id >= labels.size() || !alive[id]) return;
+        alive[id] = false;
+        labels.set(id, null);
+        keys.set(id, null);
+        items.set(id, null);
+        live--;
+        if (live == 0) {
+            // No id is held any more, so every slot can go.
+            clear();
+        } else if (labels.size() - live > Math.max(64, live)) {
+            // Postings skip dead ids; drop them once they dominate.
+            reindex();
+        }
+    }
+
+    public void clear() {
+        labels.clear();
+        keys.clear();
+        items.clear();
+        Arrays.fill(alive, false);
+        live = 0;
+        byKey.clear();
+        byPhonetic.clear();
+        byTrigram.clear();
+    }
+
+    public int size() {
+        return live;
+    }
+
+    /** Up to {@code limit} matches, best first. */
+    public List<Match<T>> match(String spoken, int limit) {
+        String query = normalize(spoken);
+        if (query.isEmpty() || live == 0) return Collections.emptyList();
+
+        collect(byKey.get(query));
+        collect(byPhonetic.get(PhoneticKey.of(query)));
+        if (query.length() < 3) {
+            for (int id = 0; id < labels.size(); id++) touch(id);
+        } else {
+            for (int i = 0; i + 3 <= query.length(); i++) collect(byTrigram.get(trigram(query, i)));
+        }
+
+        int queryTrigrams = Math.max(0, query.length() - 2);
+        String queryPhonetic = PhoneticKey.of(query);
+        List<Match<T>> matches = new ArrayList<>();
+        for (int t = 0; t < touched.size; t++) {
+            int id = touched.values[t];
+            int shared = overlap[id];
+            overlap[id] = 0;
+            if (!alive[id]) continue;
+            // Trigram-only candidates must share at least half the query's trigrams.
+            if (shared < STRONG && shared * 2 < queryTrigrams) continue;
+
+            float text = textScore(query, queryPhonetic, keys.get(id));
+            if (text <= 0) continue;
+            matches.add(new Match<>(items.get(id), labels.get(id), text + bonus[id]));
+        }
+        touched.size = 0;
+
+        Collections.sort(matches, (a, b) -> Float.compare(b.score, a.score));
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    private float textScore(String query, String queryPhonetic, String key) {
+        if (key.equals(query)) return 1f;
+        if (key.contains(query)) return 0.75f + 0.2f * query.length() / key.length();
+
+        float score = 0;
+        int maxDistance = Math.max(1, query.length() / 4);
+        int distance = boundedDistance(query, key, maxDistance);
+        if (distance <= maxDistance) score = 0.7f * (1 - (float) distance / (maxDistance + 1));
+
+        String phonetic = PhoneticKey.of(key);
+        if (!phonetic.isEmpty() && phonetic.equals(queryPhonetic)) {
+            score = Math.max(score, 0.8f);
+        } else if (queryPhonetic.length() >= 3 && phonetic.contains(queryPhonetic)) {
+            score = Math.max(score, 0.6f);
+        }
+        return score;
+    }
+
+    // Levenshtein distance restricted to a band of width max; returns max + 1 when exceeded.
+    private int boundedDistance(String a, String b, int max) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > max) return max + 1;
+        if (row0.length <= m) {
+            row0 = new int[m + 1];
+            row1 = new int[m + 1];
+        }
+        int[] prev = row0;
+        int[] cur = row1;
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - max);
+            int to = Math.min(m, i + max);
+            cur[0] = i;
+            if (from > 1) cur[from - 1] = max + 1;
+            int rowMin = max + 1;
+            char ca = a.charAt(i - 1);
+            for (int j = from; j <= to; j++) {
+                int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(prev[j - 1] + cost, Math.min(prev[j] + 1, cur[j - 1] + 1));
+                cur[j] = value;
+                if (value < rowMin) rowMin = value;
+            }
+            if (to < m) cur[to + 1] = max + 1;
+            if (rowMin > max) return max + 1;
+            int[] swap = prev;
+            prev = cur;
+            cur = swap;
+        }
+        return Math.min(prev[m], max + 1);
+    }
+
+    private void index(int id, String key) {
+        if (key.isEmpty()) return;
+        postings(byKey, key).add(id);
+        postings(byPhonetic, PhoneticKey.of(key)).add(id);
+        for (int i = 0; i + 3 <= key.length(); i++) postings(byTrigram, trigram(key, i)).addUnique(id);
+    }
+
+    private void reindex() {
+        byKey.clear();
+        byPhonetic.clear();
+        byTrigram.clear();
+        for (int id = 0; id < keys.size(); id++) {
+            if (alive[id]) index(id, keys.get(id));
+        }
+    }
+
+    private void collect(IntList ids) {
+        if (ids == null) return;
+        for (int i = 0; i < ids.size; i++) {
+            int id = ids.values[i];
+            if (overlap[id] == 0) touched.add(id);
+            if (ids.strong) {
+                overlap[id] = STRONG;
+            } else if (overlap[id] < STRONG) {
+                overlap[id]++;
+            }
+        }
+    }
+
+    private void touch(int id) {
+        if (overlap[id] == 0) touched.add(id);
+        overlap[id] = STRONG;
+    }
+
+    private static <K> IntList postings(Map<K, IntList> map, K key) {
+        IntList list = map.get(key);
+        if (list == null) {
+            list = new IntList();
+            list.strong = !(key instanceof Integer);
+            map.put(key, list);
+        }
+        return list;
+    }
+
+    private static Integer trigram(String key, int i) {
+        return (key.charAt(i) * 31 + key.charAt(i + 1)) * 31 + key.charAt(i + 2);
+    }
+
+    /** Lowercase letters and digits only, so "What's App" and "WhatsApp" compare equal. */
+    public static String normalize(CharSequence text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isLetterOrDigit(c)) sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+        boolean strong;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        // Ids are added in increasing order, so a repeat can only be the last one.
+        void addUnique(int value) {
+            if (size == 0 || values[size - 1] != value) add(value);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.humanhand.offlineassistant.voice;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+
+import java.util.Locale;
+
+/**
+ * Native memory and reload times measured for each
+ * {@link VoiceRecognitionManager.Tier}, and the native budget the recognizer
+ * has to fit. Measurements persist, so after the system kills the process the
+ * first load already knows whether the full model fits.
+ *
+ * Resident memory is native heap growth over a baseline taken before the first
+ * load, so it also counts anything else the process allocated natively since.
+ * Good enough to compare tiers, not an exact model size.
+ */
+public final class ModelBudget {
+    private static final String PREFS = "model_budget";
+    // Share of device RAM the models and decoders may hold.
+    private static final double BUDGET_FRACTION = 0.04;
+    // Prefixed with the tier name.
+    private static final String KEY_RESIDENT = ".resident_bytes";
+    private static final String KEY_RELOAD_MS = ".reload_ms";
+    private static final String KEY_REBUILD_MS = ".rebuild_ms";
+    private static final String KEY_TRIMS = ".trims";
+
+    private final SharedPreferences prefs;
+    private final long budgetBytes;
+    private final long baselineBytes;
+
+    ModelBudget(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        budgetBytes = budgetBytes(context);
+        baselineBytes = Debug.getNativeHeapAllocatedSize();
+    }
+
+    /** False only if {@code tier} was measured over budget. */
+    boolean fits(VoiceRecognitionManager.Tier tier) {
+        return prefs.getLong(tier + KEY_RESIDENT, -1) <= budgetBytes;
+    }
+
+    /** Any thread: takes the current native heap as what {@code tier} costs. */
+    void recordResident(VoiceRecognitionManager.Tier tier) {
+        long resident = Math.max(0, Debug.getNativeHeapAllocatedSize() - baselineBytes);
+        prefs.edit().putLong(tier + KEY_RESIDENT, resident).apply();
+    }
+
+    /** Time from asking for {@code tier} with nothing loaded for it to a warm session. */
+    void recordReload(VoiceRecognitionManager.Tier tier, long ms) {
+        prefs.edit().putLong(tier + KEY_RELOAD_MS, ms).apply();
+    }
+
+    /** Any thread: time to rebuild a decoder a lean session had freed. */
+    void recordRebuild(VoiceRecognitionManager.Tier tier, long ms) {
+        prefs.edit().putLong(tier + KEY_REBUILD_MS, ms).apply();
+    }
+
+    /** Main thread. */
+    void recordTrim(VoiceRecognitionManager.Tier tier) {
+        prefs.edit().putInt(tier + KEY_TRIMS, prefs.getInt(tier + KEY_TRIMS, 0) + 1).apply();
+    }
+
+    public static String describe(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        StringBuilder out = new StringBuilder(String.format(Locale.US, "Native budget %s\n%-9s%10s%9s%9s%6s",
+                formatBytes(budgetBytes(context)), "tier", "resident", "reload", "rebuild", "trims"));
+        for (VoiceRecognitionManager.Tier tier : VoiceRecognitionManager.Tier.values()) {
+            out.append(String.format(Locale.US, "\n%-9s%10s%9s%9s%6d", tier,
+                    formatBytes(prefs.getLong(tier + KEY_RESIDENT, -1)),
+                    formatMs(prefs.getLong(tier + KEY_RELOAD_MS, -1)),
+                    formatMs(prefs.getLong(tier + KEY_REBUILD_MS, -1)),
+                    prefs.getInt(tier + KEY_TRIMS, 0)));
+        }
+        return out.toString();
+    }
+
+    private static long budgetBytes(Context context) {
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(info);
+        return (long) (info.totalMem * BUDGET_FRACTION);
+    }
+
+    private static String formatBytes(long bytes) {
+        return bytes < 0 ? "n/a" : String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String formatMs(long ms) {
+        return ms < 0 ? "n/a" : ms + " ms";
+    }
+}
@@ -0,0 +1,246 @@
+package com.humanhand.offlineassistant.voice;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.vosk.Model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Installs a bundled Vosk model into internal storage once and loads it on a
+ * dedicated background thread. The install directory carries a manifest with a
+ * version stamp and per-file size and CRC32, so a warm start only stats files.
+ * After {@link #unload()} the next load is a warm one from the install.
+ */
+public class ModelStore {
+    private static final String TAG = "ModelStore";
+    private static final String MANIFEST = "manifest.json";
+    private static final String PREFS = "model_store";
+    // Prefixed with the asset name.
+    private static final String KEY_COLD_READY_MS = ".cold_ready_ms";
+    private static final String KEY_WARM_READY_MS = ".warm_ready_ms";
+
+    private final Context context;
+    private final String assetName;
+    private final File installDir;
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "ModelStore"));
+    private CompletableFuture<Model> ready;
+
+    public ModelStore(Context context, String assetName) {
+        this.context = context.getApplicationContext();
+        this.assetName = assetName;
+        this.installDir = new File(new File(this.context.getFilesDir(), "models"), assetName);
+    }
+
+    /** Starts the install/load on first call; later calls return the same future. */
+    public synchronized CompletableFuture<Model> load() {
+        if (ready == null) {
+            ready = CompletableFuture.supplyAsync(this::installAndLoad, executor);
+        }
+        return ready;
+    }
+
+    public synchronized boolean isReady() {
+        return ready != null && ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /** Forgets the loaded model so the next {@link #load()} reads it again; the caller closes the Model. */
+    public synchronized void unload() {
+        ready = null;
+    }
+
+    public static boolean isBundled(Context context, String assetName) {
+        try {
+            String[] files = context.getAssets().list(assetName);
+            return files != null && files.length > 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Last measured ready times of {@code assetName} in ms as {cold, warm}; -1 where never measured. */
+    public static long[] getReadyTimes(Context context, String assetName) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        return new long[] {
+                prefs.getLong(assetName + KEY_COLD_READY_MS, -1),
+                prefs.getLong(assetName + KEY_WARM_READY_MS, -1)
+        };
+    }
+
+    private Model installAndLoad() {
+        long start = SystemClock.elapsedRealtime();
+        String version = currentVersion();
+        boolean warm = isInstalled(version);
+        try {
+            if (!warm) install(version);
+            Model model = new Model(installDir.getAbsolutePath());
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                    .putLong(assetName + (warm ? KEY_WARM_READY_MS : KEY_COLD_READY_MS), elapsed)
+                    .apply();
+            Log.d(TAG, (warm ? "Warm" : "Cold") + " model ready in " + elapsed + " ms");
+            if (warm) executor.execute(() -> verify(version));
+            return model;
+        } catch (IOException | JSONException e) {
+            throw new IllegalStateException("Failed to load model " + assetName, e);
+        }
+    }
+
+    // The app's install time changes whenever a new APK (and so possibly a new model) lands.
+    private String currentVersion() {
+        long stamp = 0;
+        try {
+            stamp = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Own package not found", e);
+        }
+        return assetName + "@" + stamp;
+    }
+
+    private boolean isInstalled(String version) {
+        JSONObject manifest = readManifest();
+        if (manifest == null || !version.equals(manifest.optString("version"))) return false;
+
+        JSONObject files = manifest.optJSONObject("files");
+        if (files == null) return false;
+        Iterator<String> paths = files.keys();
+        while (paths.hasNext()) {
+            String path = paths.next();
+            JSONObject entry = files.optJSONObject(path);
+            File file = new File(installDir, path);
+            if (entry == null || !file.isFile() || file.length() != entry.optLong("size")) return false;
+        }
+        return true;
+    }
+
+    private void install(String version) throws IOException, JSONException {
+        File staging = new File(installDir.getParentFile(), assetName + ".tmp");
+        deleteRecursively(staging);
+        JSONObject files = new JSONObject();
+        copyAssets(context.getAssets(), assetName, staging, "", files);
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("version", version);
+        manifest.put("files", files);
+        try (OutputStream out = new FileOutputStream(new File(staging, MANIFEST))) {
+            out.write(manifest.toString().getBytes("UTF-8"));
+        }
+
+        deleteRecursively(installDir);
+        if (!staging.renameTo(installDir)) {
+            throw new IOException("Could not move model into " + installDir);
+        }
+        Log.d(TAG, "Installed " + version);
+    }
+
+    private void copyAssets(AssetManager assets, String assetPath, File dir, String relative,
+                            JSONObject files) throws IOException, JSONException {
+        String[] children = assets.list(assetPath);
+        if (children == null || children.length == 0) {
+            File target = new File(dir, relative);
+            File parent = target.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create " + parent);
+            }
+            CRC32 crc = new CRC32();
+            long size;
+            try (InputStream in = assets.open(assetPath); OutputStream out = new FileOutputStream(target)) {
+                size = copy(in, out, crc);
+            }
+            JSONObject entry = new JSONObject();
+            entry.put("size", size);
+            entry.put("crc32", crc.getValue());
+            files.put(relative, entry);
+            return;
+        }
+        for (String child : children) {
+            copyAssets(assets, assetPath + "/" + child, dir,
+                    relative.isEmpty() ? child : relative + "/" + child, files);
+        }
+    }
+
+    // Runs after a warm start so a corrupted install is caught without delaying readiness.
+    private void verify(String version) {
+        JSONObject manifest = readManifest();
+        JSONObject files = manifest != null ? manifest.optJSONObject("files") : null;
+        if (files == null) return;
+        Iterator<String> paths = files.keys();
+        try {
+            while (paths.hasNext()) {
+                String path = paths.next();
+                CRC32 crc = new CRC32();
+                try (InputStream in = new FileInputStream(new File(installDir, path))) {
+                    copy(in, null, crc);
+                }
+                if (crc.getValue() != files.optJSONObject(path).optLong("crc32")) {
+                    Log.e(TAG, "Checksum mismatch in " + path + ", reinstalling " + version + " on next start");
+                    new File(installDir, MANIFEST).delete();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Model verification failed", e);
+            new File(installDir, MANIFEST).delete();
+        }
+    }
+
+    private JSONObject readManifest() {
+        File file = new File(installDir, MANIFEST);
+        if (!file.isFile()) return null;
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new JSONObject(new String(data, 0, read, "UTF-8"));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unreadable model manifest", e);
+            return null;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, CRC32 crc) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            crc.update(buffer, 0, n);
+            if (out != null) out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,129 @@
+package com.humanhand.offlineassistant.voice;
+
+/**
+ * Simplified Metaphone: maps a word to a consonant skeleton so that ASR
+ * spellings like "blue tooth" and labels like "Bluetooth" share a key.
+ * Input must already be lowercase letters and digits with no spaces.
+ */
+final class PhoneticKey {
+    private PhoneticKey() {}
+
+    static String of(String word) {
+        int n = word.length();
+        StringBuilder key = new StringBuilder(n);
+        int i = 0;
+        if (n >= 2) {
+            String head = word.substring(0, 2);
+            if (head.equals("kn") || head.equals("gn") || head.equals("pn") || head.equals("wr")
+                    || head.equals("ae")) {
+                i = 1;
+            } else if (head.equals("wh")) {
+                key.append('w');
+                i = 2;
+            }
+        }
+        if (i == 0 && n > 0 && word.charAt(0) == 'x') {
+            key.append('s');
+            i = 1;
+        }
+
+        for (; i < n; i++) {
+            char c = word.charAt(i);
+            char next = i + 1 < n ? word.charAt(i + 1) : 0;
+            char prev = i > 0 ? word.charAt(i - 1) : 0;
+            if (c == prev && c != 'c') continue;
+
+            switch (c) {
+                case 'a': case 'e': case 'i': case 'o': case 'u':
+                    if (i == 0) key.append(c);
+                    break;
+                case 'b':
+                    if (!(prev == 'm' && i == n - 1)) key.append('b');
+                    break;
+                case 'c':
+                    if (next == 'h') {
+                        key.append('x');
+                        i++;
+                    } else if (next == 'i' || next == 'e' || next == 'y') {
+                        key.append('s');
+                    } else if (next != 'k') {
+                        key.append('k');
+                    }
+                    break;
+                case 'd':
+                    if (next == 'g' && i + 2 < n && isSoft(word.charAt(i + 2))) {
+                        key.append('j');
+                        i++;
+                    } else {
+                        key.append('t');
+                    }
+                    break;
+                case 'g':
+                    if (next == 'h') {
+                        i++;
+                    } else if (next == 'n' && i + 2 >= n) {
+                        // silent, as in "sign"
+                    } else {
+                        key.append(isSoft(next) ? 'j' : 'k');
+                    }
+                    break;
+                case 'h':
+                    if (isVowel(next) && !isVowel(prev) && "csptg".indexOf(prev) < 0) key.append('h');
+                    break;
+                case 'k':
+                    if (prev != 'c') key.append('k');
+                    break;
+                case 'p':
+                    if (next == 'h') {
+                        key.append('f');
+                        i++;
+                    } else {
+                        key.append('p');
+                    }
+                    break;
+                case 'q':
+                    key.append('k');
+                    break;
+                case 's':
+                    if (next == 'h') {
+                        key.append('x');
+                        i++;
+                    } else {
+                        key.append('s');
+                    }
+                    break;
+                case 't':
+                    if (next == 'h') {
+                        key.append('0');
+                        i++;
+                    } else {
+                        key.append('t');
+                    }
+                    break;
+                case 'v':
+                    key.append('f');
+                    break;
+                case 'w': case 'y':
+                    if (isVowel(next)) key.append(c);
+                    break;
+                case 'x':
+                    key.append("ks");
+                    break;
+                case 'z':
+                    key.append('s');
+                    break;
+                default:
+                    key.append(c);
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'a' || c == 'e' || c == 'i' || c == 'o' || c == 'u';
+    }
+
+    private static boolean isSoft(char c) {
+        return c == 'e' || c == 'i' || c == 'y';
+    }
+}
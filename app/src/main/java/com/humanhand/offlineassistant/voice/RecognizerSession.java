@@ -0,0 +1,525 @@
+package com.humanhand.offlineassistant.voice;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.vosk.Model;
+import org.vosk.Recognizer;
+import org.vosk.android.RecognitionListener;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Keeps one Recognizer, one AudioRecord and one capture thread alive for the
+ * lifetime of the model. Stopping only parks the thread, so the next start
+ * skips native decoder and recorder setup.
+ *
+ * Audio passes through a {@link VoiceActivityDetector} before the decoder:
+ * silence is never decoded, and the end of speech finalises the utterance
+ * straight away instead of waiting for the decoder's own silence endpoint.
+ * Each capture thread owns its recorder and decoders, and closes them, and
+ * then the model, when it exits; grammar swaps, mode switches and resets are
+ * handed to it and applied between buffers. Closing the session only signals
+ * the thread, so it never waits on a decode or a decoder build.
+ *
+ * In standby the same speech goes to a {@link WakeWordSpotter} instead. When
+ * it hears the wake phrase the session switches itself to command decoding and
+ * replays the buffered segment, so nothing said after the phrase is lost.
+ *
+ * Below {@link VoiceRecognitionManager.Tier#FULL} the session is lean: the
+ * capture thread frees whichever of the two decoders the current mode does not
+ * use and rebuilds it when the mode comes back, trading that rebuild for the
+ * memory.
+ */
+class RecognizerSession {
+    private static final String TAG = "RecognizerSession";
+    private static final int SAMPLE_RATE = 16000;
+    // 0.1 s per read and per decode call, as SpeechService did.
+    private static final int BUFFER_SAMPLES = SAMPLE_RATE / 10;
+    // N-best list handed to HypothesisRescorer with each final result.
+    private static final int MAX_ALTERNATIVES = 4;
+    // Speech starts about this far above the noise floor; each meter level is a step above that.
+    private static final float METER_BASE_DB = 10f;
+    private static final float METER_STEP_DB = 4f;
+    private static final int METER_PROCESSING = -1;
+
+    private final Model model;
+    private final ModelBudget budget;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object lock = new Object();
+    // Built ahead of the first start and handed to the capture, which owns them from then on.
+    private Recognizer recognizer;
+    private WakeWordSpotter spotter;
+    private Capture capture;
+    private boolean freeForm;
+
+    // Guarded by lock; handed from the main thread to the capture thread.
+    private boolean paused = true;
+    private boolean spotting;
+    private boolean resetPending;
+    private boolean rebuildPending;
+    private String grammar;
+    private String pendingGrammar;
+    private VoiceRecognitionManager.Tier tier = VoiceRecognitionManager.Tier.FULL;
+
+    private volatile RecognitionListener listener;
+    private volatile VoiceRecognitionManager.WakeListener wakeListener;
+    private volatile VoiceRecognitionManager.MeterListener meterListener;
+    private volatile boolean active;
+    private volatile long resumedAt;
+    private volatile boolean awaitingFirstFrame;
+    private volatile long lastStartLatencyMs = -1;
+
+    /** The session owns {@code model} and closes it in {@link #close()}. */
+    RecognizerSession(Model model, ModelBudget budget) {
+        this.model = model;
+        this.budget = budget;
+    }
+
+    /** Builds the decoder ahead of the first start. {@code grammarJson} is null for free-form decoding. */
+    void warm(String grammarJson) {
+        try {
+            if (recognizer == null) createRecognizer(grammarJson);
+            if (spotter == null) spotter = new WakeWordSpotter(model, SAMPLE_RATE);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to warm recognizer", e);
+        }
+    }
+
+    boolean resume(RecognitionListener listener, String grammarJson) {
+        return start(listener, null, grammarJson);
+    }
+
+    /**
+     * Listens for the wake phrase only. On detection {@code wakeListener} is
+     * told on the main thread and the session carries on as if resumed with
+     * {@code grammarJson}, delivering results to {@code listener}.
+     */
+    boolean standby(RecognitionListener listener, VoiceRecognitionManager.WakeListener wakeListener,
+                    String grammarJson) {
+        return start(listener, wakeListener, grammarJson);
+    }
+
+    private boolean start(RecognitionListener listener, VoiceRecognitionManager.WakeListener wakeListener,
+                          String grammarJson) {
+        try {
+            if (capture == null) {
+                if (recognizer != null && freeForm != (grammarJson == null)) {
+                    recognizer.close();
+                    recognizer = null;
+                }
+                if (recognizer == null) createRecognizer(grammarJson);
+                if (wakeListener != null && spotter == null) spotter = new WakeWordSpotter(model, SAMPLE_RATE);
+                startCapture();
+            }
+
+            this.listener = listener;
+            this.wakeListener = wakeListener;
+            active = true;
+            awaitingFirstFrame = true;
+            resumedAt = SystemClock.elapsedRealtime();
+            synchronized (lock) {
+                if (freeForm != (grammarJson == null)) {
+                    // Only a new recognizer switches between grammar and free-form decoding.
+                    freeForm = grammarJson == null;
+                    grammar = grammarJson;
+                    pendingGrammar = null;
+                    rebuildPending = true;
+                } else if (grammarJson != null && !grammarJson.equals(grammar)) {
+                    pendingGrammar = grammarJson;
+                    grammar = grammarJson;
+                }
+                spotting = wakeListener != null;
+                resetPending = true;
+                paused = false;
+                lock.notifyAll();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start listening", e);
+            active = false;
+            return false;
+        }
+    }
+
+    void pause() {
+        synchronized (lock) {
+            paused = true;
+        }
+        active = false;
+        listener = null;
+        wakeListener = null;
+    }
+
+    /** Anything below FULL makes the session lean from the next buffer on. */
+    void setTier(VoiceRecognitionManager.Tier tier) {
+        synchronized (lock) {
+            this.tier = tier;
+        }
+    }
+
+    void setMeterListener(VoiceRecognitionManager.MeterListener listener) {
+        meterListener = listener;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /** Time from the last resume to the first captured buffer, or -1 if not yet measured. */
+    long getLastStartLatencyMs() {
+        return lastStartLatencyMs;
+    }
+
+    /** Frees the decoders and the model; a running capture thread does so itself once it sees the stop. */
+    void close() {
+        active = false;
+        listener = null;
+        wakeListener = null;
+        Capture running = capture;
+        capture = null;
+        if (running != null) {
+            running.stop();
+            return;
+        }
+        if (recognizer != null) {
+            recognizer.close();
+            recognizer = null;
+        }
+        if (spotter != null) {
+            spotter.close();
+            spotter = null;
+        }
+        model.close();
+    }
+
+    private void createRecognizer(String grammarJson) throws IOException {
+        recognizer = newRecognizer(grammarJson);
+        synchronized (lock) {
+            grammar = grammarJson;
+        }
+        freeForm = grammarJson == null;
+    }
+
+    private Recognizer newRecognizer(String grammarJson) throws IOException {
+        Recognizer created = grammarJson == null
+                ? new Recognizer(model, SAMPLE_RATE)
+                : new Recognizer(model, SAMPLE_RATE, grammarJson);
+        created.setMaxAlternatives(MAX_ALTERNATIVES);
+        return created;
+    }
+
+    private void startCapture() throws IOException {
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minBuffer, BUFFER_SAMPLES * 2 * 2));
+        if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            recorder.release();
+            throw new IOException("Failed to initialize recorder. Microphone might be already in use.");
+        }
+        synchronized (lock) {
+            paused = true;
+        }
+        capture = new Capture(recorder, recognizer, spotter);
+        recognizer = null;
+        spotter = null;
+        new Thread(capture, "VoiceCapture").start();
+    }
+
+    private void postMeter(int level) {
+        if (meterListener == null) return;
+        mainHandler.post(() -> {
+            VoiceRecognitionManager.MeterListener target = meterListener;
+            if (!active || target == null) return;
+            if (level == METER_PROCESSING) {
+                target.onProcessing();
+            } else {
+                target.onLevel(level);
+            }
+        });
+    }
+
+    private void deliverResult(String hypothesis) {
+        mainHandler.post(() -> {
+            RecognitionListener target = listener;
+            if (active && target != null) target.onResult(hypothesis);
+        });
+    }
+
+    private void post(Exception error) {
+        mainHandler.post(() -> {
+            RecognitionListener target = listener;
+            if (active && target != null) {
+                target.onError(error);
+            } else {
+                Log.e(TAG, "Recognition error while paused", error);
+            }
+        });
+    }
+
+    // The capture thread and everything it owns. Only it touches these fields.
+    private final class Capture implements Runnable, VoiceActivityDetector.Sink {
+        private final AudioRecord recorder;
+        private Recognizer recognizer;
+        private WakeWordSpotter spotter;
+        // Guarded by lock.
+        private boolean running = true;
+
+        private final VoiceActivityDetector vad = new VoiceActivityDetector(this);
+        private final short[] readBuffer = new short[BUFFER_SAMPLES];
+        private final short[] decodeBuffer = new short[BUFFER_SAMPLES];
+        private int decodeFill;
+        private boolean utteranceDecoded;
+        private boolean spottingNow;
+        private VoiceRecognitionManager.Tier tierNow;
+        private String decodeGrammar;
+        private int meterLevel;
+
+        Capture(AudioRecord recorder, Recognizer recognizer, WakeWordSpotter spotter) {
+            this.recorder = recorder;
+            this.recognizer = recognizer;
+            this.spotter = spotter;
+        }
+
+        // Any thread; the capture thread exits after the buffer or decoder build it is in.
+        void stop() {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean recording = false;
+            try {
+                while (true) {
+                    String swap;
+                    boolean reset;
+                    boolean rebuild;
+                    synchronized (lock) {
+                        while (running && paused) {
+                            if (recording) {
+                                recorder.stop();
+                                recording = false;
+                                logSkipped();
+                            }
+                            try {
+                                lock.wait();
+                            } catch (InterruptedException e) {
+                                running = false;
+                            }
+                        }
+                        if (!running) break;
+                        swap = pendingGrammar;
+                        pendingGrammar = null;
+                        reset = resetPending;
+                        resetPending = false;
+                        rebuild = rebuildPending;
+                        rebuildPending = false;
+                        spottingNow = spotting;
+                        tierNow = tier;
+                        decodeGrammar = grammar;
+                    }
+                    if (rebuild && recognizer != null) {
+                        recognizer.close();
+                        recognizer = null;
+                    }
+                    boolean rebuilt;
+                    try {
+                        rebuilt = prepareDecoders();
+                    } catch (IOException e) {
+                        post(e);
+                        synchronized (lock) {
+                            paused = true;
+                        }
+                        continue;
+                    }
+                    // A rebuilt or freed recognizer already has, or will get, the latest grammar.
+                    if (swap != null && recognizer != null && !rebuilt) recognizer.setGrammar(swap);
+                    if (reset) {
+                        if (recognizer != null) recognizer.reset();
+                        vad.reset();
+                        if (spotter != null) spotter.reset();
+                        decodeFill = 0;
+                        utteranceDecoded = false;
+                        meterLevel = 0;
+                    }
+                    if (!recording) {
+                        recorder.startRecording();
+                        recording = true;
+                    }
+
+                    long wallStart = spottingNow ? SystemClock.elapsedRealtimeNanos() : 0;
+                    long cpuStart = spottingNow ? Debug.threadCpuTimeNanos() : 0;
+                    int read = recorder.read(readBuffer, 0, readBuffer.length);
+                    if (read < 0) {
+                        post(new IOException("AudioRecord read failed: " + read));
+                        synchronized (lock) {
+                            paused = true;
+                        }
+                        continue;
+                    }
+                    if (awaitingFirstFrame) {
+                        awaitingFirstFrame = false;
+                        lastStartLatencyMs = SystemClock.elapsedRealtime() - resumedAt;
+                        Log.d(TAG, "Start to first frame: " + lastStartLatencyMs + " ms");
+                    }
+                    boolean wasSpotting = spottingNow;
+                    vad.process(readBuffer, 0, read);
+                    updateMeter();
+                    if (wasSpotting) {
+                        WakeWordSpotter.recordStandby(Debug.threadCpuTimeNanos() - cpuStart,
+                                SystemClock.elapsedRealtimeNanos() - wallStart);
+                    }
+                }
+            } finally {
+                if (recording) recorder.stop();
+                recorder.release();
+                if (recognizer != null) recognizer.close();
+                if (spotter != null) spotter.close();
+                // Only close() stops a capture, so the model goes with it, after the decoders built on it.
+                model.close();
+            }
+        }
+
+        @Override
+        public void onSpeech(short[] pcm, int length) {
+            if (spottingNow) {
+                if (spotter.onSpeech(pcm, length)) onWake();
+                return;
+            }
+            System.arraycopy(pcm, 0, decodeBuffer, decodeFill, length);
+            decodeFill += length;
+            if (decodeFill == decodeBuffer.length) decode();
+        }
+
+        @Override
+        public void onSpeechEnd() {
+            if (spottingNow) {
+                if (!spotter.onSpeechEnd()) {
+                    spotter.reset();
+                    return;
+                }
+                onWake();
+            }
+            if (decodeFill > 0 || utteranceDecoded) postMeter(METER_PROCESSING);
+            if (decodeFill > 0) decode();
+            if (utteranceDecoded) {
+                // The decoder never sees the trailing silence, so close the utterance here.
+                deliverResult(recognizer.getFinalResult());
+                utteranceDecoded = false;
+            }
+        }
+
+        // Hands the segment heard so far to the command decoder.
+        private void onWake() {
+            try {
+                ensureRecognizer();
+            } catch (IOException e) {
+                post(e);
+                spotter.reset();
+                return;
+            }
+            synchronized (lock) {
+                spotting = false;
+            }
+            spottingNow = false;
+            long latencyMs = SystemClock.elapsedRealtime() - spotter.getSegmentStartedAt();
+            WakeWordSpotter.recordDetection(latencyMs);
+            Log.d(TAG, "Wake phrase detected " + latencyMs + " ms after speech onset");
+
+            short[] segment = spotter.getSegment();
+            int length = spotter.getSegmentLength();
+            short[] frame = new short[VoiceActivityDetector.FRAME_SAMPLES];
+            for (int offset = 0; offset < length; offset += frame.length) {
+                System.arraycopy(segment, offset, frame, 0, frame.length);
+                onSpeech(frame, frame.length);
+            }
+            spotter.reset();
+            mainHandler.post(() -> {
+                VoiceRecognitionManager.WakeListener target = wakeListener;
+                wakeListener = null;
+                if (active && target != null) target.onWake();
+            });
+        }
+
+        // Builds the decoder the current mode needs and, when lean, frees the other.
+        // Returns true if the command recognizer was rebuilt.
+        private boolean prepareDecoders() throws IOException {
+            boolean lean = tierNow != VoiceRecognitionManager.Tier.FULL;
+            if (spottingNow) {
+                if (spotter == null) {
+                    long start = SystemClock.elapsedRealtime();
+                    spotter = new WakeWordSpotter(model, SAMPLE_RATE);
+                    budget.recordRebuild(tierNow, SystemClock.elapsedRealtime() - start);
+                }
+                if (lean && recognizer != null) {
+                    recognizer.close();
+                    recognizer = null;
+                    budget.recordResident(tierNow);
+                }
+                return false;
+            }
+            boolean rebuilt = ensureRecognizer();
+            if (lean && spotter != null) {
+                spotter.close();
+                spotter = null;
+                budget.recordResident(tierNow);
+            }
+            return rebuilt;
+        }
+
+        private boolean ensureRecognizer() throws IOException {
+            if (recognizer != null) return false;
+            long start = SystemClock.elapsedRealtime();
+            recognizer = newRecognizer(decodeGrammar);
+            budget.recordRebuild(tierNow, SystemClock.elapsedRealtime() - start);
+            return true;
+        }
+
+        // Once per read: so at most 10 updates a second, and none while the level holds.
+        private void updateMeter() {
+            float aboveFloor = vad.takePeakAboveFloorDb();
+            int level = 0;
+            // Standby shows no meter; the wake phrase is not worth a redraw.
+            if (vad.isSpeech() && !spottingNow) {
+                level = 1 + (int) ((aboveFloor - METER_BASE_DB) / METER_STEP_DB);
+                level = Math.max(1, Math.min(VoiceRecognitionManager.METER_LEVELS - 1, level));
+            }
+            if (level == meterLevel) return;
+            meterLevel = level;
+            postMeter(level);
+        }
+
+        private void decode() {
+            boolean endpoint = recognizer.acceptWaveForm(decodeBuffer, decodeFill);
+            decodeFill = 0;
+            if (endpoint) {
+                deliverResult(recognizer.getResult());
+                utteranceDecoded = false;
+            } else {
+                utteranceDecoded = true;
+                String partial = recognizer.getPartialResult();
+                mainHandler.post(() -> {
+                    RecognitionListener target = listener;
+                    if (active && target != null) target.onPartialResult(partial);
+                });
+            }
+        }
+
+        private void logSkipped() {
+            Log.d(TAG, String.format(Locale.US, "VAD skipped %.1f%% of %d frames, noise floor %.1f dB",
+                    100 * vad.getSkippedFraction(), vad.getTotalFrames(), vad.getNoiseFloorDb()));
+        }
+    }
+}
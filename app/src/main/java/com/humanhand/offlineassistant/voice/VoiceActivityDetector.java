@@ -0,0 +1,198 @@
+package com.humanhand.offlineassistant.voice;
+
+/**
+ * Energy + zero-crossing voice activity gate for 16 kHz mono PCM. Only speech
+ * reaches the {@link Sink}; silence is dropped before it costs any decoding.
+ *
+ * The threshold tracks an adaptive noise floor (falls quickly, rises slowly)
+ * with separate enter and exit margins. Speech must persist for a couple of
+ * frames to start and ends after a hangover, and the frames just before the
+ * onset are replayed from a pre-roll ring so the first syllable is not clipped.
+ *
+ * Pure Java and allocation-free per frame, so it runs the same on the JVM
+ * against recorded PCM as on the device. Not thread-safe.
+ */
+public final class VoiceActivityDetector {
+    public interface Sink {
+        /** Speech audio in order, pre-roll first; {@code pcm} is reused after the call. */
+        void onSpeech(short[] pcm, int length);
+
+        /** The hangover after the last speech frame has expired. */
+        void onSpeechEnd();
+    }
+
+    /** 20 ms at 16 kHz. */
+    public static final int FRAME_SAMPLES = 320;
+
+    private static final float ENTER_MARGIN_DB = 10f;
+    private static final float EXIT_MARGIN_DB = 6f;
+    // Broadband noise crosses zero on about half the samples; voiced speech far less.
+    private static final float NOISY_ZCR = 0.45f;
+    private static final float NOISY_EXTRA_DB = 6f;
+    // Frames quieter than this are never speech, whatever the floor says.
+    private static final float MIN_SPEECH_DB = 30f;
+    private static final float FLOOR_FALL = 0.3f;
+    private static final float FLOOR_RISE = 0.02f;
+    private static final int ONSET_FRAMES = 2;
+    private static final int HANGOVER_FRAMES = 15;
+    private static final int PREROLL_FRAMES = 15;
+    // A "speech" run this long is a louder noise floor, not a command.
+    private static final int MAX_SPEECH_FRAMES = 500;
+
+    private final Sink sink;
+    private final short[] frame = new short[FRAME_SAMPLES];
+    private int frameFill;
+    private final short[] preRoll = new short[PREROLL_FRAMES * FRAME_SAMPLES];
+    private int preRollStart;
+    private int preRollFrames;
+
+    private float noiseFloorDb = Float.NaN;
+    private boolean inSpeech;
+    private int onsetFrames;
+    private int hangover;
+    private int speechFrames;
+
+    private long totalFrames;
+    private long decodedFrames;
+    private float peakDb = Float.NEGATIVE_INFINITY;
+
+    public VoiceActivityDetector(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Feeds any number of samples; they are framed internally. */
+    public void process(short[] pcm, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(FRAME_SAMPLES - frameFill, end - offset);
+            System.arraycopy(pcm, offset, frame, frameFill, n);
+            frameFill += n;
+            offset += n;
+            if (frameFill == FRAME_SAMPLES) {
+                processFrame();
+                frameFill = 0;
+            }
+        }
+    }
+
+    /** Ends any utterance in progress without a callback; keeps the learned noise floor. */
+    public void reset() {
+        inSpeech = false;
+        onsetFrames = 0;
+        hangover = 0;
+        speechFrames = 0;
+        frameFill = 0;
+        preRollFrames = 0;
+    }
+
+    public boolean isSpeech() {
+        return inSpeech;
+    }
+
+    public float getNoiseFloorDb() {
+        return noiseFloorDb;
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /** Loudest frame since the last call, in dB above the noise floor, or 0 if nothing was louder than it. */
+    public float takePeakAboveFloorDb() {
+        float peak = peakDb - noiseFloorDb;
+        peakDb = Float.NEGATIVE_INFINITY;
+        return peak > 0 ? peak : 0f;
+    }
+
+    /** Fraction of frames that never reached the decoder. */
+    public double getSkippedFraction() {
+        return totalFrames == 0 ? 0 : 1 - (double) decodedFrames / totalFrames;
+    }
+
+    private void processFrame() {
+        totalFrames++;
+        long sumSquares = 0;
+        int crossings = 0;
+        short previous = frame[0];
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            short s = frame[i];
+            sumSquares += s * s;
+            if ((s ^ previous) < 0) crossings++;
+            previous = s;
+        }
+        float energyDb = (float) (10 * Math.log10(1.0 + (double) sumSquares / FRAME_SAMPLES));
+        float zcr = (float) crossings / FRAME_SAMPLES;
+        if (Float.isNaN(noiseFloorDb)) noiseFloorDb = energyDb;
+        if (energyDb > peakDb) peakDb = energyDb;
+
+        if (inSpeech) {
+            continueSpeech(energyDb);
+        } else {
+            awaitOnset(energyDb, zcr);
+        }
+    }
+
+    private void awaitOnset(float energyDb, float zcr) {
+        float threshold = noiseFloorDb + ENTER_MARGIN_DB + (zcr > NOISY_ZCR ? NOISY_EXTRA_DB : 0);
+        boolean candidate = energyDb >= MIN_SPEECH_DB && energyDb > threshold;
+        pushPreRoll();
+        if (!candidate) {
+            onsetFrames = 0;
+            adaptFloor(energyDb);
+            return;
+        }
+        if (++onsetFrames < ONSET_FRAMES) return;
+
+        inSpeech = true;
+        hangover = HANGOVER_FRAMES;
+        speechFrames = 0;
+        flushPreRoll();
+    }
+
+    private void continueSpeech(float energyDb) {
+        emit(frame);
+        if (energyDb > noiseFloorDb + EXIT_MARGIN_DB) {
+            hangover = HANGOVER_FRAMES;
+        } else {
+            hangover--;
+        }
+        if (hangover <= 0 || ++speechFrames >= MAX_SPEECH_FRAMES) {
+            if (speechFrames >= MAX_SPEECH_FRAMES) noiseFloorDb = energyDb;
+            inSpeech = false;
+            onsetFrames = 0;
+            sink.onSpeechEnd();
+        }
+    }
+
+    private void adaptFloor(float energyDb) {
+        float rate = energyDb < noiseFloorDb ? FLOOR_FALL : FLOOR_RISE;
+        noiseFloorDb += rate * (energyDb - noiseFloorDb);
+    }
+
+    private void pushPreRoll() {
+        int slot = (preRollStart + preRollFrames) % PREROLL_FRAMES;
+        System.arraycopy(frame, 0, preRoll, slot * FRAME_SAMPLES, FRAME_SAMPLES);
+        if (preRollFrames < PREROLL_FRAMES) {
+            preRollFrames++;
+        } else {
+            preRollStart = (preRollStart + 1) % PREROLL_FRAMES;
+        }
+    }
+
+    // Replays the ring oldest first through the frame buffer, which holds the
+    // current frame; that frame is the newest ring entry so nothing is lost.
+    private void flushPreRoll() {
+        for (int i = 0; i < preRollFrames; i++) {
+            int slot = (preRollStart + i) % PREROLL_FRAMES;
+            System.arraycopy(preRoll, slot * FRAME_SAMPLES, frame, 0, FRAME_SAMPLES);
+            emit(frame);
+        }
+        preRollStart = 0;
+        preRollFrames = 0;
+    }
+
+    private void emit(short[] pcm) {
+        decodedFrames++;
+        sink.onSpeech(pcm, FRAME_SAMPLES);
+    }
+}
@@ -1,64 +1,364 @@
 package com.humanhand.offlineassistant.voice;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.vosk.Model;
-import org.vosk.Recognizer;
-import org.vosk.android.SpeechService;
-import org.vosk.android.StorageService;
 import org.vosk.android.RecognitionListener;
 
-import java.io.IOException;
-
+/**
+ * Owns the model and the recognizer session, and sizes them to memory
+ * pressure: trims step down through {@link Tier}, and the next start after
+ * pressure has eased steps back up, loading in the background while the
+ * lighter tier keeps listening.
+ */
 public class VoiceRecognitionManager {
     private static final String TAG = "VoiceRecManager";
-    private Model model;
-    private SpeechService speechService;
-    private final Context context;
+    public static final String MODEL_ASSET = "vosk-model-small-en-us-0.15";
+    // Optional smaller model for LITE; only ever decoded against a grammar.
+    public static final String LITE_MODEL_ASSET = "vosk-model-commands-en-us";
+    // A trim holds loads at its tier this long; pressure comes in bursts.
+    private static final long RECOVER_MS = 5 * 60 * 1000;
+
+    public enum Mode {
+        // Decodes against CommandGrammar only.
+        COMMAND,
+        // Full model vocabulary, for dictation.
+        DICTATION
+    }
+
+    /** How much of the recognizer stays in memory, heaviest first. */
+    public enum Tier {
+        // Model, command recognizer and wake spotter all kept warm.
+        FULL,
+        // Same model; the session frees the decoder its mode is not using.
+        LEAN,
+        // Lean, and COMMAND mode only. Uses LITE_MODEL_ASSET when it is bundled.
+        LITE,
+        // Nothing loaded; the next start reloads in the background.
+        UNLOADED
+    }
+
+    public interface WakeListener {
+        /** Called on the main thread; the session is already decoding commands by then. */
+        void onWake();
+    }
+
+    /** Number of distinct {@link MeterListener#onLevel} values. */
+    public static final int METER_LEVELS = 8;
+
+    /** Drives the listening indicator. Called on the main thread, only while listening. */
+    public interface MeterListener {
+        /** Input level from 0 (no speech) to {@link #METER_LEVELS} - 1; only sent when it changes. */
+        void onLevel(int level);
+
+        /** Speech has ended and the decoder is closing the utterance; its result follows. */
+        void onProcessing();
+    }
+
+    private RecognizerSession session;
+    private ModelStore activeStore;
+    private final ModelStore fullStore;
+    // Null when LITE_MODEL_ASSET is not bundled.
+    private final ModelStore liteStore;
+    private final ModelBudget budget;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CommandGrammar grammar = CommandGrammar.getInstance();
+    private Mode mode = Mode.COMMAND;
+    private Tier tier = Tier.UNLOADED;
+    // Tier being loaded, or null.
+    private Tier loading;
+    private Tier trimmedTo = Tier.FULL;
+    private long trimmedAt;
+    // The last start, applied again whenever a new session takes over.
+    private RecognitionListener listener;
+    private WakeListener wakeListener;
+    private boolean listening;
+    private MeterListener meterListener;
+    private Runnable stateListener;
+    private boolean destroyed;
+    // Brings the model back for a start that outlived an UNLOADED trim.
+    private final Runnable reload = this::reload;
 
     public VoiceRecognitionManager(Context context) {
-        this.context = context;
-        initModel();
+        fullStore = new ModelStore(context, MODEL_ASSET);
+        liteStore = ModelStore.isBundled(context, LITE_MODEL_ASSET) ? new ModelStore(context, LITE_MODEL_ASSET) : null;
+        budget = new ModelBudget(context);
+        load(loadTier());
     }
 
-    private void initModel() {
-        StorageService.unpack(context, "vosk-model-small-en-us-0.15", "model",
-                (model) -> {
-                    this.model = model;
-                    Log.d(TAG, "Model loaded");
-                },
-                (exception) -> Log.e(TAG, "Failed to unpack model", exception));
+    private void load(Tier target) {
+        loading = target;
+        ModelStore store = storeFor(target);
+        Mode warmMode = modeFor(target);
+        long start = SystemClock.elapsedRealtime();
+        store.load().whenComplete((model, error) -> {
+            if (error != null) {
+                Log.e(TAG, "Failed to load model", error);
+                mainHandler.post(() -> onLoadFailed(target, store));
+                return;
+            }
+            // Still on the model thread: build the decoder here rather than on the main thread.
+            RecognizerSession warmed = new RecognizerSession(model, budget);
+            warmed.warm(grammarFor(warmMode));
+            mainHandler.post(() -> onModelReady(target, store, warmed, start));
+        });
+        notifyState();
+    }
+
+    private void onModelReady(Tier target, ModelStore store, RecognizerSession warmed, long start) {
+        if (destroyed || loading != target) {
+            // Cancelled while loading; the session closes the model too.
+            warmed.close();
+            return;
+        }
+        loading = null;
+        // Stepping up from LITE: the new model replaces the one still listening.
+        closeModel();
+        activeStore = store;
+        session = warmed;
+        session.setTier(target);
+        session.setMeterListener(meterListener);
+        tier = target;
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        budget.recordReload(target, elapsed);
+        budget.recordResident(target);
+        Log.d(TAG, "Model loaded as " + target + " in " + elapsed + " ms");
+        if (listening) resume();
+        notifyState();
+    }
+
+    private void onLoadFailed(Tier target, ModelStore store) {
+        store.unload();
+        if (loading == target) loading = null;
+        notifyState();
+    }
+
+    /** True while a session can listen. */
+    public boolean isReady() {
+        return session != null;
+    }
+
+    /** True while a model is loading, including a step up behind a session that is still listening. */
+    public boolean isLoading() {
+        return loading != null;
+    }
+
+    public Tier getTier() {
+        return tier;
+    }
+
+    /** Called on the main thread whenever {@link #isReady()} or {@link #isLoading()} may have changed. */
+    public void setStateListener(Runnable listener) {
+        stateListener = listener;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Takes effect the next time listening starts. */
+    public void setMode(Mode mode) {
+        this.mode = mode;
     }
 
     public void startListening(RecognitionListener listener) {
-        if (model == null) {
-            Log.e(TAG, "Model not loaded yet");
+        this.listener = listener;
+        wakeListener = null;
+        listening = true;
+        if (prepare() && session.resume(listener, grammarFor(modeFor(tier)))) {
+            Log.d(TAG, "Started listening in " + modeFor(tier) + " mode");
+        }
+    }
+
+    /**
+     * Listens for {@link WakeWordSpotter#WAKE_PHRASE} only, then switches to
+     * command decoding by itself and reports results to {@code listener}.
+     */
+    public void startStandby(RecognitionListener listener, WakeListener wakeListener) {
+        this.listener = listener;
+        this.wakeListener = wakeListener;
+        listening = true;
+        if (prepare() && session.standby(listener, wakeListener, grammarFor(modeFor(tier)))) {
+            Log.d(TAG, "Standby, waiting for wake phrase");
+        }
+    }
+
+    // True if the session can start now; otherwise a load is under way and starts it when done.
+    private boolean prepare() {
+        if (session == null) {
+            if (loading == null) load(loadTier());
+            Log.d(TAG, "Model loading, listening will start when ready");
+            return false;
+        }
+        Tier target = loadTier();
+        if (loading != null || target.ordinal() >= tier.ordinal()) return true;
+        if (storeFor(target) == activeStore) {
+            tier = target;
+            session.setTier(target);
+        } else {
+            load(target);
+        }
+        Log.d(TAG, "Stepping up to " + target);
+        return true;
+    }
+
+    private void resume() {
+        if (wakeListener != null) {
+            startStandby(listener, wakeListener);
+        } else {
+            startListening(listener);
+        }
+    }
+
+    /**
+     * Main thread. Steps down to the tier {@code level} calls for: recognizers
+     * first, then the lite model, and nothing loaded only when it is critical.
+     * Never steps up; the next start after {@link #RECOVER_MS} does that.
+     * After an unload, a start still in effect reloads on the first trim below
+     * critical or after {@link #RECOVER_MS}, whichever comes first.
+     */
+    public void onTrimMemory(int level) {
+        Tier target;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            target = Tier.UNLOADED;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            target = Tier.LITE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            target = Tier.LEAN;
+        } else {
             return;
         }
+        long now = SystemClock.elapsedRealtime();
+        if (now - trimmedAt >= RECOVER_MS || target.ordinal() > trimmedTo.ordinal()) trimmedTo = target;
+        trimmedAt = now;
+        budget.recordTrim(target);
 
-        try {
-            Recognizer rec = new Recognizer(model, 16000.0f);
-            speechService = new SpeechService(rec, 16000.0f);
-            speechService.startListening(listener);
-            Log.d(TAG, "Started listening");
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to start listening", e);
+        if (target == Tier.UNLOADED) {
+            cancelLoad();
+            closeModel();
+            tier = Tier.UNLOADED;
+            budget.recordResident(Tier.UNLOADED);
+            mainHandler.removeCallbacks(reload);
+            if (listening) mainHandler.postDelayed(reload, RECOVER_MS);
+            Log.d(TAG, "Trim level " + level + ": model unloaded");
+            notifyState();
+            return;
+        }
+        if (session == null && loading == null) {
+            if (listening) reload();
+            return;
+        }
+        // A step up in flight is no longer wanted. A first load finishes at its own tier;
+        // pressure that persists trims again.
+        if (session != null && loading != null && loading.ordinal() < target.ordinal()) {
+            cancelLoad();
+            notifyState();
         }
+        if (session == null || target.ordinal() <= tier.ordinal()) return;
+        Log.d(TAG, "Trim level " + level + ": " + tier + " -> " + target);
+        if (storeFor(target) == activeStore) {
+            tier = target;
+            session.setTier(target);
+            // LITE decodes commands only, so drop out of dictation now.
+            if (modeFor(target) != mode && listening) resume();
+        } else {
+            // Free the full model before loading the lite one; the gap is the LITE reload time.
+            closeModel();
+            tier = Tier.UNLOADED;
+            load(target);
+        }
+    }
+
+    private void reload() {
+        mainHandler.removeCallbacks(reload);
+        if (destroyed || !listening || session != null || loading != null) return;
+        Log.d(TAG, "Reloading after unload, still listening");
+        load(loadTier());
+    }
+
+    // Heaviest tier the measured budget and any recent trim allow.
+    private Tier loadTier() {
+        Tier target = budget.fits(Tier.FULL) ? Tier.FULL : Tier.LITE;
+        if (SystemClock.elapsedRealtime() - trimmedAt < RECOVER_MS && trimmedTo.ordinal() > target.ordinal()) {
+            target = trimmedTo == Tier.UNLOADED ? Tier.LITE : trimmedTo;
+        }
+        return target;
+    }
+
+    private ModelStore storeFor(Tier tier) {
+        return tier == Tier.LITE && liteStore != null ? liteStore : fullStore;
+    }
+
+    private Mode modeFor(Tier tier) {
+        return tier == Tier.LITE ? Mode.COMMAND : mode;
+    }
+
+    private void cancelLoad() {
+        if (loading == null) return;
+        // The next load of that store starts afresh; this one is closed when it arrives.
+        storeFor(loading).unload();
+        loading = null;
+    }
+
+    private void closeModel() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (activeStore != null) {
+            activeStore.unload();
+            activeStore = null;
+        }
+    }
+
+    private void notifyState() {
+        if (stateListener != null) stateListener.run();
+    }
+
+    public void setMeterListener(MeterListener listener) {
+        meterListener = listener;
+        if (session != null) session.setMeterListener(listener);
+    }
+
+    /** Start-to-first-frame latency of the most recent start, or -1 if unknown. */
+    public long getLastStartLatencyMs() {
+        return session != null ? session.getLastStartLatencyMs() : -1;
+    }
+
+    private String grammarFor(Mode mode) {
+        if (mode == Mode.COMMAND) {
+            Log.d(TAG, "Command grammar: " + grammar.size() + " words");
+            return grammar.toJson();
+        }
+        return null;
     }
 
     public void stopListening() {
-        if (speechService != null) {
-            speechService.stop();
-            speechService = null;
+        listening = false;
+        mainHandler.removeCallbacks(reload);
+        listener = null;
+        wakeListener = null;
+        if (session != null && session.isActive()) {
+            session.pause();
             Log.d(TAG, "Stopped listening");
         }
     }
-    
+
     public void destroy() {
-        if (speechService != null) {
-            speechService.stop();
-            speechService.shutdown();
-        }
+        destroyed = true;
+        listening = false;
+        mainHandler.removeCallbacks(reload);
+        listener = null;
+        wakeListener = null;
+        meterListener = null;
+        stateListener = null;
+        cancelLoad();
+        closeModel();
+        fullStore.shutdown();
+        if (liteStore != null) liteStore.shutdown();
     }
 }
@@ -0,0 +1,186 @@
+package com.humanhand.offlineassistant.voice;
+
+import android.os.SystemClock;
+
+import org.vosk.Model;
+import org.vosk.Recognizer;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Standby stage of the listener: a grammar-restricted recognizer that knows
+ * only the wake phrase. It sees speech frames from the voice activity gate and
+ * keeps the current speech segment, so that on detection the whole segment,
+ * including words spoken right after the phrase, can be replayed into the
+ * command recognizer.
+ *
+ * With only the phrase and [unk] to choose from, partial hypotheses snap to the
+ * phrase on near-misses. A partial therefore never wakes by itself: the phrase
+ * has to hold across {@link #STABLE_PARTIALS} consecutive partials, and then the
+ * finalized result must carry both words at {@link #MIN_WORD_CONFIDENCE} or more.
+ * Endpointed and end-of-speech results get the same confidence check.
+ *
+ * Used only from the capture thread. Standby statistics are process-wide so the
+ * dashboard can read them without a handle on the service.
+ */
+public final class WakeWordSpotter {
+    public static final String WAKE_PHRASE = "hey hand";
+    private static final String GRAMMAR = "[\"" + WAKE_PHRASE + "\", \"[unk]\"]";
+    private static final String[] PHRASE_WORDS = WAKE_PHRASE.split(" ");
+    private static final int STABLE_PARTIALS = 2;
+    // Per-word posterior from the finalized lattice; genuine wakes sit close to 1.
+    static final float MIN_WORD_CONFIDENCE = 0.8f;
+    // 0.2 s per decode call: half the call rate of the command decoder.
+    private static final int CHUNK_SAMPLES = 3200;
+    // Enough for the phrase and a short command said in one breath.
+    private static final int SEGMENT_SAMPLES = 16000 * 4;
+
+    private static final Object statsLock = new Object();
+    private static long standbyCpuNanos;
+    private static long standbyWallNanos;
+    private static int detections;
+    private static int rejections;
+    private static long detectionLatencyMs;
+
+    private final Recognizer recognizer;
+    private final HypothesisReader reader = new HypothesisReader();
+    private final short[] chunk = new short[CHUNK_SAMPLES];
+    private int chunkFill;
+    private final short[] segment = new short[SEGMENT_SAMPLES];
+    private int segmentLength;
+    private long segmentStartedAt;
+    private int partialHits;
+
+    WakeWordSpotter(Model model, int sampleRate) throws IOException {
+        recognizer = new Recognizer(model, sampleRate, GRAMMAR);
+        // Word entries carry the confidence the phrase is checked against.
+        recognizer.setWords(true);
+    }
+
+    /** Feeds one speech frame; returns true once the wake phrase has been heard. */
+    boolean onSpeech(short[] pcm, int length) {
+        if (segmentLength == 0) segmentStartedAt = SystemClock.elapsedRealtime();
+        if (segmentLength + length > SEGMENT_SAMPLES) {
+            // Keep the newest half; a wake phrase is never this far back.
+            int keep = SEGMENT_SAMPLES / 2;
+            System.arraycopy(segment, segmentLength - keep, segment, 0, keep);
+            segmentLength = keep;
+        }
+        System.arraycopy(pcm, 0, segment, segmentLength, length);
+        segmentLength += length;
+
+        System.arraycopy(pcm, 0, chunk, chunkFill, length);
+        chunkFill += length;
+        return chunkFill == CHUNK_SAMPLES && decode();
+    }
+
+    /** Flushes the segment at the end of speech; returns true if it held the wake phrase. */
+    boolean onSpeechEnd() {
+        boolean heard = chunkFill > 0 && decode();
+        partialHits = 0;
+        return heard || confirm(recognizer.getFinalResult());
+    }
+
+    /** Speech heard since the segment started, pre-roll included. Valid until {@link #reset()}. */
+    short[] getSegment() {
+        return segment;
+    }
+
+    int getSegmentLength() {
+        return segmentLength;
+    }
+
+    long getSegmentStartedAt() {
+        return segmentStartedAt;
+    }
+
+    void reset() {
+        recognizer.reset();
+        chunkFill = 0;
+        segmentLength = 0;
+        partialHits = 0;
+    }
+
+    void close() {
+        recognizer.close();
+    }
+
+    private boolean decode() {
+        boolean endpoint = recognizer.acceptWaveForm(chunk, chunkFill);
+        chunkFill = 0;
+        if (endpoint) {
+            partialHits = 0;
+            return confirm(recognizer.getResult());
+        }
+        // The partial is tiny JSON; the phrase cannot appear in it any other way.
+        String partial = recognizer.getPartialResult();
+        if (partial == null || !partial.contains(WAKE_PHRASE)) {
+            partialHits = 0;
+            return false;
+        }
+        if (++partialHits < STABLE_PARTIALS) return false;
+        // Finalizing ends the spotter's utterance; on a wake it is reset anyway.
+        partialHits = 0;
+        return confirm(recognizer.getFinalResult());
+    }
+
+    private boolean confirm(String result) {
+        if (result == null || !result.contains(WAKE_PHRASE)) return false;
+        if (isConfident(reader, result)) return true;
+        synchronized (statsLock) {
+            rejections++;
+        }
+        return false;
+    }
+
+    /**
+     * Whether a word-level result, read with {@code reader}, holds the phrase's
+     * words in order, each at {@link #MIN_WORD_CONFIDENCE} or more.
+     */
+    static boolean isConfident(HypothesisReader reader, String result) {
+        try {
+            reader.read(result);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        int matched = 0;
+        for (int i = 0; i < reader.wordCount(); i++) {
+            HypothesisReader.Text word = reader.word(i);
+            if (reader.wordConfidence(i) < MIN_WORD_CONFIDENCE) {
+                matched = 0;
+            } else if (word.contentEquals(PHRASE_WORDS[matched])) {
+                if (++matched == PHRASE_WORDS.length) return true;
+            } else {
+                matched = word.contentEquals(PHRASE_WORDS[0]) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    static void recordStandby(long cpuNanos, long wallNanos) {
+        synchronized (statsLock) {
+            standbyCpuNanos += cpuNanos;
+            standbyWallNanos += wallNanos;
+        }
+    }
+
+    static void recordDetection(long latencyMs) {
+        synchronized (statsLock) {
+            detections++;
+            detectionLatencyMs += latencyMs;
+        }
+    }
+
+    /** CPU per minute of standby and detection latency, measured from speech onset. */
+    public static String describeStats() {
+        synchronized (statsLock) {
+            if (standbyWallNanos == 0) return "Standby not started yet";
+            return String.format(Locale.US, "Standby %.1f min, CPU %.0f ms/min\n"
+                            + "%d detections, avg %d ms from speech onset; %d rejected as unsure",
+                    standbyWallNanos / 6e10,
+                    standbyCpuNanos / 1e6 / (standbyWallNanos / 6e10),
+                    detections, detections == 0 ? 0 : detectionLatencyMs / detections, rejections);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.humanhand.offlineassistant.voice;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ConfirmationPolicyTest {
+    private final ConfirmationPolicy policy = new ConfirmationPolicy();
+
+    @Test
+    public void riskyWordsEscalateClicks() {
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Delete"));
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Reset network settings"));
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Pay now"));
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Send"));
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Format SD card"));
+    }
+
+    @Test
+    public void wordsInsideOtherWordsDoNotEscalate() {
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, click("Display"));
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, click("Information"));
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, click("Preset"));
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, click("Sender info"));
+    }
+
+    @Test
+    public void phrasesMatchAdjacentWords() {
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Sign out"));
+        assertEquals(ConfirmationPolicy.Tier.HIGH, click("Log-out of account"));
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, click("Sign in or check out"));
+    }
+
+    @Test
+    public void sequenceTakesRiskiestStep() {
+        assertEquals(ConfirmationPolicy.Tier.HIGH, policy.classify(Arrays.asList(
+                new CommandParser.Command(CommandParser.ActionType.GO_BACK),
+                new CommandParser.Command(CommandParser.ActionType.CLICK, "uninstall"))));
+        assertEquals(ConfirmationPolicy.Tier.MEDIUM, policy.classify(Arrays.asList(
+                new CommandParser.Command(CommandParser.ActionType.GO_BACK),
+                new CommandParser.Command(CommandParser.ActionType.CLICK, "display"))));
+    }
+
+    private ConfirmationPolicy.Tier click(String target) {
+        return policy.classify(new CommandParser.Command(CommandParser.ActionType.CLICK, target));
+    }
+}
@@ -0,0 +1,163 @@
+package com.humanhand.offlineassistant.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class HypothesisReaderTest {
+    private final HypothesisReader reader = new HypothesisReader();
+
+    @Test
+    public void finalResultWithWords() {
+        reader.read("{\n  \"result\" : [{\n      \"conf\" : 1.000000,\n      \"end\" : 0.84,\n"
+                + "      \"start\" : 0.51,\n      \"word\" : \"open\"\n    }, {\n      \"conf\" : 0.862114,\n"
+                + "      \"end\" : 1.35,\n      \"start\" : 0.84,\n      \"word\" : \"settings\"\n    }],\n"
+                + "  \"text\" : \"open settings\"\n}");
+        assertEquals("open settings", reader.text().toString());
+        assertEquals(0, reader.partial().length());
+        assertEquals(2, reader.wordCount());
+        assertEquals("open", reader.word(0).toString());
+        assertEquals(1f, reader.wordConfidence(0), 0);
+        assertEquals("settings", reader.word(1).toString());
+        assertEquals(0.862114f, reader.wordConfidence(1), 1e-6);
+    }
+
+    @Test
+    public void partialWithPartialResultWords() {
+        reader.read("{\n  \"partial\" : \"scroll do\",\n  \"partial_result\" : [{\"word\" : \"scroll\"},"
+                + " {\"end\" : 0.9, \"word\" : \"do\"}]\n}");
+        assertEquals("scroll do", reader.partial().toString());
+        assertEquals(0, reader.text().length());
+        assertEquals(2, reader.wordCount());
+        assertEquals("do", reader.word(1).toString());
+        // Partials carry no confidence.
+        assertEquals(1f, reader.wordConfidence(1), 0);
+    }
+
+    @Test
+    public void alternativesStandInForMissingText() {
+        reader.read("{\n  \"alternatives\" : [{\n      \"confidence\" : 312.5,\n      \"text\" : \"go back\"\n"
+                + "    }, {\n      \"confidence\" : 287.25,\n      \"text\" : \"go black\"\n    }, {\n"
+                + "      \"confidence\" : 250,\n      \"text\" : \"\"\n    }]\n}");
+        assertEquals(3, reader.alternativeCount());
+        assertEquals("go back", reader.text().toString());
+        assertEquals("go black", reader.alternative(1).toString());
+        assertEquals(287.25f, reader.alternativeConfidence(1), 0);
+        assertEquals(0, reader.alternative(2).length());
+        assertEquals(250f, reader.alternativeConfidence(2), 0);
+    }
+
+    @Test
+    public void topLevelTextWinsOverAlternatives() {
+        reader.read("{\"alternatives\" : [{\"confidence\" : 10, \"text\" : \"call mom\"}], \"text\" : \"call tom\"}");
+        assertEquals("call tom", reader.text().toString());
+        assertEquals("call mom", reader.alternative(0).toString());
+    }
+
+    @Test
+    public void unescapesStrings() {
+        reader.read("{\"text\" : \"say \\\"hi\\\" \\\\ a\\/b\\n\\t\\u00e9\\u0041\"}");
+        assertEquals("say \"hi\" \\ a/b\n\t\u00e9A", reader.text().toString());
+    }
+
+    @Test
+    public void readsNumbers() {
+        assertEquals(0.0015f, confidenceOf("1.5e-3"), 1e-9);
+        assertEquals(200f, confidenceOf("2E2"), 0);
+        assertEquals(10f, confidenceOf("1e+1"), 0);
+        assertEquals(-0.25f, confidenceOf("-0.25"), 0);
+        assertEquals(7f, confidenceOf("7"), 0);
+    }
+
+    @Test
+    public void skipsUnknownValues() {
+        reader.read("{\"spk\" : [0.1, -2e3, [true, false, null]], \"meta\" : {\"note\" : \"} ] \\\" {\","
+                + " \"nested\" : {\"list\" : [{}, []]}}, \"flag\" : true, \"none\" : null, \"text\" : \"home\"}");
+        assertEquals("home", reader.text().toString());
+    }
+
+    @Test
+    public void wordEntriesWithoutWordAreSkipped() {
+        reader.read("{\"result\" : [{\"conf\" : 0.5, \"start\" : 0.1}, {\"word\" : \"back\", \"conf\" : 0.75}],"
+                + " \"text\" : \"back\"}");
+        assertEquals(1, reader.wordCount());
+        assertEquals("back", reader.word(0).toString());
+        assertEquals(0.75f, reader.wordConfidence(0), 0);
+    }
+
+    @Test
+    public void readingAgainForgetsThePreviousHypothesis() {
+        reader.read("{\"result\" : [{\"conf\" : 1, \"word\" : \"stop\"}], \"text\" : \"stop\"}");
+        reader.read("{}");
+        assertEquals(0, reader.text().length());
+        assertEquals(0, reader.partial().length());
+        assertEquals(0, reader.wordCount());
+        assertEquals(0, reader.alternativeCount());
+    }
+
+    @Test
+    public void buffersGrowPastTheirInitialSize() {
+        StringBuilder words = new StringBuilder();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            if (i > 0) {
+                words.append(", ");
+                text.append(' ');
+            }
+            words.append("{\"conf\" : 0.9, \"word\" : \"word").append(i).append("\"}");
+            text.append("word").append(i);
+        }
+        reader.read("{\"result\" : [" + words + "], \"text\" : \"" + text + "\"}");
+        assertEquals(40, reader.wordCount());
+        assertEquals("word39", reader.word(39).toString());
+        assertEquals(text.toString(), reader.text().toString());
+    }
+
+    @Test
+    public void textViews() {
+        reader.read("{\"text\" : \"hey hand  open camera\"}");
+        HypothesisReader.Text text = reader.text();
+        assertTrue(text.contains("hand"));
+        assertFalse(text.contains("phone"));
+        assertTrue(text.contentEquals("hey hand  open camera"));
+        text.skipPast("hand");
+        assertEquals("open camera", text.toString());
+        assertEquals("camera", text.subSequence(5, 11).toString());
+        text.skipPast("phone");
+        assertEquals("open camera", text.toString());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] malformed = {
+                "",
+                "text",
+                "{\"text\" : \"open",
+                "{\"text\" \"open\"}",
+                "{\"text\" : \"open\"",
+                "{\"te\\\"xt\" : \"open\"}",
+                "{\"text\" : \"\\u00g1\"}",
+                "{\"text\" : \"\\u00\"}",
+                "{\"result\" : [{\"conf\" : , \"word\" : \"a\"}]}",
+                "{\"result\" : [{\"conf\" : 1, \"word\" : \"a\"}}",
+                "{\"meta\" : {\"nested\" : [1, 2}",
+                "{\"meta\" : \"unterminated}",
+        };
+        for (String json : malformed) {
+            try {
+                reader.read(json);
+                fail("accepted " + json);
+            } catch (IllegalArgumentException expected) {
+                // Malformed.
+            }
+        }
+    }
+
+    private float confidenceOf(String number) {
+        reader.read("{\"result\" : [{\"conf\" : " + number + ", \"word\" : \"a\"}], \"text\" : \"a\"}");
+        return reader.wordConfidence(0);
+    }
+}
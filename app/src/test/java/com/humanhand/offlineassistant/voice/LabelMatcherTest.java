@@ -0,0 +1,116 @@
+package com.humanhand.offlineassistant.voice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LabelMatcherTest {
+    private LabelMatcher<String> matcher;
+
+    @Before
+    public void setUp() throws IOException {
+        matcher = new LabelMatcher<>();
+        for (String[] row : readFixture("/labels/settings_screen.tsv")) {
+            matcher.add(row[0], row[0], Boolean.parseBoolean(row[1]), Boolean.parseBoolean(row[2]),
+                    Float.parseFloat(row[3]));
+        }
+    }
+
+    @Test
+    public void recordedTargetsPickTheirLabel() throws IOException {
+        for (String[] row : readFixture("/labels/spoken_targets.tsv")) {
+            assertEquals(row[0], row[1], best(row[0]).label);
+        }
+    }
+
+    @Test
+    public void spacingAndPunctuationNormalizeAway() {
+        assertEquals("Bluetooth", best("blue tooth").label);
+        assertEquals("WhatsApp", best("what's app").label);
+        assertEquals(LabelMatcher.normalize("WhatsApp"), LabelMatcher.normalize("What's App"));
+    }
+
+    @Test
+    public void trigramsOnlyScoreLabelsTheyShare() {
+        assertTrue(matcher.match("zzzz", 5).isEmpty());
+        for (LabelMatcher.Match<String> match : matcher.match("notification", 5)) {
+            assertEquals("Notifications", match.label);
+        }
+    }
+
+    @Test
+    public void phoneticKeyCatchesMisspelling() {
+        assertEquals(PhoneticKey.of("calculator"), PhoneticKey.of("kalkulator"));
+        assertEquals(PhoneticKey.of("phone"), PhoneticKey.of("fone"));
+        // Phonetic hits score 0.8 before bonuses; an exact key scores 1.
+        LabelMatcher.Match<String> match = best("kalkulator");
+        assertEquals("Calculator", match.label);
+        assertTrue(match.score < best("calculator").score);
+    }
+
+    @Test
+    public void bandedDistanceToleratesOneEditPerFourCharacters() {
+        assertFalse(PhoneticKey.of("batterx").equals(PhoneticKey.of("battery")));
+        LabelMatcher.Match<String> match = best("batterx");
+        assertEquals("Battery", match.label);
+        assertTrue(match.score < best("fone").score);
+        // Three edits in seven characters is past the band.
+        assertTrue(matcher.match("batxxxy", 5).isEmpty());
+    }
+
+    @Test
+    public void bonusesOrderEqualText() {
+        LabelMatcher<String> ranked = new LabelMatcher<>();
+        ranked.add("Battery", "low", false, false, 1f);
+        ranked.add("Battery", "high", true, true, 0f);
+        List<LabelMatcher.Match<String>> matches = ranked.match("battery", 5);
+        assertEquals(2, matches.size());
+        assertEquals("high", matches.get(0).item);
+    }
+
+    @Test
+    public void removedLabelsStopMatching() {
+        LabelMatcher<String> small = new LabelMatcher<>();
+        int phone = small.add("Phone", "phone", true, true, 0f);
+        int display = small.add("Display", "display", true, true, 0f);
+        small.remove(phone);
+        assertTrue(small.match("phone", 5).isEmpty());
+        assertEquals(1, small.size());
+        assertEquals("display", small.match("display", 5).get(0).item);
+
+        // Once every id is dead the slots are reclaimed and ids start over.
+        small.remove(display);
+        assertEquals(0, small.size());
+        assertEquals(0, small.add("Display", "display", true, true, 0f));
+    }
+
+    private LabelMatcher.Match<String> best(String spoken) {
+        List<LabelMatcher.Match<String>> matches = matcher.match(spoken, 1);
+        assertFalse(spoken, matches.isEmpty());
+        return matches.get(0);
+    }
+
+    private List<String[]> readFixture(String path) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (InputStream in = getClass().getResourceAsStream(path);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                rows.add(line.split("\t"));
+            }
+        }
+        return rows;
+    }
+}
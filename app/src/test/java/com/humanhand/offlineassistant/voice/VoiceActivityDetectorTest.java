@@ -0,0 +1,154 @@
+package com.humanhand.offlineassistant.voice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixtures are 16 kHz mono 16-bit little-endian PCM. quiet_command.pcm is 20
+ * frames of room noise, 20 frames of a voiced vowel and 30 frames of noise;
+ * room_noise.pcm is 50 frames of the same noise.
+ */
+public class VoiceActivityDetectorTest {
+    private static final int FRAME = VoiceActivityDetector.FRAME_SAMPLES;
+    private static final int SPEECH_START = 20;
+    private static final int SPEECH_END = 40;
+    // Mirrors the detector's private tuning.
+    private static final int ONSET_FRAMES = 2;
+    private static final int PREROLL_FRAMES = 15;
+    private static final int HANGOVER_FRAMES = 15;
+    private static final int MAX_SPEECH_FRAMES = 500;
+
+    private static final class Recorder implements VoiceActivityDetector.Sink {
+        final List<short[]> frames = new ArrayList<>();
+        final List<Integer> endsAfter = new ArrayList<>();
+
+        @Override
+        public void onSpeech(short[] pcm, int length) {
+            frames.add(Arrays.copyOf(pcm, length));
+        }
+
+        @Override
+        public void onSpeechEnd() {
+            endsAfter.add(frames.size());
+        }
+    }
+
+    @Test
+    public void onsetReplaysPreRoll() throws IOException {
+        short[] pcm = readPcm("/vad/quiet_command.pcm");
+        Recorder recorder = new Recorder();
+        new VoiceActivityDetector(recorder).process(pcm, 0, pcm.length);
+
+        // Speech is confirmed on its second frame; the ring holds that frame and the ones before it.
+        int onset = SPEECH_START + ONSET_FRAMES - 1;
+        int firstReplayed = onset - PREROLL_FRAMES + 1;
+        for (int i = 0; i < PREROLL_FRAMES; i++) {
+            assertArrayEquals(frame(pcm, firstReplayed + i), recorder.frames.get(i));
+        }
+        assertArrayEquals("first syllable kept", frame(pcm, SPEECH_START),
+                recorder.frames.get(SPEECH_START - firstReplayed));
+        assertArrayEquals(frame(pcm, onset + 1), recorder.frames.get(PREROLL_FRAMES));
+    }
+
+    @Test
+    public void speechEndsAfterHangover() throws IOException {
+        short[] pcm = readPcm("/vad/quiet_command.pcm");
+        Recorder recorder = new Recorder();
+        VoiceActivityDetector vad = new VoiceActivityDetector(recorder);
+        vad.process(pcm, 0, pcm.length);
+
+        int onset = SPEECH_START + ONSET_FRAMES - 1;
+        int lastEmitted = SPEECH_END + HANGOVER_FRAMES - 1;
+        assertEquals(1, recorder.endsAfter.size());
+        assertEquals(PREROLL_FRAMES + lastEmitted - onset, (int) recorder.endsAfter.get(0));
+        assertArrayEquals(frame(pcm, lastEmitted), recorder.frames.get(recorder.frames.size() - 1));
+        assertFalse(vad.isSpeech());
+    }
+
+    @Test
+    public void chunkingDoesNotChangeFrames() throws IOException {
+        short[] pcm = readPcm("/vad/quiet_command.pcm");
+        Recorder whole = new Recorder();
+        new VoiceActivityDetector(whole).process(pcm, 0, pcm.length);
+        Recorder chunked = new Recorder();
+        VoiceActivityDetector vad = new VoiceActivityDetector(chunked);
+        for (int offset = 0; offset < pcm.length; offset += 77) {
+            vad.process(pcm, offset, Math.min(77, pcm.length - offset));
+        }
+        assertEquals(whole.frames.size(), chunked.frames.size());
+        for (int i = 0; i < whole.frames.size(); i++) {
+            assertArrayEquals(whole.frames.get(i), chunked.frames.get(i));
+        }
+        assertEquals(whole.endsAfter, chunked.endsAfter);
+    }
+
+    @Test
+    public void endlessSpeechBecomesTheNoiseFloor() throws IOException {
+        short[] pcm = readPcm("/vad/quiet_command.pcm");
+        Recorder recorder = new Recorder();
+        VoiceActivityDetector vad = new VoiceActivityDetector(recorder);
+        vad.process(pcm, 0, SPEECH_START * FRAME);
+        float quietFloor = vad.getNoiseFloorDb();
+
+        // A steady loud hum: the middle of the vowel over and over, well past the cap.
+        int loops = 0;
+        while (recorder.endsAfter.isEmpty() && loops++ < 2 * MAX_SPEECH_FRAMES) {
+            vad.process(pcm, (SPEECH_START + 5) * FRAME, 10 * FRAME);
+        }
+        assertEquals(1, recorder.endsAfter.size());
+        assertEquals(PREROLL_FRAMES + MAX_SPEECH_FRAMES, (int) recorder.endsAfter.get(0));
+        assertTrue(vad.getNoiseFloorDb() > quietFloor + 20);
+
+        // The hum no longer counts as speech.
+        for (int i = 0; i < 10; i++) vad.process(pcm, (SPEECH_START + 5) * FRAME, 10 * FRAME);
+        assertFalse(vad.isSpeech());
+        assertEquals(1, recorder.endsAfter.size());
+    }
+
+    @Test
+    public void skippedFractionCountsDroppedFrames() throws IOException {
+        short[] pcm = readPcm("/vad/quiet_command.pcm");
+        Recorder recorder = new Recorder();
+        VoiceActivityDetector vad = new VoiceActivityDetector(recorder);
+        vad.process(pcm, 0, pcm.length);
+        assertEquals(pcm.length / FRAME, vad.getTotalFrames());
+        assertEquals(1 - (double) recorder.frames.size() / vad.getTotalFrames(), vad.getSkippedFraction(), 1e-9);
+
+        short[] noise = readPcm("/vad/room_noise.pcm");
+        Recorder silent = new Recorder();
+        VoiceActivityDetector idle = new VoiceActivityDetector(silent);
+        assertEquals(0, idle.getSkippedFraction(), 0);
+        idle.process(noise, 0, noise.length);
+        assertTrue(silent.frames.isEmpty());
+        assertEquals(1, idle.getSkippedFraction(), 0);
+    }
+
+    private static short[] frame(short[] pcm, int index) {
+        return Arrays.copyOfRange(pcm, index * FRAME, (index + 1) * FRAME);
+    }
+
+    private short[] readPcm(String path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = getClass().getResourceAsStream(path)) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+        }
+        short[] pcm = new short[bytes.size() / 2];
+        ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pcm);
+        return pcm;
+    }
+}
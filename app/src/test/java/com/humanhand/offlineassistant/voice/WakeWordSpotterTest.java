@@ -0,0 +1,64 @@
+package com.humanhand.offlineassistant.voice;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WakeWordSpotterTest {
+    private final HypothesisReader reader = new HypothesisReader();
+
+    @Test
+    public void confidentPhraseWakes() {
+        assertTrue(confident(result(word("hey", 1.0), word("hand", 0.97))));
+        // Words said in the same breath follow the phrase.
+        assertTrue(confident(result(word("hey", 0.91), word("hand", 0.88), word("[unk]", 0.4))));
+        assertTrue(confident(result(word("[unk]", 0.5), word("hey", 0.9), word("hand", 0.9))));
+    }
+
+    @Test
+    public void unsureWordDoesNotWake() {
+        assertFalse(confident(result(word("hey", 0.95), word("hand", 0.42))));
+        assertFalse(confident(result(word("hey", 0.55), word("hand", 0.99))));
+    }
+
+    @Test
+    public void wordsMustBeAdjacentAndInOrder() {
+        assertFalse(confident(result(word("hey", 0.99), word("[unk]", 0.99), word("hand", 0.99))));
+        assertFalse(confident(result(word("hand", 0.99), word("hey", 0.99))));
+        assertTrue(confident(result(word("hey", 0.99), word("hey", 0.99), word("hand", 0.99))));
+    }
+
+    @Test
+    public void fieldOrderDoesNotMatter() {
+        assertTrue(confident("{\"result\":[{\"word\":\"hey\",\"conf\":0.9},{\"word\":\"hand\",\"conf\":0.95}],"
+                + "\"text\":\"hey hand\"}"));
+        assertFalse(confident("{\"result\":[{\"word\":\"hey\",\"conf\":0.9},{\"word\":\"hand\",\"conf\":0.5}],"
+                + "\"text\":\"hey hand\"}"));
+    }
+
+    @Test
+    public void resultsWithoutWordsDoNotWake() {
+        assertFalse(confident("{\n  \"text\" : \"hey hand\"\n}"));
+        assertFalse(confident("{\n  \"text\" : \"\"\n}"));
+    }
+
+    private boolean confident(String result) {
+        return WakeWordSpotter.isConfident(reader, result);
+    }
+
+    // As Vosk prints a final result with setWords(true); isConfident only reads the words.
+    private static String result(String... words) {
+        StringBuilder json = new StringBuilder("{\n  \"result\" : [");
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) json.append(", ");
+            json.append(words[i]);
+        }
+        return json.append("],\n  \"text\" : \"hey hand\"\n}").toString();
+    }
+
+    private static String word(String word, double confidence) {
+        return String.format(java.util.Locale.US, "{\n      \"conf\" : %f,\n      \"end\" : 1.110000,\n"
+                + "      \"start\" : 0.630000,\n      \"word\" : \"%s\"\n    }", confidence, word);
+    }
+}
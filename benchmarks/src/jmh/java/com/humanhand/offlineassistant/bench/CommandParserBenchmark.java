@@ -0,0 +1,31 @@
+package com.humanhand.offlineassistant.bench;
+
+import com.humanhand.offlineassistant.voice.CommandMacro;
+import com.humanhand.offlineassistant.voice.CommandParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** The parse step of onResult, one utterance of the mix per operation. */
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+    private int next;
+
+    private String nextUtterance() {
+        String text = Utterances.MIX[next];
+        next = next + 1 == Utterances.MIX.length ? 0 : next + 1;
+        return text;
+    }
+
+    @Benchmark
+    public CommandParser.Command parse() {
+        return CommandParser.parse(nextUtterance());
+    }
+
+    // onResult compiles every utterance as a potential macro before falling back to parse.
+    @Benchmark
+    public CommandMacro compileMacro() {
+        return CommandMacro.compile(null, nextUtterance());
+    }
+}
@@ -0,0 +1,41 @@
+package com.humanhand.offlineassistant.bench;
+
+import com.humanhand.offlineassistant.voice.CommandMacro;
+import com.humanhand.offlineassistant.voice.CommandParser;
+import com.humanhand.offlineassistant.voice.ConfirmationText;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Prompt building in requestConfirmation, for single commands and a three-step macro. */
+@State(Scope.Thread)
+public class ConfirmationTextBenchmark {
+    private CommandParser.Command[] commands;
+    private CommandMacro macro;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        commands = new CommandParser.Command[] {
+                new CommandParser.Command(CommandParser.ActionType.CALL, "mom"),
+                new CommandParser.Command(CommandParser.ActionType.TYPE, "see you at eight"),
+                new CommandParser.Command(CommandParser.ActionType.CLICK, "delete account"),
+                new CommandParser.Command(CommandParser.ActionType.TOGGLE_WIFI),
+        };
+        macro = CommandMacro.compile(null, "open settings then click battery then scroll down");
+    }
+
+    @Benchmark
+    public String commandPrompt() {
+        CommandParser.Command cmd = commands[next];
+        next = next + 1 == commands.length ? 0 : next + 1;
+        return ConfirmationText.prompt(ConfirmationText.describe(cmd));
+    }
+
+    @Benchmark
+    public String macroPrompt() {
+        return ConfirmationText.prompt(ConfirmationText.describe(macro));
+    }
+}
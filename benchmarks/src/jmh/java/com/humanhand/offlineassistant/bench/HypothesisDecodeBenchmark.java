@@ -0,0 +1,112 @@
+package com.humanhand.offlineassistant.bench;
+
+import com.humanhand.offlineassistant.voice.HypothesisReader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hypothesis JSON decoding in Vosk's output format: org.json as onResult and
+ * onPartialResult used to do it, against the reusable HypothesisReader.
+ * Compare gc.alloc.rate.norm between the two. Command recognizers run with
+ * setMaxAlternatives, so their finals are the {@code alternatives} shape.
+ */
+@State(Scope.Thread)
+public class HypothesisDecodeBenchmark {
+    private String[] results;
+    private String[] partials;
+    private String[] alternatives;
+    private final HypothesisReader reader = new HypothesisReader();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        results = new String[Utterances.MIX.length];
+        partials = new String[Utterances.MIX.length];
+        alternatives = new String[Utterances.MIX.length];
+        for (int i = 0; i < results.length; i++) {
+            String text = Utterances.MIX[i];
+            results[i] = "{\n  \"result\" : [" + words(text) + "],\n  \"text\" : \"" + text + "\"\n}";
+            partials[i] = "{\n  \"partial\" : \"" + text.substring(0, text.length() / 2) + "\"\n}";
+            alternatives[i] = "{\n  \"alternatives\" : [" + nBest(text) + "]\n}";
+        }
+    }
+
+    // Per-word entries as produced with setWords(true).
+    private static String words(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : text.split(" ")) {
+            if (word.isEmpty()) continue;
+            if (sb.length() > 0) sb.append(", ");
+            sb.append("{\n      \"conf\" : 0.951234,\n      \"end\" : 1.23,\n      \"start\" : 0.87,\n      \"word\" : \"")
+                    .append(word).append("\"\n    }");
+        }
+        return sb.toString();
+    }
+
+    // As Vosk prints setMaxAlternatives(4) without words: best first, confidences unnormalized.
+    private static String nBest(String text) {
+        int cut = text.lastIndexOf(' ');
+        String[] texts = {text, text + " the", cut > 0 ? text.substring(0, cut) : "", "the " + text};
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < texts.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("{\n      \"confidence\" : ").append(312.5 - 40 * i)
+                    .append(",\n      \"text\" : \"").append(texts[i]).append("\"\n    }");
+        }
+        return sb.toString();
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = next + 1 == results.length ? 0 : next + 1;
+        return index;
+    }
+
+    @Benchmark
+    public String decodeResult() {
+        return new JSONObject(results[nextIndex()]).optString("text", "");
+    }
+
+    @Benchmark
+    public String decodePartial() {
+        return new JSONObject(partials[nextIndex()]).optString("partial", "");
+    }
+
+    @Benchmark
+    public int decodeAlternatives() {
+        JSONArray array = new JSONObject(alternatives[nextIndex()]).getJSONArray("alternatives");
+        int length = 0;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject alternative = array.getJSONObject(i);
+            length += alternative.optString("text", "").length() + (int) alternative.optDouble("confidence", 0);
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int readResult() {
+        reader.read(results[nextIndex()]);
+        return reader.text().length() + reader.wordCount();
+    }
+
+    @Benchmark
+    public int readPartial() {
+        reader.read(partials[nextIndex()]);
+        return reader.partial().length();
+    }
+
+    @Benchmark
+    public int readAlternatives() {
+        reader.read(alternatives[nextIndex()]);
+        int length = 0;
+        for (int i = 0; i < reader.alternativeCount(); i++) {
+            length += reader.alternative(i).length() + (int) reader.alternativeConfidence(i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,54 @@
+package com.humanhand.offlineassistant.bench;
+
+import com.humanhand.offlineassistant.voice.HypothesisReader;
+import com.humanhand.offlineassistant.voice.HypothesisRescorer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reading and rescoring a four-way N-best result, as onResult does for every
+ * command. The target check is a set lookup, so this is the rescorer's own
+ * cost; it has to stay well inside its time budget.
+ */
+@State(Scope.Thread)
+public class HypothesisRescoreBenchmark {
+    private static final Set<String> TARGETS = new HashSet<>(Arrays.asList(
+            "settings", "battery", "wi-fi", "chrome", "whatsapp"));
+
+    private String[] results;
+    private final HypothesisReader reader = new HypothesisReader();
+    private final HypothesisRescorer rescorer = new HypothesisRescorer("hey hand",
+            (action, target) -> TARGETS.contains(target) ? 1f : 0f);
+    private int next;
+
+    @Setup
+    public void setUp() {
+        results = new String[Utterances.MIX.length];
+        for (int i = 0; i < results.length; i++) {
+            String text = Utterances.MIX[i];
+            results[i] = "{\"alternatives\" : ["
+                    + alternative(text, 231.5) + ", "
+                    + alternative(text + " the", 228.1) + ", "
+                    + alternative(text.replace('e', 'a'), 226.9) + ", "
+                    + alternative("hey hand " + text, 220.4) + "]}";
+        }
+    }
+
+    private static String alternative(String text, double confidence) {
+        return "{\n  \"confidence\" : " + confidence + ",\n  \"text\" : \"" + text + "\"\n}";
+    }
+
+    @Benchmark
+    public int readAndPick() {
+        reader.read(results[next]);
+        next = next + 1 == results.length ? 0 : next + 1;
+        return rescorer.pick(reader);
+    }
+}
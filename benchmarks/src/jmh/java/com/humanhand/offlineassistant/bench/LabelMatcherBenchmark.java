@@ -0,0 +1,48 @@
+package com.humanhand.offlineassistant.bench;
+
+import com.humanhand.offlineassistant.voice.LabelMatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Matching a spoken target against a screen's worth of labels, as a click
+ * command does once ScreenIndex is warm. The queries mix exact, split-word,
+ * phonetic and one-edit targets so each candidate path is exercised.
+ */
+@State(Scope.Thread)
+public class LabelMatcherBenchmark {
+    private static final String[] LABELS = {
+            "Network & internet", "Wi-Fi", "Bluetooth", "Connected devices", "Apps", "WhatsApp",
+            "Notifications", "Battery", "Storage", "Sound and vibration", "Display", "Wallpaper",
+            "Accessibility", "Security", "Privacy", "Location", "Safety & emergency", "Passwords & accounts",
+            "Digital Wellbeing", "Google", "System", "About phone", "Tips & support", "Calculator",
+            "Calendar", "Camera", "Chrome", "Clock", "Contacts", "Files", "Gmail", "Maps",
+            "Messages", "Phone", "Photos", "Play Store", "YouTube", "Search settings", "Navigate up", "More options",
+    };
+    private static final String[] QUERIES = {
+            "battery", "blue tooth", "what's app", "wifi", "kalkulator", "fone", "batterx",
+            "display", "sound", "notification", "about phone", "zzzz",
+    };
+
+    private final LabelMatcher<String> matcher = new LabelMatcher<>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < LABELS.length; i++) {
+            matcher.add(LABELS[i], LABELS[i], i % 4 != 0, true, (float) i / LABELS.length);
+        }
+    }
+
+    @Benchmark
+    public List<LabelMatcher.Match<String>> match() {
+        String query = QUERIES[next];
+        next = next + 1 == QUERIES.length ? 0 : next + 1;
+        return matcher.match(query, 3);
+    }
+}
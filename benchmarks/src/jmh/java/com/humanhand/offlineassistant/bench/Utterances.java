@@ -0,0 +1,15 @@
+package com.humanhand.offlineassistant.bench;
+
+/** A command mix weighted roughly like real use: navigation and taps dominate. */
+final class Utterances {
+    static final String[] MIX = {
+            "scroll down", "scroll down", "scroll up", "go back", "go back", "go home",
+            "click settings", "click battery", "click wi-fi", "open chrome", "open whatsapp",
+            "keep scrolling down", "stop", "recent apps", "turn on wifi", "flashlight",
+            "open settings then click battery", "save macro battery check", "run battery check",
+            "what time is it", "",
+    };
+
+    private Utterances() {
+    }
+}
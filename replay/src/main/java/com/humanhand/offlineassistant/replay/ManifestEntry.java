@@ -0,0 +1,69 @@
+package com.humanhand.offlineassistant.replay;
+
+import com.humanhand.offlineassistant.voice.CommandParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One labelled utterance. Manifests are tab-separated, one utterance per line:
+ * <pre>wav  transcript  action  target  direction  [script]</pre>
+ * "-" marks an empty column, and blank lines and lines starting with '#' are
+ * skipped. WAV paths are relative to the manifest.
+ */
+final class ManifestEntry {
+    final File wav;
+    final String transcript;
+    final CommandParser.ActionType action;
+    final String target;
+    final String direction;
+    // What the scripted recognizer "hears"; null to hear the transcript.
+    final String script;
+
+    private ManifestEntry(File wav, String transcript, CommandParser.ActionType action,
+                          String target, String direction, String script) {
+        this.wav = wav;
+        this.transcript = transcript;
+        this.action = action;
+        this.target = target;
+        this.direction = direction;
+        this.script = script;
+    }
+
+    static List<ManifestEntry> load(File manifest) throws IOException {
+        List<ManifestEntry> entries = new ArrayList<>();
+        File base = manifest.getAbsoluteFile().getParentFile();
+        try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                String[] columns = line.split("\t");
+                if (columns.length < 5) {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected at least 5 columns");
+                }
+                CommandParser.ActionType action;
+                try {
+                    action = CommandParser.ActionType.valueOf(columns[2].trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(manifest + ":" + lineNumber + ": unknown action " + columns[2]);
+                }
+                entries.add(new ManifestEntry(new File(base, columns[0].trim()), columns[1].trim(), action,
+                        column(columns, 3), column(columns, 4), column(columns, 5)));
+            }
+        }
+        return entries;
+    }
+
+    private static String column(String[] columns, int index) {
+        if (index >= columns.length) return null;
+        String value = columns[index].trim();
+        return value.isEmpty() || value.equals("-") ? null : value;
+    }
+}
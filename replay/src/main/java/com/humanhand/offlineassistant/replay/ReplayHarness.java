@@ -0,0 +1,246 @@
+package com.humanhand.offlineassistant.replay;
+
+import com.humanhand.offlineassistant.voice.CommandParser;
+import com.humanhand.offlineassistant.voice.VoiceActivityDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Replays a labelled corpus of 16 kHz WAV files through the voice activity
+ * gate, a recognizer and {@link CommandParser#parse}, then reports real-time
+ * factor, time to final result and command and slot accuracy.
+ *
+ * <pre>ReplayHarness manifest.tsv [--model DIR] [--free-form] [--min-accuracy 0.9] [--require-audio]</pre>
+ *
+ * With a model directory (the flag, or VOSK_MODEL) the Vosk desktop binding
+ * decodes the audio. Without one a scripted stand-in returns the manifest's
+ * hypotheses, so CI runs deterministically and may omit the WAV files, unless
+ * --require-audio is given; corpus/synthetic has WAV files for that. Audio is
+ * fed in the device's 0.1 s buffers and latency is simulated as if it arrived
+ * live: a buffer cannot start before it has been "recorded", nor before the
+ * previous one has been decoded.
+ */
+public final class ReplayHarness implements VoiceActivityDetector.Sink {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BUFFER_SAMPLES = SAMPLE_RATE / 10;
+    private static final long BUFFER_NANOS = 100_000_000L;
+
+    private final ReplayRecognizer recognizer;
+    private final VoiceActivityDetector vad = new VoiceActivityDetector(this);
+    private final short[] decodeBuffer = new short[BUFFER_SAMPLES];
+    private int decodeFill;
+
+    // Per utterance. Times are on the simulated clock, in nanoseconds from the start of the file.
+    private String finalText;
+    private long bufferArrival;
+    private long lastDecodedAt;
+
+    private int utterances;
+    private int actionCorrect;
+    private int slotTotal;
+    private int slotCorrect;
+    private int exact;
+    private long audioNanos;
+    private long processNanos;
+    private final List<Long> timeToFinal = new ArrayList<>();
+
+    private ReplayHarness(ReplayRecognizer recognizer) {
+        this.recognizer = recognizer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File manifest = null;
+        String modelDir = System.getenv("VOSK_MODEL");
+        boolean freeForm = false;
+        double minAccuracy = -1;
+        boolean requireAudio = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--model": modelDir = args[++i]; break;
+                case "--free-form": freeForm = true; break;
+                case "--min-accuracy": minAccuracy = Double.parseDouble(args[++i]); break;
+                case "--require-audio": requireAudio = true; break;
+                default: manifest = new File(args[i]);
+            }
+        }
+        if (manifest == null) {
+            System.err.println("usage: ReplayHarness manifest.tsv [--model DIR] [--free-form] [--min-accuracy 0.9]"
+                    + " [--require-audio]");
+            System.exit(2);
+        }
+
+        List<ManifestEntry> entries = ManifestEntry.load(manifest);
+        if (requireAudio) {
+            for (ManifestEntry entry : entries) {
+                if (!entry.wav.isFile()) throw new IOException(entry.wav + ": missing, and --require-audio was given");
+            }
+        }
+        ReplayRecognizer recognizer;
+        if (modelDir != null && new File(modelDir).isDirectory()) {
+            System.out.println("Recognizer: Vosk, model " + modelDir + (freeForm ? ", free-form" : ", command grammar"));
+            recognizer = new VoskRecognizer(modelDir, SAMPLE_RATE, freeForm ? null : grammarFor(entries));
+        } else {
+            System.out.println("Recognizer: scripted (no model directory)");
+            recognizer = new ScriptedRecognizer();
+        }
+
+        ReplayHarness harness = new ReplayHarness(recognizer);
+        try {
+            for (ManifestEntry entry : entries) harness.replay(entry);
+        } finally {
+            recognizer.close();
+        }
+        double accuracy = harness.report();
+        if (accuracy < minAccuracy) {
+            System.out.printf(Locale.US, "FAIL: exact-match accuracy %.3f is below %.3f%n", accuracy, minAccuracy);
+            System.exit(1);
+        }
+    }
+
+    // The app's fixed command vocabulary plus the labelled targets, which on the
+    // device would be reachable app or screen labels.
+    private static String grammarFor(List<ManifestEntry> entries) {
+        Set<String> words = new LinkedHashSet<>(CommandParser.vocabulary());
+        words.add("confirm");
+        words.add("cancel");
+        for (ManifestEntry entry : entries) {
+            if (entry.target == null) continue;
+            Collections.addAll(words, entry.target.toLowerCase(Locale.ROOT).split("\\s+"));
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (String word : words) sb.append('"').append(word).append("\", ");
+        return sb.append("\"[unk]\"]").toString();
+    }
+
+    private void replay(ManifestEntry entry) throws IOException {
+        short[] pcm = entry.wav.isFile() ? WavReader.read(entry.wav, SAMPLE_RATE) : new short[0];
+        recognizer.begin(entry);
+        vad.reset();
+        decodeFill = 0;
+        finalText = null;
+        lastDecodedAt = 0;
+
+        long ready = 0;
+        long finalAt = -1;
+        for (int offset = 0; offset < pcm.length; offset += BUFFER_SAMPLES) {
+            int length = Math.min(BUFFER_SAMPLES, pcm.length - offset);
+            bufferArrival = (offset + length) * BUFFER_NANOS / BUFFER_SAMPLES;
+            long start = System.nanoTime();
+            vad.process(pcm, offset, length);
+            long spent = System.nanoTime() - start;
+            processNanos += spent;
+            ready = Math.max(ready, bufferArrival) + spent;
+            if (finalAt < 0 && finalText != null) finalAt = ready;
+        }
+        long duration = (long) pcm.length * BUFFER_NANOS / BUFFER_SAMPLES;
+        audioNanos += duration;
+        if (finalText == null) {
+            // The recording ended inside speech, or nothing was heard at all.
+            bufferArrival = duration;
+            long start = System.nanoTime();
+            flush();
+            if (finalText == null) finalText = recognizer.finish();
+            long spent = System.nanoTime() - start;
+            processNanos += spent;
+            finalAt = Math.max(ready, duration) + spent;
+        }
+        timeToFinal.add(finalAt - Math.min(lastDecodedAt, finalAt));
+        score(entry, finalText);
+    }
+
+    @Override
+    public void onSpeech(short[] pcm, int length) {
+        lastDecodedAt = bufferArrival;
+        System.arraycopy(pcm, 0, decodeBuffer, decodeFill, length);
+        decodeFill += length;
+        if (decodeFill == decodeBuffer.length) decode();
+    }
+
+    @Override
+    public void onSpeechEnd() {
+        flush();
+        if (finalText == null) accept(recognizer.finish());
+    }
+
+    private void flush() {
+        if (decodeFill > 0) decode();
+    }
+
+    private void decode() {
+        String text = recognizer.accept(decodeBuffer, decodeFill);
+        decodeFill = 0;
+        if (finalText == null) accept(text);
+    }
+
+    // The device acts on the first non-empty final result.
+    private void accept(String text) {
+        if (text != null && !text.isEmpty()) finalText = text;
+    }
+
+    private void score(ManifestEntry entry, String heard) {
+        utterances++;
+        CommandParser.Command command = CommandParser.parse(heard);
+        boolean actionOk = command.action == entry.action;
+        boolean targetOk = sameSlot(entry.target, command.target);
+        boolean directionOk = sameSlot(entry.direction, command.direction);
+        if (actionOk) actionCorrect++;
+        if (entry.target != null) {
+            slotTotal++;
+            if (targetOk) slotCorrect++;
+        }
+        if (entry.direction != null) {
+            slotTotal++;
+            if (directionOk) slotCorrect++;
+        }
+        if (actionOk && targetOk && directionOk) {
+            exact++;
+        } else {
+            System.out.printf("MISS %s: heard \"%s\" -> %s %s %s, expected %s %s %s%n",
+                    entry.wav.getName(), heard, command.action, dash(command.target), dash(command.direction),
+                    entry.action, dash(entry.target), dash(entry.direction));
+        }
+    }
+
+    private static boolean sameSlot(String expected, String actual) {
+        if (expected == null) return actual == null || actual.trim().isEmpty();
+        return actual != null && expected.trim().equalsIgnoreCase(actual.trim());
+    }
+
+    private static String dash(String slot) {
+        return slot == null ? "-" : slot;
+    }
+
+    /** Prints the summary and returns the exact-match accuracy. */
+    private double report() {
+        Collections.sort(timeToFinal);
+        System.out.printf(Locale.US, "Utterances %d, audio %.1f s%n", utterances, audioNanos / 1e9);
+        System.out.println(audioNanos == 0 ? "Real-time factor n/a"
+                : String.format(Locale.US, "Real-time factor %.3f", (double) processNanos / audioNanos));
+        System.out.printf(Locale.US, "Voice gate skipped %.1f%% of frames%n", 100 * vad.getSkippedFraction());
+        System.out.printf(Locale.US, "Time to final after last decoded audio: p50 %.0f ms, p90 %.0f ms, max %.0f ms%n",
+                percentile(0.5), percentile(0.9), percentile(1.0));
+        System.out.printf(Locale.US, "Command accuracy %d/%d (%.1f%%)%n", actionCorrect, utterances,
+                percent(actionCorrect, utterances));
+        System.out.printf(Locale.US, "Slot accuracy %d/%d (%.1f%%)%n", slotCorrect, slotTotal,
+                percent(slotCorrect, slotTotal));
+        System.out.printf(Locale.US, "Exact match %d/%d (%.1f%%)%n", exact, utterances, percent(exact, utterances));
+        return utterances == 0 ? 0 : (double) exact / utterances;
+    }
+
+    private double percentile(double p) {
+        if (timeToFinal.isEmpty()) return 0;
+        int index = (int) Math.ceil(p * timeToFinal.size()) - 1;
+        return timeToFinal.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static double percent(int part, int whole) {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}
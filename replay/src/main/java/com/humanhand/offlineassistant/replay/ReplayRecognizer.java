@@ -0,0 +1,19 @@
+package com.humanhand.offlineassistant.replay;
+
+/**
+ * Speech-to-text stage of the replay pipeline. It only sees audio the voice
+ * activity gate lets through, in the same order and chunk size as on the device.
+ */
+interface ReplayRecognizer extends AutoCloseable {
+    /** Starts a new utterance. Stand-ins may read their script from {@code entry}. */
+    void begin(ManifestEntry entry);
+
+    /** Decodes speech; returns the final text if the decoder hit an endpoint, else null. */
+    String accept(short[] pcm, int length);
+
+    /** Ends the utterance and returns its final text, possibly empty. */
+    String finish();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,57 @@
+package com.humanhand.offlineassistant.replay;
+
+import com.humanhand.offlineassistant.voice.HypothesisReader;
+import com.humanhand.offlineassistant.voice.HypothesisRescorer;
+
+import org.vosk.Model;
+import org.vosk.Recognizer;
+
+import java.io.IOException;
+
+/**
+ * Vosk desktop binding, decoding with the same grammar and N-best rescoring the
+ * app uses in command mode. There is no screen here, so targets count as unknown.
+ */
+final class VoskRecognizer implements ReplayRecognizer {
+    private final Model model;
+    private final Recognizer recognizer;
+    private final HypothesisReader reader = new HypothesisReader();
+    private final HypothesisRescorer rescorer =
+            new HypothesisRescorer(null, (action, target) -> HypothesisRescorer.TargetScorer.UNKNOWN);
+
+    /** {@code grammarJson} is null for free-form decoding. */
+    VoskRecognizer(String modelDir, float sampleRate, String grammarJson) throws IOException {
+        model = new Model(modelDir);
+        recognizer = grammarJson == null
+                ? new Recognizer(model, sampleRate)
+                : new Recognizer(model, sampleRate, grammarJson);
+        recognizer.setMaxAlternatives(4);
+    }
+
+    @Override
+    public void begin(ManifestEntry entry) {
+        recognizer.reset();
+    }
+
+    @Override
+    public String accept(short[] pcm, int length) {
+        return recognizer.acceptWaveForm(pcm, length) ? text(recognizer.getResult()) : null;
+    }
+
+    @Override
+    public String finish() {
+        return text(recognizer.getFinalResult());
+    }
+
+    @Override
+    public void close() {
+        recognizer.close();
+        model.close();
+    }
+
+    private String text(String hypothesis) {
+        reader.read(hypothesis);
+        int pick = rescorer.pick(reader);
+        return pick > 0 ? reader.alternative(pick).toString() : reader.text().toString();
+    }
+}
@@ -0,0 +1,45 @@
+package com.humanhand.offlineassistant.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+/** Reads 16-bit mono PCM WAV files at the rate the app records. */
+final class WavReader {
+    private WavReader() {
+    }
+
+    static short[] read(File file, int sampleRate) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < 12 || data.getInt(0) != 0x46464952 || data.getInt(8) != 0x45564157) {
+            throw new IOException(file + ": not a RIFF/WAVE file");
+        }
+        data.position(12);
+        boolean formatSeen = false;
+        while (data.remaining() >= 8) {
+            int id = data.getInt();
+            int size = data.getInt();
+            if (size < 0 || size > data.remaining()) throw new IOException(file + ": truncated chunk");
+            if (id == 0x20746d66) { // "fmt "
+                int format = data.getShort(data.position()) & 0xffff;
+                int channels = data.getShort(data.position() + 2);
+                int rate = data.getInt(data.position() + 4);
+                int bits = data.getShort(data.position() + 14);
+                if (format != 1 || channels != 1 || rate != sampleRate || bits != 16) {
+                    throw new IOException(String.format("%s: need %d Hz mono 16-bit PCM, got format %d, "
+                            + "%d channels, %d Hz, %d-bit", file, sampleRate, format, channels, rate, bits));
+                }
+                formatSeen = true;
+            } else if (id == 0x61746164) { // "data"
+                if (!formatSeen) throw new IOException(file + ": data before fmt chunk");
+                short[] pcm = new short[size / 2];
+                data.asShortBuffer().get(pcm);
+                return pcm;
+            }
+            data.position(data.position() + size + (size & 1));
+        }
+        throw new IOException(file + ": no data chunk");
+    }
+}